@@ -0,0 +1,286 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Headless batch mode: evaluates newline-delimited expressions from a file or stdin
+// and writes one result per line, in input order. Files are read through
+// memory-mapped windows so multi-GB inputs are never copied onto the heap as a
+// whole. Input is cut into chunks at line boundaries, chunks are evaluated on a
+// worker pool, and at most a fixed number of chunks are in flight at once, so
+// memory stays bounded no matter how large the input is.
+//
+// With --word the lines are programmer-mode integer expressions (see
+// IntegerEvaluator) on that word, i64, u64, i128 or u128, and the results are
+// written in --radix 16, 10, 8 or 2 (default 16), for bulk bitmask work.
+//
+//   java Calculator --batch [file|-] [--threads N] [--virtual] [--word i64 [--radix 16]]
+public final class BatchEvaluator {
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final long MAP_WINDOW = 1L << 28;
+    private static final Future<byte[]> END = CompletableFuture.completedFuture(null);
+    private static final long[] NO_VALUES = new long[0];
+
+    private final ExecutorService workers;
+    private final int maxInFlight;
+    private final ExpressionCache cache = new ExpressionCache(1 << 16);
+    // Programmer mode word and output radix; null for double arithmetic
+    private final IntegerExpression.Word word;
+    private final int radix;
+
+    public BatchEvaluator(int threads, boolean virtualThreads) {
+        this(threads, virtualThreads, null, 10);
+    }
+
+    public BatchEvaluator(int threads, boolean virtualThreads, IntegerExpression.Word word, int radix) {
+        // Rejects an unsupported radix before any work starts
+        RadixFormat.prefix(radix);
+        this.word = word;
+        this.radix = radix;
+        this.workers = virtualThreads
+            ? Executors.newVirtualThreadPerTaskExecutor()
+            : new ForkJoinPool(threads);
+        this.maxInFlight = threads * 2;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path input = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean virtualThreads = false;
+        IntegerExpression.Word word = null;
+        int radix = 16;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--virtual")) {
+                virtualThreads = true;
+            } else if (args[i].equals("--word") && i + 1 < args.length) {
+                word = IntegerExpression.Word.of(args[++i]);
+            } else if (args[i].equals("--radix") && i + 1 < args.length) {
+                radix = Integer.parseInt(args[++i]);
+            } else if (!args[i].equals("-")) {
+                input = Paths.get(args[i]);
+            }
+        }
+        BatchEvaluator batch = new BatchEvaluator(Math.max(1, threads), virtualThreads, word, radix);
+        try (OutputStream out = new BufferedOutputStream(System.out, 1 << 16)) {
+            if (input == null) {
+                batch.run(System.in, out);
+            } else {
+                batch.run(input, out);
+            }
+        } finally {
+            batch.shutdown();
+        }
+    }
+
+    public void run(Path input, OutputStream out) throws IOException {
+        Writer writer = new Writer(out, maxInFlight);
+        writer.start();
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long window = Math.min(MAP_WINDOW, size - position);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, position, window);
+                boolean last = position + window == size;
+                int start = 0;
+                while (start < window) {
+                    int cut = (int) Math.min(window, (long) start + CHUNK_BYTES);
+                    if (cut < window || !last) {
+                        int newline = lastNewline(map, start, cut);
+                        if (newline < 0) {
+                            // No line break in this chunk; extend it to the next one
+                            newline = firstNewline(map, cut, (int) window);
+                        }
+                        if (newline >= 0) {
+                            cut = newline + 1;
+                        } else if (last) {
+                            cut = (int) window;
+                        } else {
+                            break;
+                        }
+                    }
+                    writer.submit(evaluateAsync(map.slice(start, cut - start)));
+                    start = cut;
+                }
+                if (start == 0 && !last) {
+                    throw new IOException("Line longer than " + MAP_WINDOW + " bytes at offset " + position);
+                }
+                position += start;
+            }
+        } finally {
+            writer.finish();
+        }
+    }
+
+    public void run(InputStream input, OutputStream out) throws IOException {
+        Writer writer = new Writer(out, maxInFlight);
+        writer.start();
+        try {
+            byte[] buffer = new byte[CHUNK_BYTES];
+            int filled = 0;
+            while (true) {
+                int n = input.read(buffer, filled, buffer.length - filled);
+                if (n < 0) break;
+                filled += n;
+                if (filled < buffer.length) continue;
+                int newline = lastNewline(ByteBuffer.wrap(buffer), 0, filled);
+                if (newline < 0) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                writer.submit(evaluateAsync(ByteBuffer.wrap(Arrays.copyOf(buffer, newline + 1))));
+                filled -= newline + 1;
+                System.arraycopy(buffer, newline + 1, buffer, 0, filled);
+            }
+            if (filled > 0) {
+                writer.submit(evaluateAsync(ByteBuffer.wrap(Arrays.copyOf(buffer, filled))));
+            }
+        } finally {
+            writer.finish();
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    private Future<byte[]> evaluateAsync(ByteBuffer chunk) {
+        return workers.submit(() -> evaluateChunk(chunk));
+    }
+
+    private byte[] evaluateChunk(ByteBuffer chunk) {
+        CharBuffer text = StandardCharsets.UTF_8.decode(chunk);
+        StringBuilder out = new StringBuilder(text.length());
+        LongStack workspace = word == null ? null : new LongStack();
+        long[] result = new long[2];
+        int length = text.length();
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while (end < length && text.charAt(end) != '\n') end++;
+            int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+            String line = text.subSequence(start, lineEnd).toString();
+            if (word == null) {
+                appendResult(line, out);
+            } else {
+                appendInteger(line, workspace, result, out);
+            }
+            out.append('\n');
+            start = end + 1;
+        }
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void appendResult(String line, StringBuilder out) {
+        if (line.isBlank()) return;
+        try {
+            NumberCodec.format(cache.get(line).evaluate(), out);
+        } catch (ArithmeticException e) {
+            out.append("Not applicable");
+        } catch (IllegalArgumentException e) {
+            out.append("Error");
+        }
+    }
+
+    private void appendInteger(String line, LongStack workspace, long[] result, StringBuilder out) {
+        if (line.isBlank()) return;
+        try {
+            IntegerEvaluator.compile(line, word).evaluate(workspace, NO_VALUES, result);
+            RadixFormat.format(result[0], result[1], word, radix, out);
+        } catch (ArithmeticException e) {
+            out.append("Not applicable");
+        } catch (IllegalArgumentException e) {
+            out.append("Error");
+        }
+    }
+
+    private static int lastNewline(ByteBuffer buffer, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    private static int firstNewline(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') return i;
+        }
+        return -1;
+    }
+
+    // Drains chunk results strictly in submission order. The bounded queue is what
+    // limits how far the reader can run ahead of the output.
+    private static final class Writer extends Thread {
+        private final OutputStream out;
+        private final BlockingQueue<Future<byte[]>> pending;
+        private volatile Throwable failure;
+
+        Writer(OutputStream out, int capacity) {
+            super("batch-writer");
+            this.out = out;
+            this.pending = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void submit(Future<byte[]> result) throws IOException {
+            try {
+                while (!pending.offer(result, 100, TimeUnit.MILLISECONDS)) {
+                    checkFailure();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while queueing results", e);
+            }
+        }
+
+        void finish() throws IOException {
+            try {
+                while (failure == null && !pending.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                    // Wait for the writer to make room
+                }
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing results", e);
+            }
+            out.flush();
+            checkFailure();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Future<byte[]> next = pending.take();
+                    if (next == END) return;
+                    out.write(next.get());
+                }
+            } catch (InterruptedException | ExecutionException | IOException e) {
+                failure = e;
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            if (failure != null) throw new IOException("Batch evaluation failed", failure);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+import java.util.Arrays;
+
+// Growable stack of byte opcodes, used in place of a Stack<String> of operator
+// names. Not synchronized; each instance belongs to a single thread.
+public final class ByteStack {
+    private byte[] values;
+    private int size;
+
+    public ByteStack() {
+        this(16);
+    }
+
+    public ByteStack(int capacity) {
+        values = new byte[Math.max(1, capacity)];
+    }
+
+    public void push(byte value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    public byte pop() {
+        if (size == 0) throw new IllegalStateException("Stack is empty");
+        return values[--size];
+    }
+
+    public byte peek() {
+        if (size == 0) throw new IllegalStateException("Stack is empty");
+        return values[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
@@ -1,22 +1,116 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.text.DecimalFormat;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.JTextComponent;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-public class Calculator extends JFrame {
+// The calculator is a panel, so it can be built and driven without a window
+// (KeypadFuzz does that headless); open() puts it in one. Swing components are
+// Serializable, but a calculator is never serialized.
+@SuppressWarnings("serial")
+public final class Calculator extends JPanel {
     private JTextField display;
     private JTextArea history;
     private double result = 0;
-    private double memory = 0;
-    private String lastOperation = "=";
+    private MemoryBank memory = new MemoryBank();
+    // The number being typed is kept as text; everything else is kept as a value
+    // and only rendered for the display
+    private double displayValue = 0;
+    // Exact (decimal) mode: results are BigDecimal, rounded to this context. Plain
+    // double arithmetic is used when exactContext is null.
+    private MathContext exactContext = null;
+    private BigDecimal exactResult;
+    private BigDecimal exactValue;
+    private StringBuilder entry = new StringBuilder();
     private boolean startNewNumber = true;
-    private ArrayList<String> calculationHistory = new ArrayList<>();
-    private Stack<Double> parenthesesStack = new Stack<>();
-    private Stack<String> operatorStack = new Stack<>();
-    private DecimalFormat formatter = new DecimalFormat("#,##0.##########");
+    private boolean expectOperand = true;
+    private int openParentheses = 0;
+    private int operatorMark = -1;
+    // Where the operand the expression ends with starts (a number, a function of
+    // one, or a group), for a function key pressed after it; -1 when unknown
+    private int operandStart = -1;
+    // Entries kept in memory; -Dcalculator.history.limit=N changes the retention
+    private static final int HISTORY_LIMIT = Integer.getInteger("calculator.history.limit", 100_000);
+    // Lines shown in the history area under the display
+    private static final int RECENT_LINES = 5;
+    private HistoryBuffer calculationHistory = new HistoryBuffer(HISTORY_LIMIT);
+    private HistoryListModel historyModel = new HistoryListModel();
+    private JDialog historyDialog;
+    // Bumped for every search of the log, so only the latest one shows its results
+    private int searches;
+    // Persistent log of every entry; null when it could not be opened
+    private HistoryLog historyLog;
     private boolean isError = false;
+    // Keys that apply a function to the number just typed or to the next one
+    private static final Map<String, String> FUNCTION_KEYS = new HashMap<>();
+    static {
+        String[][] keys = {
+            {"√", "sqrt"}, {"x²", "sqr"}, {"1/x", "recip"},
+            {"sin", "sin"}, {"cos", "cos"}, {"tan", "tan"}, {"sinh", "sinh"}, {"cosh", "cosh"}, {"tanh", "tanh"},
+            {"ln", "ln"}, {"log", "log"}, {"eˣ", "exp"}, {"n!", "fact"}, {"Γ", "gamma"}
+        };
+        for (String[] key : keys) FUNCTION_KEYS.put(key[0], key[1]);
+    }
+    // Scientific keys, built the first time they are shown
+    private JPanel scientificPanel;
+    // Use the fast tier of the scientific functions (see ScientificFunctions)
+    private boolean fastFunctions = false;
+    // Function plot beside the keypad, built the first time it is shown
+    private JPanel plotArea;
+    // Programmer mode: integer arithmetic on this word, shown in programmerRadix;
+    // null while the keypad works on doubles
+    private IntegerExpression.Word programmerWord;
+    private int programmerRadix = 16;
+    // The word picked in the programmer keys, kept while the mode is off
+    private IntegerExpression.Word chosenWord = IntegerExpression.Word.INT64;
+    // The integer on the display and the last integer result, as high:low
+    private long[] integerValue = new long[2];
+    private long[] integerResult = new long[2];
+    // The memory keys use this register instead of the double ones while a word is
+    // active, so a stored integer keeps every bit
+    private long[] integerMemory = new long[2];
+    // xʸ, which has no integer counterpart: "^" is XOR in programmer mode
+    private JButton powerKey;
+    // Base, word and bitwise keys above the keypad, built the first time they are shown
+    private JPanel programmerPanel;
+    // Programmer keys that insert a binary operator, with its expression syntax
+    private static final Map<String, String> BITWISE_KEYS = new HashMap<>();
+    static {
+        String[][] keys = {
+            {"AND", "&"}, {"OR", "|"}, {"XOR", "^"}, {"<<", "<<"}, {">>", ">>"}, {">>>", ">>>"},
+            {"ROL", "rol"}, {"ROR", "ror"}, {"MOD", "%"}
+        };
+        for (String[] key : keys) BITWISE_KEYS.put(key[0], key[1]);
+    }
+    // Evaluations run on a worker thread and publish back to the EDT, so a slow one
+    // (a long decimal chain at high precision) never freezes the window
+    private static final ExecutorService EVALUATOR = Executors.newVirtualThreadPerTaskExecutor();
+    // The "=" in flight; until it lands, keys wait in typedKeys
+    private Future<?> pendingResult;
+    // Bumped whenever an evaluation is superseded, so late results are dropped
+    private int generation;
+    // Function values on their way to the display
+    private int partials;
+    private JProgressBar busy = new JProgressBar();
+    // The busy indicator only appears for evaluations that are actually slow
+    private Timer busyDelay = new Timer(150, e -> busy.setVisible(true));
     private StringBuilder expression = new StringBuilder();
     private int currentTheme = 0;
     private final Color[] themes = {
@@ -25,30 +119,94 @@ public class Calculator extends JFrame {
         new Color(200, 230, 255)  // Blue
     };
 
+    // Fonts are shared by every component that uses them
+    private static final Font DISPLAY_FONT = new Font("Arial", Font.BOLD, 24);
+    private static final Font HISTORY_FONT = new Font("Arial", Font.PLAIN, 14);
+    private static final Font KEY_FONT = new Font("Arial", Font.PLAIN, 16);
+    // One listener for every key
+    private final ActionListener keyListener = e -> clicked(e.getActionCommand());
+    // Keyboard characters and the keys they press; in programmer mode the second
+    // table goes first
+    private static final String[] CHAR_KEYS = new String[128];
+    private static final String[] PROGRAMMER_CHAR_KEYS = new String[128];
+    static {
+        for (char c : "0123456789+-*/.()^".toCharArray()) CHAR_KEYS[c] = String.valueOf(c);
+        CHAR_KEYS['!'] = "n!";
+        for (char c = 'a'; c <= 'f'; c++) {
+            PROGRAMMER_CHAR_KEYS[c] = PROGRAMMER_CHAR_KEYS[Character.toUpperCase(c)] = String.valueOf(c);
+        }
+        String[][] keys = {{"&", "AND"}, {"|", "OR"}, {"~", "NOT"}, {"%", "MOD"}, {"<", "<<"}, {">", ">>"}};
+        for (String[] key : keys) PROGRAMMER_CHAR_KEYS[key[0].charAt(0)] = key[1];
+    }
+    // Typed keys wait here and are handled together once a frame, so a burst of
+    // them (auto-repeat, a fast typist, a macro) puts one text on the display
+    // instead of one per key. Keys that arrive while an evaluation is on its way
+    // wait for it rather than being dropped.
+    private final ArrayDeque<String> typedKeys = new ArrayDeque<>();
+    private final Timer keyFrame = new Timer(16, e -> drainKeys());
+    // While a batch is handled the display text is only kept here
+    private boolean batching;
+    private String pendingDisplay;
+    // F9 records the keys handled until the next F9, F10 plays the last recording
+    // back; it is kept in macro.txt in the history directory (-Dcalculator.macro
+    // names another file)
+    private KeyMacro recording;
+    private KeyMacro macro;
+    private static final String RECORDING_TITLE = " - recording";
+    // Entries made while the history log is still opening, appended to it once open
+    private List<String> unloggedEntries = new ArrayList<>();
+    private List<Double> unloggedValues = new ArrayList<>();
+    // The session (see SessionSnapshot) is saved a second after the last entry and
+    // when the window closes, on a thread of its own; a save in progress at exit is
+    // waited for. -Dcalculator.session names the file, by default session.bin in the
+    // history directory.
+    private static final ExecutorService SAVER = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "session-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Timer saveDelay = new Timer(1000, e -> saveSession());
+    // -Dcalculator.startup=report prints the time to the first paint, =exit then quits
+    private static final String STARTUP_PROBE = System.getProperty("calculator.startup");
+    private static long mainStarted;
+    private boolean painted;
+
+    // Builds only what the first frame shows, already in the theme's colors; the
+    // scientific keys, the plot and the history dialog are built when first opened,
+    // and the history log is read on a worker once the window is up
     public Calculator() {
-        setTitle("Advanced Calculator");
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setLayout(new BorderLayout(5, 5));
+        super(new BorderLayout(5, 5));
+
+        Color bgColor = themes[currentTheme];
+        Color keyColor = bgColor.brighter();
+        Color fgColor = foreground();
+        setBackground(bgColor);
 
         // Create main panel
         JPanel mainPanel = new JPanel(new BorderLayout(5, 5));
+        mainPanel.setBackground(bgColor);
 
         // Create display
         display = new JTextField("0");
         display.setHorizontalAlignment(JTextField.RIGHT);
         display.setEditable(false);
-        display.setFont(new Font("Arial", Font.BOLD, 24));
+        display.setFont(DISPLAY_FONT);
+        display.setBackground(bgColor);
+        display.setForeground(fgColor);
         mainPanel.add(display, BorderLayout.NORTH);
 
         // Create history panel
         history = new JTextArea(5, 30);
         history.setEditable(false);
-        history.setFont(new Font("Arial", Font.PLAIN, 14));
+        history.setFont(HISTORY_FONT);
+        history.setBackground(bgColor);
+        history.setForeground(fgColor);
         JScrollPane historyScroll = new JScrollPane(history);
         mainPanel.add(historyScroll, BorderLayout.CENTER);
 
         // Create button panel
         JPanel buttonPanel = new JPanel(new GridLayout(7, 5, 5, 5));
+        buttonPanel.setBackground(bgColor);
 
         // Create buttons
         String[] buttonLabels = {
@@ -58,272 +216,1421 @@ public class Calculator extends JFrame {
             "4", "5", "6", "*", "x²",
             "1", "2", "3", "-", "1/x",
             "0", ".", "⌫", "+", "=",
-            "Theme", "Scientific", "", "", ""
+            "Theme", "Scientific", "History", "Exact", "Programmer"
         };
 
         for (String label : buttonLabels) {
             if (label.isEmpty()) continue;
-            JButton button = new JButton(label);
-            button.setFont(new Font("Arial", Font.PLAIN, 16));
-            button.addActionListener(new ButtonClickListener());
+            JButton button = key(label, keyListener);
+            button.setBackground(keyColor);
+            button.setForeground(fgColor);
             buttonPanel.add(button);
         }
 
         mainPanel.add(buttonPanel, BorderLayout.SOUTH);
         add(mainPanel);
 
+        busy.setIndeterminate(true);
+        busy.setString("Calculating... (Esc to cancel)");
+        busy.setStringPainted(true);
+        busy.setVisible(false);
+        busyDelay.setRepeats(false);
+        add(busy, BorderLayout.SOUTH);
+
         // Add keyboard handler
         KeyboardFocusManager.getCurrentKeyboardFocusManager()
             .addKeyEventDispatcher(new KeyEventDispatcher() {
                 @Override
                 public boolean dispatchKeyEvent(KeyEvent e) {
+                    // Typing into a text field (plot formula, history search) is not keypad input
+                    if (e.getComponent() instanceof JTextComponent && ((JTextComponent) e.getComponent()).isEditable()) {
+                        return false;
+                    }
                     if (e.getID() == KeyEvent.KEY_PRESSED) {
-                        handleKeyPress(e);
+                        dispatchKey(e);
                     }
                     return false;
                 }
             });
 
-        applyTheme();
-        setSize(400, 600);
-        setLocationRelativeTo(null);
+        saveDelay.setRepeats(false);
+        keyFrame.setRepeats(false);
     }
 
-    private void handleKeyPress(KeyEvent e) {
-        char key = e.getKeyChar();
-        if (Character.isDigit(key) || "+-*/.()".indexOf(key) != -1) {
-            processInput(String.valueOf(key));
-        } else if (e.getKeyCode() == KeyEvent.VK_ENTER) {
-            processInput("=");
-        } else if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE) {
-            processBackspace();
-        } else if (e.getKeyCode() == KeyEvent.VK_ESCAPE) {
-            processInput("C");
+    // Shows the calculator in a window of its own; closing it saves the session and exits
+    public JFrame open() {
+        JFrame frame = new JFrame("Advanced Calculator");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setContentPane(this);
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                saveSession();
+            }
+        });
+        frame.setSize(400, 600);
+        frame.setLocationRelativeTo(null);
+        frame.setVisible(true);
+        return frame;
+    }
+
+    // The window's title and size follow the mode; without a window there is nothing to do
+    private void setTitle(String title) {
+        Window window = SwingUtilities.getWindowAncestor(this);
+        if (window instanceof Frame) ((Frame) window).setTitle(recording != null ? title + RECORDING_TITLE : title);
+    }
+
+    private void growWindow(int width, int height) {
+        Window window = SwingUtilities.getWindowAncestor(this);
+        if (window != null) window.setSize(window.getWidth() + width, window.getHeight() + height);
+    }
+
+    private static JButton key(String label, ActionListener action) {
+        JButton button = new JButton(label);
+        button.setFont(KEY_FONT);
+        button.addActionListener(action);
+        return button;
+    }
+
+    @Override
+    public void paint(Graphics g) {
+        super.paint(g);
+        if (painted) return;
+        painted = true;
+        openHistoryLog();
+        if (STARTUP_PROBE != null) reportStartup();
+    }
+
+    // Prints the time from the launch of the JVM and from main to the first paint
+    private static void reportStartup() {
+        long now = System.nanoTime();
+        long sinceMain = (now - mainStarted) / 1_000_000;
+        long sinceLaunch = ProcessHandle.current().info().startInstant()
+            .map(start -> System.currentTimeMillis() - start.toEpochMilli()).orElse(-1L);
+        System.err.println("startup: first paint " + sinceMain + " ms after main, " + sinceLaunch + " ms after launch");
+        if (STARTUP_PROBE.equals("exit")) System.exit(0);
+    }
+
+    // A key pressed on the keypad, the way a click on it arrives; for driving the
+    // calculator without a window. Call on the EDT.
+    void press(String key) {
+        clicked(key);
+    }
+
+    String displayText() {
+        return pendingDisplay != null ? pendingDisplay : display.getText();
+    }
+
+    // True once every key has been handled and no evaluation started by one is
+    // still on its way to the display
+    boolean settled() {
+        return typedKeys.isEmpty() && !evaluating();
+    }
+
+    private boolean evaluating() {
+        return pendingResult != null || partials > 0;
+    }
+
+    // Queues a macro's keys and handles them straight away rather than at the next
+    // frame, as fast as the evaluations they start come back. Call on the EDT.
+    void play(KeyMacro keys) {
+        typedKeys.addAll(keys.keys());
+        drainKeys();
+    }
+
+    private void dispatchKey(KeyEvent e) {
+        char c = e.getKeyChar();
+        String key = null;
+        if (c < CHAR_KEYS.length) {
+            key = programmerWord != null && PROGRAMMER_CHAR_KEYS[c] != null ? PROGRAMMER_CHAR_KEYS[c] : CHAR_KEYS[c];
         }
+        if (key == null) {
+            switch (e.getKeyCode()) {
+                case KeyEvent.VK_ENTER: key = "="; break;
+                case KeyEvent.VK_BACK_SPACE: key = "⌫"; break;
+                case KeyEvent.VK_ESCAPE: key = "Esc"; break;
+                case KeyEvent.VK_F9: toggleRecording(); return;
+                case KeyEvent.VK_F10: playMacro(); return;
+                default: return;
+            }
+        }
+        if (!handledAtOnce(key)) {
+            typedKeys.add(key);
+            if (!keyFrame.isRunning()) keyFrame.start();
+        }
+    }
+
+    // A click is handled at once, unless typed keys are still waiting to go first
+    // or an evaluation is on its way
+    private void clicked(String key) {
+        if (handledAtOnce(key)) return;
+        if (typedKeys.isEmpty() && !evaluating()) {
+            perform(key);
+        } else {
+            typedKeys.add(key);
+        }
+    }
+
+    // Keys that wait for nothing: C and Esc cancel what is waiting and in flight,
+    // and the window keys leave the calculation alone
+    private boolean handledAtOnce(String key) {
+        switch (key) {
+            case "C":
+            case "Esc":
+                typedKeys.clear();
+                perform(key);
+                return true;
+            case "Theme":
+            case "Scientific":
+            case "History":
+                perform(key);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Handles the waiting keys until one starts an evaluation; its result picks
+    // up the rest. The display is set once, at the end.
+    private void drainKeys() {
+        if (batching) return;
+        batching = true;
+        try {
+            while (!typedKeys.isEmpty() && !evaluating()) {
+                perform(typedKeys.poll());
+            }
+        } finally {
+            batching = false;
+            if (pendingDisplay != null) {
+                display.setText(pendingDisplay);
+                pendingDisplay = null;
+            }
+        }
+    }
+
+    // After the event that finished an evaluation, so its result is shown first
+    private void resumeKeys() {
+        if (!typedKeys.isEmpty()) SwingUtilities.invokeLater(this::drainKeys);
+    }
+
+    private void setDisplay(String text) {
+        if (batching) {
+            pendingDisplay = text;
+        } else {
+            display.setText(text);
+        }
+    }
+
+    // F9: starts recording, or stops and saves the recording on the saver thread
+    private void toggleRecording() {
+        Window window = SwingUtilities.getWindowAncestor(this);
+        String title = window instanceof Frame ? ((Frame) window).getTitle() : null;
+        if (recording == null) {
+            recording = new KeyMacro();
+            if (title != null) ((Frame) window).setTitle(title + RECORDING_TITLE);
+            return;
+        }
+        KeyMacro recorded = recording;
+        recording = null;
+        if (title != null && title.endsWith(RECORDING_TITLE)) {
+            ((Frame) window).setTitle(title.substring(0, title.length() - RECORDING_TITLE.length()));
+        }
+        if (recorded.isEmpty()) return;
+        macro = recorded;
+        Path file = macroFile();
+        SAVER.submit(() -> {
+            try {
+                recorded.write(file);
+            } catch (IOException e) {
+                // Still played back until the window closes
+            }
+        });
+    }
+
+    // F10: the last recording, or the saved one, read on the saver thread so a
+    // save still in progress finishes first
+    private void playMacro() {
+        if (recording != null) return;
+        if (macro != null) {
+            play(macro);
+            return;
+        }
+        Path file = macroFile();
+        SAVER.submit(() -> {
+            try {
+                KeyMacro saved = KeyMacro.read(file);
+                SwingUtilities.invokeLater(() -> {
+                    if (macro == null) macro = saved;
+                    play(saved);
+                });
+            } catch (IOException e) {
+                // Nothing recorded yet
+            }
+        });
+    }
+
+    private static Path macroFile() {
+        String file = System.getProperty("calculator.macro");
+        return file != null ? Paths.get(file) : historyDirectory().resolve("macro.txt");
+    }
+
+    // Every key goes through here, from a click, the keyboard or a macro
+    private void perform(String key) {
+        long started = Metrics.start();
+        if (recording != null) recording.add(key);
+        switch (key) {
+            case "MC":
+            case "MR":
+            case "M+":
+            case "M-":
+            case "MS":
+                handleMemoryOperation(key);
+                break;
+            case "Theme":
+                currentTheme = (currentTheme + 1) % themes.length;
+                applyTheme();
+                break;
+            case "Exact":
+                toggleExactMode();
+                break;
+            case "Scientific":
+                toggleScientific();
+                break;
+            case "Programmer":
+                toggleProgrammer();
+                break;
+            case "xʸ":
+                if (programmerWord == null) processInput("^");
+                break;
+            case "History":
+                showHistoryDialog();
+                break;
+            case "⌫":
+                processBackspace();
+                break;
+            case "C":
+                reset();
+                clearHistory();
+                break;
+            case "Esc":
+                // Like C, but the history stays
+                processInput("C");
+                break;
+            case "±":
+                negate();
+                break;
+            default:
+                processInput(key);
+                break;
+        }
+        Metrics.KEY.stop(started);
+    }
+
+    private void negate() {
+        if (isError || pendingResult != null || operandValue() == 0) return;
+        if (startNewNumber) {
+            // Negating a result makes it the number being entered
+            entry.setLength(0);
+            if (programmerWord != null) {
+                RadixFormat.digits(integerValue[0], integerValue[1], programmerWord, programmerRadix, entry);
+            } else {
+                entry.append(operandText());
+            }
+            startNewNumber = false;
+        }
+        if (entry.charAt(0) == '-') {
+            entry.deleteCharAt(0);
+        } else {
+            entry.insert(0, '-');
+        }
+        setDisplay(entry.toString());
     }
 
     private void processInput(String input) {
-        if (isError) {
+        long started = Metrics.start();
+        handleInput(input);
+        if (Metrics.ENABLED) {
+            Metrics.operator(input.length() == 1 && Character.isDigit(input.charAt(0)) ? "digit" : input).stop(started);
+        }
+    }
+
+    private void handleInput(String input) {
+        if (isError || pendingResult != null) {
             if (input.equals("C")) {
                 reset();
             }
             return;
         }
+        if (programmerWord != null && handleProgrammerInput(input)) {
+            return;
+        }
+
+        switch (input) {
+            case "0": case "1": case "2": case "3": case "4":
+            case "5": case "6": case "7": case "8": case "9":
+            case ".":
+                typeDigit(input);
+                break;
+            case "(":
+                startNewNumber = true;
+                expression.append("( ");
+                openParentheses++;
+                expectOperand = true;
+                operatorMark = -1;
+                break;
+            case ")":
+                if (openParentheses > 0 && commitOperand()) {
+                    expression.append(") ");
+                    openParentheses--;
+                    operandStart = groupStart();
+                }
+                break;
+            case "=":
+                if (!commitOperand()) return;
+                for (; openParentheses > 0; openParentheses--) {
+                    expression.append(") ");
+                }
+                String text = expression.toString().trim();
+                expression.setLength(0);
+                expectOperand = true;
+                operatorMark = -1;
+                evaluateResult(text);
+                break;
+            case "C":
+                reset();
+                break;
+            case "π":
+            case "e":
+                entry.setLength(0);
+                NumberCodec.format(input.equals("π") ? Math.PI : Math.E, entry);
+                setDisplay(entry.toString());
+                startNewNumber = false;
+                break;
+            case "+": case "-": case "*": case "/": case "%": case "^":
+                appendOperator(input);
+                break;
+            default:
+                String function = FUNCTION_KEYS.get(input);
+                if (function != null) applyFunction(function);
+                break;
+        }
+    }
+
+    private void typeDigit(String input) {
+        if (startNewNumber) {
+            entry.setLength(0);
+            entry.append(input.equals(".") ? "0." : input);
+            startNewNumber = false;
+        } else {
+            if (input.equals(".") && entry.indexOf(".") >= 0) {
+                return;
+            }
+            if (!input.equals(".") && entry.length() == 1 && entry.charAt(0) == '0') {
+                entry.setLength(0);
+            }
+            entry.append(input);
+        }
+        setDisplay(entry.toString());
+    }
 
-        if (input.matches("[0-9.]")) {
+    // Digits of the radix, the bitwise keys and NOT; the keys without an integer
+    // meaning (".", the scientific functions, π) are swallowed. Returns false for
+    // the keys that work as on the normal keypad.
+    private boolean handleProgrammerInput(String input) {
+        if (input.length() == 1 && Character.digit(input.charAt(0), programmerRadix) >= 0) {
             if (startNewNumber) {
-                display.setText(input);
+                entry.setLength(0);
                 startNewNumber = false;
-            } else {
-                if (input.equals(".") && display.getText().contains(".")) {
-                    return;
-                }
-                display.setText(display.getText() + input);
-            }
-            expression.append(input);
-        } else if (input.equals("(")) {
-            parenthesesStack.push(result);
-            operatorStack.push(lastOperation);
-            result = 0;
-            lastOperation = "=";
+            } else if (entry.length() == 1 && entry.charAt(0) == '0') {
+                entry.setLength(0);
+            }
+            entry.append(Character.toUpperCase(input.charAt(0)));
+            setDisplay(entry.toString());
+        } else if (BITWISE_KEYS.containsKey(input)) {
+            appendOperator(BITWISE_KEYS.get(input));
+        } else if (input.equals("NOT")) {
+            applyFunction("~");
+        } else if (!input.equals(".") && !input.equals("π") && !FUNCTION_KEYS.containsKey(input)
+                && !(input.length() == 1 && (Character.isDigit(input.charAt(0)) || Character.isLowerCase(input.charAt(0))))) {
+            return false;
+        }
+        return true;
+    }
+
+    private void applyFunction(String function) {
+        if (!startNewNumber) {
+            // Applied to the number just typed, e.g. 9 √
+            int mark = expression.length();
+            expression.append(function).append(' ').append(operandText()).append(' ');
+            startNewNumber = true;
+            expectOperand = false;
+            operatorMark = -1;
+            operandStart = mark;
+            showPartial(expression.substring(mark));
+        } else if (!expectOperand) {
+            // Applied to the operand just completed, e.g. (9 + 7) √ or 9 √ √
+            if (operandStart < 0) return;
+            expression.insert(operandStart, function + " ");
+            showPartial(expression.substring(operandStart));
+        } else {
+            // Applied to the number typed next, e.g. √ 9
+            expression.append(function).append(' ');
+            expectOperand = true;
+            operatorMark = -1;
+        }
+    }
+
+    private void appendOperator(String operator) {
+        if (startNewNumber && expectOperand && operatorMark >= 0) {
+            // Two operators in a row replace each other
+            expression.setLength(operatorMark);
+        } else if (!commitOperand()) {
+            return;
+        }
+        if (operator.equals("^") && operandStart >= 0 && Character.isLetter(expression.charAt(operandStart))) {
+            // A function key result is one operand too, where ^ would bind inside it
+            expression.insert(operandStart, "( ").append(") ");
+        }
+        operatorMark = expression.length();
+        expression.append(operator).append(' ');
+        expectOperand = true;
+    }
+
+    // Moves the number on the display into the expression. Returns false when the
+    // expression is still waiting for an operand that has not been entered.
+    private boolean commitOperand() {
+        if (!startNewNumber) {
+            operandStart = expression.length();
+            expression.append(operandText());
             startNewNumber = true;
-            expression.append(" ( ");
-        } else if (input.equals(")")) {
-            if (!parenthesesStack.isEmpty()) {
-                calculate(Double.parseDouble(display.getText()));
-                double innerResult = result;
-                result = parenthesesStack.pop();
-                lastOperation = operatorStack.pop();
-                calculate(innerResult);
-                display.setText(formatter.format(result));
-                expression.append(" ) ");
+        } else if (expectOperand) {
+            if (expression.length() > 0) return false;
+            // Continue from the previous result
+            operandStart = 0;
+            if (programmerWord != null) {
+                RadixFormat.format(integerResult[0], integerResult[1], programmerWord, programmerRadix, expression);
+            } else if (exactResult != null) {
+                NumberCodec.format(exactResult, expression);
+            } else {
+                NumberCodec.format(result, expression);
             }
         } else {
-            if (!startNewNumber) {
-                calculate(Double.parseDouble(display.getText()));
-                startNewNumber = true;
+            expectOperand = false;
+            operatorMark = -1;
+            return true;
+        }
+        // A negative number is one operand: -3 xʸ 2 is 9, not -(3^2)
+        if (expression.charAt(operandStart) == '-') {
+            expression.insert(operandStart, "( ").append(" )");
+        }
+        expression.append(' ');
+        expectOperand = false;
+        operatorMark = -1;
+        return true;
+    }
+
+    // The "(" the expression's last ")" closes
+    private int groupStart() {
+        int depth = 0;
+        for (int i = expression.length() - 1; i >= 0; i--) {
+            char c = expression.charAt(i);
+            if (c == ')') {
+                depth++;
+            } else if (c == '(' && --depth == 0) {
+                return i;
             }
-            lastOperation = input;
-            if (input.equals("=")) {
-                addToHistory(expression.toString() + " = " + formatter.format(result));
-                expression.setLength(0);
-            } else if (!input.equals("C")) {
-                expression.append(" ").append(input).append(" ");
+        }
+        return -1;
+    }
+
+    private String operandText() {
+        if (programmerWord != null) {
+            if (startNewNumber) {
+                return RadixFormat.format(integerValue[0], integerValue[1], programmerWord, programmerRadix, new StringBuilder()).toString();
             }
+            // The typed digits, behind the sign ± may have added
+            boolean negative = entry.charAt(0) == '-';
+            return (negative ? "-" : "") + RadixFormat.prefix(programmerRadix) + entry.substring(negative ? 1 : 0);
+        }
+        if (!startNewNumber) return entry.toString();
+        return exactValue != null ? NumberCodec.format(exactValue, new StringBuilder()).toString()
+            : NumberCodec.format(displayValue);
+    }
+
+    private double operandValue() {
+        if (programmerWord != null) {
+            long[] value = integerOperand();
+            return programmerWord.toDouble(value[0], value[1]);
         }
+        return startNewNumber ? displayValue : NumberCodec.parse(entry);
     }
 
+    private void showValue(double value) {
+        displayValue = value;
+        exactValue = null;
+        long started = Metrics.start();
+        String text = NumberCodec.formatGrouped(value);
+        Metrics.FORMAT.stop(started);
+        setDisplay(text);
+    }
+
+    // The number on the display as an integer of the programmer word
+    private long[] integerOperand() {
+        if (startNewNumber) return integerValue;
+        long[] value = new long[2];
+        IntegerEvaluator.compile(operandText(), programmerWord).evaluate(new LongStack(), new long[0], value);
+        return value;
+    }
+
+    private void showInteger(long[] value) {
+        integerValue = value;
+        displayValue = programmerWord.toDouble(value[0], value[1]);
+        exactValue = null;
+        long started = Metrics.start();
+        String text = RadixFormat.formatGrouped(value[0], value[1], programmerWord, programmerRadix);
+        Metrics.FORMAT.stop(started);
+        setDisplay(text);
+    }
+
+    private void showExact(BigDecimal value) {
+        displayValue = value.doubleValue();
+        exactValue = value;
+        long started = Metrics.start();
+        String text = NumberCodec.formatGrouped(value);
+        Metrics.FORMAT.stop(started);
+        setDisplay(text);
+    }
+
+    // Shows the value of a function applied to the number just typed. Typing on
+    // before it arrives discards it.
+    private void showPartial(String text) {
+        int ticket = ++generation;
+        MathContext context = exactContext;
+        boolean fast = fastFunctions;
+        IntegerExpression.Word word = programmerWord;
+        partials++;
+        EVALUATOR.submit(() -> {
+            Object value = evaluate(text, context, fast, word);
+            SwingUtilities.invokeLater(() -> {
+                partials--;
+                if (ticket == generation && startNewNumber && word == programmerWord) {
+                    if (value instanceof long[]) {
+                        showInteger((long[]) value);
+                    } else if (value instanceof BigDecimal) {
+                        showExact((BigDecimal) value);
+                    } else if (value instanceof Double) {
+                        showValue((Double) value);
+                    }
+                    // An error is reported by the full expression on "="
+                }
+                if (partials == 0) resumeKeys();
+            });
+        });
+    }
+
+    // Evaluates the expression for "=" on the worker, then shows the result and
+    // records it in the history on the EDT
+    private void evaluateResult(String text) {
+        int ticket = ++generation;
+        MathContext context = exactContext;
+        boolean fast = fastFunctions;
+        IntegerExpression.Word word = programmerWord;
+        busyDelay.restart();
+        pendingResult = EVALUATOR.submit(() -> {
+            Object value = evaluate(text, context, fast, word);
+            SwingUtilities.invokeLater(() -> {
+                if (ticket == generation) showResult(text, value);
+            });
+        });
+    }
+
+    // Runs on the worker. Returns a BigDecimal, a Double or the high and low long of
+    // an integer in programmer mode, or the exception that the display turns into
+    // "Not applicable" or "Error".
+    private static Object evaluate(String text, MathContext context, boolean fast, IntegerExpression.Word word) {
+        long started = Metrics.start();
+        try {
+            if (word != null) {
+                long[] value = new long[2];
+                IntegerEvaluator.compile(text, word).evaluate(new LongStack(), new long[0], value);
+                return value;
+            }
+            CompiledExpression compiled = ExpressionCache.shared().get(text);
+            if (context != null) return compiled.evaluate(context);
+            return fast ? compiled.fast().evaluate() : compiled.evaluate();
+        } catch (RuntimeException ex) {
+            return ex;
+        } finally {
+            Metrics.EVALUATE.stop(started);
+        }
+    }
+
+    private void showResult(String text, Object value) {
+        finishEvaluation();
+        if (value instanceof long[]) {
+            integerResult = (long[]) value;
+            exactResult = null;
+            result = programmerWord.toDouble(integerResult[0], integerResult[1]);
+            showInteger(integerResult);
+            addToHistory(text + " = " + displayText(), result);
+        } else if (value instanceof BigDecimal) {
+            exactResult = (BigDecimal) value;
+            result = exactResult.doubleValue();
+            showExact(exactResult);
+            addToHistory(text + " = " + NumberCodec.formatGrouped(exactResult), result);
+        } else if (value instanceof Double) {
+            exactResult = null;
+            result = (Double) value;
+            showValue(result);
+            addToHistory(text + " = " + NumberCodec.formatGrouped(result), result);
+        } else {
+            setDisplay(value instanceof ArithmeticException ? "Not applicable" : "Error");
+            isError = true;
+        }
+    }
+
+    // Cancels an evaluation in flight (Esc or C) and hides the busy indicator
+    private void cancelEvaluation() {
+        generation++;
+        if (pendingResult != null) pendingResult.cancel(true);
+        finishEvaluation();
+    }
+
+    private void finishEvaluation() {
+        pendingResult = null;
+        busyDelay.stop();
+        busy.setVisible(false);
+        resumeKeys();
+    }
+
+    // Taking back the last digit leaves a 0 that the next digit replaces; the 0 is
+    // still the number being typed, so an operator applies to it rather than to the
+    // previous result
     private void processBackspace() {
         if (isError || startNewNumber) return;
-        String currentText = display.getText();
-        if (currentText.length() > 1) {
-            display.setText(currentText.substring(0, currentText.length() - 1));
+        entry.setLength(entry.length() - 1);
+        if (entry.length() == 0 || (entry.length() == 1 && entry.charAt(0) == '-')) {
+            entry.setLength(0);
+            entry.append('0');
+        }
+        setDisplay(entry.toString());
+    }
+
+    private void addToHistory(String entry, double value) {
+        int dropped = calculationHistory.add(entry);
+        historyModel.added(dropped);
+        updateHistory(entry);
+        saveDelay.restart();
+        if (unloggedEntries != null) {
+            unloggedEntries.add(entry);
+            unloggedValues.add(value);
+        } else if (historyLog != null) {
+            try {
+                historyLog.append(entry, value);
+            } catch (IOException e) {
+                historyLogFailed(e);
+            }
+        }
+    }
+
+    // The log rolls over on its own when full, so this is a disk error; the session
+    // goes on with the in-memory history only
+    private void historyLogFailed(IOException e) {
+        HistoryLog log = historyLog;
+        historyLog = null;
+        // Closing flushes the mappings, which is disk work for the worker
+        EVALUATOR.submit(() -> {
+            try {
+                log.close();
+            } catch (IOException | RuntimeException ignored) {
+                // Already failing; close releases the channels either way
+            }
+        });
+        warnHistory("History is no longer being saved:\n" + e.getMessage());
+    }
+
+    private void warnHistory(String message) {
+        JOptionPane.showMessageDialog(this, message, "History", JOptionPane.WARNING_MESSAGE);
+    }
+
+    private static Path historyDirectory() {
+        return Paths.get(System.getProperty("calculator.history.dir",
+            Paths.get(System.getProperty("user.home"), ".calculator").toString()));
+    }
+
+    private static Path sessionFile() {
+        String file = System.getProperty("calculator.session");
+        return file != null ? Paths.get(file) : historyDirectory().resolve("session.bin");
+    }
+
+    // Opens the persistent log (-Dcalculator.history.dir, default ~/.calculator) and
+    // reads the saved session on the worker, then shows them. Only the tail of the
+    // log is read, whatever its size.
+    private void openHistoryLog() {
+        Path directory = historyDirectory();
+        Path sessionFile = sessionFile();
+        EVALUATOR.submit(() -> {
+            HistoryLog log;
+            List<HistoryLog.Entry> tail;
+            Exception failure = null;
+            try {
+                log = HistoryLog.open(directory);
+                tail = log.tail(Math.min(HISTORY_LIMIT, 1000));
+            } catch (IOException | RuntimeException e) {
+                log = null;
+                tail = List.of();
+                failure = e;
+            }
+            SessionSnapshot session;
+            try {
+                session = Files.exists(sessionFile) ? SessionSnapshot.read(sessionFile, HISTORY_LIMIT) : null;
+            } catch (IOException e) {
+                session = null;
+            }
+            HistoryLog opened = log;
+            List<HistoryLog.Entry> entries = tail;
+            SessionSnapshot saved = session;
+            Exception problem = failure;
+            SwingUtilities.invokeLater(() -> {
+                // Another calculator on the same directory, say; this one keeps its
+                // history in memory only
+                historyLogOpened(opened, entries, saved);
+                if (problem != null) warnHistory("History is not being saved:\n" + problem.getMessage());
+            });
+        });
+    }
+
+    // On the EDT: a saved session is taken up when nothing has been done yet;
+    // otherwise the logged entries go before anything done while the log opened
+    private void historyLogOpened(HistoryLog log, List<HistoryLog.Entry> tail, SessionSnapshot session) {
+        List<String> made = unloggedEntries;
+        List<Double> values = unloggedValues;
+        unloggedEntries = null;
+        unloggedValues = null;
+        historyLog = log;
+        if (session != null && made.isEmpty() && startNewNumber && expression.length() == 0
+                && !isError && pendingResult == null && exactContext == null && programmerWord == null) {
+            restoreSession(session);
+            return;
+        }
+        if (tail.isEmpty() && made.isEmpty()) return;
+        clearHistory();
+        for (HistoryLog.Entry entry : tail) {
+            historyModel.added(calculationHistory.add(entry.text));
+            updateHistory(entry.text);
+        }
+        for (int i = 0; i < made.size(); i++) addToHistory(made.get(i), values.get(i));
+    }
+
+    // Everything SessionSnapshot keeps, copied so it can be written on another thread
+    private SessionSnapshot captureSession() {
+        SessionSnapshot session = new SessionSnapshot();
+        session.result = result;
+        session.exactResult = exactResult;
+        session.precision = exactContext == null ? 0 : exactContext.getPrecision();
+        session.expression = expression.toString();
+        session.entry = startNewNumber || isError ? null : entry.toString();
+        session.openParentheses = openParentheses;
+        session.operatorMark = operatorMark;
+        session.expectOperand = expectOperand;
+        session.theme = currentTheme;
+        session.fastFunctions = fastFunctions;
+        session.word = programmerWord;
+        session.radix = programmerRadix;
+        session.integerHigh = integerResult[0];
+        session.integerLow = integerResult[1];
+        session.memoryHigh = integerMemory[0];
+        session.memoryLow = integerMemory[1];
+        session.memory = memory.copy();
+        session.history = calculationHistory.copy();
+        return session;
+    }
+
+    // Not before the saved session has been read, which would overwrite it
+    private void saveSession() {
+        saveDelay.stop();
+        if (unloggedEntries != null) return;
+        SessionSnapshot session = captureSession();
+        Path file = sessionFile();
+        SAVER.submit(() -> {
+            try {
+                session.write(file);
+            } catch (IOException e) {
+                // Keep the previous snapshot; the log still has every entry
+            }
+        });
+    }
+
+    private void restoreSession(SessionSnapshot session) {
+        currentTheme = Math.floorMod(session.theme, themes.length);
+        fastFunctions = session.fastFunctions;
+        if (session.precision > 0) {
+            exactContext = new MathContext(session.precision);
+            setTitle("Advanced Calculator (exact)");
+        }
+        if (session.word != null) {
+            chosenWord = session.word;
+            programmerRadix = session.radix;
+            toggleProgrammer();
+        }
+        applyTheme();
+        memory = session.memory;
+        historyModel.removed(calculationHistory.size());
+        calculationHistory = session.history;
+        historyModel.restored(calculationHistory.size());
+        history.setText("");
+        for (int i = Math.max(0, calculationHistory.size() - RECENT_LINES); i < calculationHistory.size(); i++) {
+            updateHistory(calculationHistory.get(i));
+        }
+
+        result = session.result;
+        exactResult = exactContext != null ? session.exactResult : null;
+        integerResult = new long[] {session.integerHigh, session.integerLow};
+        integerMemory = new long[] {session.memoryHigh, session.memoryLow};
+        expression.append(session.expression);
+        openParentheses = session.openParentheses;
+        operatorMark = session.operatorMark;
+        expectOperand = session.expectOperand;
+        if (programmerWord != null) {
+            showInteger(integerResult);
+        } else if (exactResult != null) {
+            showExact(exactResult);
         } else {
-            display.setText("0");
-            startNewNumber = true;
+            showValue(result);
+        }
+        if (session.entry != null) {
+            entry.setLength(0);
+            entry.append(session.entry);
+            startNewNumber = false;
+            setDisplay(entry.toString());
         }
     }
 
-    private void calculate(double number) {
+    // Appends the new line to the history area and trims the oldest line, instead of
+    // re-rendering the whole text on every entry
+    private void updateHistory(String entry) {
+        long started = Metrics.start();
+        Document document = history.getDocument();
         try {
-            switch (lastOperation) {
-                case "+":
-                    result += number;// result = result + number
-                    break;
-                case "-":
-                    result -= number;
-                    break;
-                case "*":
-                    result *= number;
-                    break;
-                case "/":
-                    if (number == 0) throw new ArithmeticException("Division by zero");
-                    result /= number;
-                    break;
-                case "√":
-                    if (number < 0) throw new ArithmeticException("Invalid square root");
-                    result = Math.sqrt(number);
-                    break;
-                case "x²":
-                    result = Math.pow(number, 2);
-                    break;
-                case "%":
-                    result = result * (number / 100);
-                    break;
-                case "1/x":
-                    if (number == 0) throw new ArithmeticException("Division by zero");
-                    result = 1 / number;
-                    break;
-                case "=":
-                    result = number;
-                    break;
+            document.insertString(document.getLength(), entry + "\n", null);
+            while (document.getDefaultRootElement().getElementCount() > RECENT_LINES + 1) {
+                int firstLineEnd = document.getDefaultRootElement().getElement(0).getEndOffset();
+                document.remove(0, firstLineEnd);
             }
-            display.setText(formatter.format(result));
-        } catch (Exception ex) {
-            display.setText("Not applicable");
-            isError = true;
+        } catch (BadLocationException e) {
+            history.setText(entry + "\n");
+        }
+        Metrics.HISTORY.stop(started);
+    }
+
+    private void clearHistory() {
+        int size = calculationHistory.size();
+        calculationHistory.clear();
+        historyModel.removed(size);
+        history.setText("");
+    }
+
+    // Full history in a list that only renders the rows in view, so it can page
+    // through any number of entries. The search field queries the persistent log:
+    // a number finds entries with that result, anything else matches the text.
+    private void showHistoryDialog() {
+        if (historyDialog == null) {
+            JList<String> list = new JList<>(historyModel);
+            list.setPrototypeCellValue("12,345,678.9 + 12,345,678.9 = 24,691,357.8");
+            list.setFont(history.getFont());
+            JTextField search = new JTextField();
+            search.setToolTipText("Search all saved history by result or text");
+            search.addActionListener(e -> {
+                String query = search.getText().trim();
+                HistoryLog log = historyLog;
+                int ticket = ++searches;
+                if (query.isEmpty() || log == null) {
+                    list.setModel(historyModel);
+                    return;
+                }
+                // The log is read on the worker; a newer search discards the results
+                EVALUATOR.submit(() -> {
+                    DefaultListModel<String> results = new DefaultListModel<>();
+                    for (HistoryLog.Entry entry : searchHistory(log, query)) {
+                        results.addElement(entry.text);
+                    }
+                    SwingUtilities.invokeLater(() -> {
+                        if (ticket == searches) list.setModel(results);
+                    });
+                });
+            });
+            historyDialog = new JDialog(SwingUtilities.getWindowAncestor(this), "History");
+            historyDialog.add(search, BorderLayout.NORTH);
+            historyDialog.add(new JScrollPane(list));
+            historyDialog.setSize(400, 400);
+            historyDialog.setLocationRelativeTo(this);
+        }
+        historyDialog.setVisible(true);
+    }
+
+    // Switches between double and decimal arithmetic for this session. The number
+    // of significant digits comes from -Dcalculator.precision (default 34).
+    private void toggleExactMode() {
+        if (exactContext == null) {
+            exactContext = new MathContext(Integer.getInteger("calculator.precision", 34));
+            setTitle("Advanced Calculator (exact)");
+        } else {
+            exactContext = null;
+            setTitle("Advanced Calculator");
+        }
+        reset();
+    }
+
+    // Shows or hides the scientific keys beside the keypad
+    private void toggleScientific() {
+        if (scientificPanel == null) {
+            JPanel keys = new JPanel(new GridLayout(7, 2, 5, 5));
+            String[] labels = {
+                "sin", "sinh", "cos", "cosh", "tan", "tanh",
+                "ln", "log", "eˣ", "xʸ", "n!", "Γ", "π", "e"
+            };
+            for (String label : labels) {
+                JButton button = key(label, keyListener);
+                if (label.equals("xʸ")) powerKey = button;
+                keys.add(button);
+            }
+            powerKey.setEnabled(programmerWord == null);
+            JCheckBox fast = new JCheckBox("Fast functions", fastFunctions);
+            fast.setToolTipText("Faster sin, ln, x^y, ... that may be off by a few units in the last place");
+            fast.addActionListener(e -> fastFunctions = fast.isSelected());
+            JButton plot = key("Plot", e -> togglePlot());
+            scientificPanel = new JPanel(new BorderLayout(5, 5));
+            scientificPanel.add(fast, BorderLayout.NORTH);
+            scientificPanel.add(plot, BorderLayout.CENTER);
+            scientificPanel.add(keys, BorderLayout.SOUTH);
+            scientificPanel.setVisible(false);
+            add(scientificPanel, BorderLayout.EAST);
+            applyTheme();
         }
+        boolean show = !scientificPanel.isVisible();
+        scientificPanel.setVisible(show);
+        growWindow(show ? 180 : -180, 0);
+        revalidate();
     }
 
-    private void addToHistory(String entry) {
-        calculationHistory.add(entry);
-        updateHistory();
+    // Switches the keypad to integer arithmetic and shows the base, word and bitwise
+    // keys above the display, or back to doubles
+    private void toggleProgrammer() {
+        if (programmerPanel == null) {
+            JPanel bases = new JPanel(new GridLayout(1, 5, 5, 5));
+            ButtonGroup group = new ButtonGroup();
+            String[] names = {"HEX", "DEC", "OCT", "BIN"};
+            int[] radixes = {16, 10, 8, 2};
+            for (int i = 0; i < names.length; i++) {
+                int radix = radixes[i];
+                JRadioButton base = new JRadioButton(names[i], radix == programmerRadix);
+                base.setFont(KEY_FONT);
+                base.addActionListener(e -> setRadix(radix));
+                group.add(base);
+                bases.add(base);
+            }
+            JComboBox<IntegerExpression.Word> words = new JComboBox<>(IntegerExpression.Word.values());
+            words.setToolTipText("Word size: signed or unsigned, 64 or 128 bits");
+            words.setSelectedItem(chosenWord);
+            words.addActionListener(e -> {
+                chosenWord = (IntegerExpression.Word) words.getSelectedItem();
+                if (programmerWord == null) return;
+                programmerWord = chosenWord;
+                reset();
+            });
+            bases.add(words);
+            JPanel keys = new JPanel(new GridLayout(2, 8, 5, 5));
+            for (char digit = 'A'; digit <= 'F'; digit++) {
+                String input = String.valueOf(Character.toLowerCase(digit));
+                keys.add(key(String.valueOf(digit), e -> clicked(input)));
+            }
+            String[] labels = {"NOT", "AND", "OR", "XOR", "<<", ">>", ">>>", "ROL", "ROR", "MOD"};
+            for (String label : labels) {
+                keys.add(key(label, keyListener));
+            }
+            programmerPanel = new JPanel(new BorderLayout(5, 5));
+            programmerPanel.add(bases, BorderLayout.NORTH);
+            programmerPanel.add(keys, BorderLayout.CENTER);
+            programmerPanel.setVisible(false);
+            add(programmerPanel, BorderLayout.NORTH);
+            applyTheme();
+        }
+        boolean show = !programmerPanel.isVisible();
+        programmerPanel.setVisible(show);
+        programmerWord = show ? chosenWord : null;
+        if (powerKey != null) powerKey.setEnabled(!show);
+        setTitle(show ? "Advanced Calculator (programmer)" : exactContext != null ? "Advanced Calculator (exact)" : "Advanced Calculator");
+        reset();
+        growWindow(0, show ? 100 : -100);
+        revalidate();
+    }
+
+    // Shows the number on the display, typed or not, in another radix
+    private void setRadix(int radix) {
+        if (radix == programmerRadix || programmerWord == null) return;
+        if (isError || startNewNumber) {
+            programmerRadix = radix;
+            if (!isError) showInteger(integerValue);
+            return;
+        }
+        long[] value = integerOperand();
+        programmerRadix = radix;
+        entry.setLength(0);
+        RadixFormat.digits(value[0], value[1], programmerWord, programmerRadix, entry);
+        setDisplay(entry.toString());
+    }
+
+    // Shows or hides the function plot on the left of the keypad
+    private void togglePlot() {
+        if (plotArea == null) {
+            PlotPanel plot = PlotPanel.create();
+            JTextField formula = new JTextField("sin x");
+            formula.setFont(KEY_FONT);
+            formula.setToolTipText("Function of one variable; Enter plots it. Drag to pan, wheel to zoom.");
+            formula.addActionListener(e -> {
+                try {
+                    plot.plot(formula.getText());
+                    formula.setForeground(display.getForeground());
+                } catch (IllegalArgumentException ex) {
+                    formula.setForeground(Color.RED);
+                    formula.setToolTipText(ex.getMessage());
+                }
+            });
+            plot.plot(formula.getText());
+            JPanel solve = new JPanel(new GridLayout(1, 3, 5, 5));
+            String[] actions = {"Roots", "∫ dx", "Min"};
+            for (String action : actions) {
+                JButton button = key(action, e -> solveVisible(plot, action));
+                button.setToolTipText(action + " over the visible range");
+                solve.add(button);
+            }
+            plotArea = new JPanel(new BorderLayout(5, 5));
+            plotArea.add(formula, BorderLayout.NORTH);
+            plotArea.add(plot, BorderLayout.CENTER);
+            plotArea.add(solve, BorderLayout.SOUTH);
+            plotArea.setVisible(false);
+            add(plotArea, BorderLayout.WEST);
+            applyTheme();
+        }
+        boolean show = !plotArea.isVisible();
+        plotArea.setVisible(show);
+        growWindow(show ? 360 : -360, 0);
+        revalidate();
+    }
+
+    // Finds the roots, the integral or the minimum of the plotted function over the
+    // visible x range on the worker; the answer becomes the current operand and goes
+    // into the history. Like "=", it holds the keys, Esc cancels it and a later
+    // evaluation discards it. The answer is a double, so it is not offered while a
+    // programmer word is active.
+    private void solveVisible(PlotPanel plot, String action) {
+        CompiledExpression f = plot.function();
+        if (f == null || pendingResult != null || programmerWord != null) return;
+        double a = plot.left();
+        double b = plot.right();
+        String range = " on [" + NumberCodec.formatGrouped(a) + ", " + NumberCodec.formatGrouped(b) + "]";
+        int ticket = ++generation;
+        busyDelay.restart();
+        pendingResult = EVALUATOR.submit(() -> {
+            String text;
+            double value;
+            try {
+                switch (action) {
+                    case "Roots":
+                        double[] roots = NumericSolver.roots(f, a, b);
+                        StringBuilder list = new StringBuilder();
+                        for (double root : roots) {
+                            if (list.length() > 0) list.append(", ");
+                            list.append(NumberCodec.formatGrouped(root));
+                        }
+                        text = f.source() + " = 0" + range + (roots.length == 0 ? ": no roots" : " at " + list);
+                        value = roots.length == 0 ? Double.NaN : roots[0];
+                        break;
+                    case "Min":
+                        value = NumericSolver.minimize(f, a, b);
+                        text = "Minimum of " + f.source() + range + " at " + NumberCodec.formatGrouped(value);
+                        break;
+                    default:
+                        value = NumericSolver.integrate(f, a, b);
+                        text = "∫ " + f.source() + range + " = " + NumberCodec.formatGrouped(value);
+                        break;
+                }
+            } catch (RuntimeException ex) {
+                text = null;
+                value = Double.NaN;
+            }
+            String entryText = text;
+            double answer = value;
+            SwingUtilities.invokeLater(() -> {
+                if (ticket != generation) return;
+                finishEvaluation();
+                if (entryText == null) {
+                    setDisplay("Not applicable");
+                    isError = true;
+                    return;
+                }
+                addToHistory(entryText, answer);
+                if (answer != answer) return;
+                entry.setLength(0);
+                NumberCodec.format(answer, entry);
+                setDisplay(NumberCodec.formatGrouped(answer));
+                startNewNumber = false;
+            });
+        });
     }
 
-    private void updateHistory() {
-        StringBuilder sb = new StringBuilder();
-        int start = Math.max(0, calculationHistory.size() - 5);
-        for (int i = start; i < calculationHistory.size(); i++) {
-            sb.append(calculationHistory.get(i)).append("\n");
+    private static List<HistoryLog.Entry> searchHistory(HistoryLog log, String query) {
+        try {
+            return log.findByResult(NumberCodec.parse(query), 1000);
+        } catch (NumberFormatException e) {
+            return log.findBySubstring(query, 1000);
         }
-        history.setText(sb.toString());
     }
 
     private void reset() {
+        cancelEvaluation();
         result = 0;
-        lastOperation = "=";
+        exactResult = null;
         startNewNumber = true;
-        display.setText("0");
+        expectOperand = true;
+        openParentheses = 0;
+        operatorMark = -1;
+        operandStart = -1;
+        integerResult = new long[2];
+        showZero();
         isError = false;
-        parenthesesStack.clear();
-        operatorStack.clear();
         expression.setLength(0);
     }
 
+    private void showZero() {
+        if (programmerWord != null) {
+            showInteger(new long[2]);
+        } else {
+            showValue(0);
+        }
+    }
+
     private void handleMemoryOperation(String operation) {
+        if (pendingResult != null) return;
         try {
-            double displayValue = Double.parseDouble(display.getText());
+            if (programmerWord != null) {
+                handleIntegerMemory(operation);
+                return;
+            }
+            double value = operandValue();
+            MemoryBank.Register register = memory.defaultRegister();
             switch (operation) {
                 case "MC":
-                    memory = 0;
-                    addToHistory("Memory Cleared");
+                    register.clear();
+                    addToHistory("Memory Cleared", Double.NaN);
                     break;
                 case "MR":
-                    display.setText(formatter.format(memory));
+                    double recalled = register.value();
+                    entry.setLength(0);
+                    NumberCodec.format(recalled, entry);
+                    setDisplay(NumberCodec.formatGrouped(recalled));
                     startNewNumber = false;
-                    addToHistory("Memory Recall: " + formatter.format(memory));
+                    addToHistory("Memory Recall: " + NumberCodec.formatGrouped(recalled) + memoryStatistics(register), recalled);
                     break;
                 case "M+":
-                    memory += displayValue;
+                    register.add(value);
+                    showValue(value);
                     startNewNumber = true;
-                    addToHistory("Memory + " + formatter.format(displayValue));
+                    addToHistory("Memory + " + NumberCodec.formatGrouped(value), value);
                     break;
                 case "M-":
-                    memory -= displayValue;
+                    register.add(-value);
+                    showValue(value);
                     startNewNumber = true;
-                    addToHistory("Memory - " + formatter.format(displayValue));
+                    addToHistory("Memory - " + NumberCodec.formatGrouped(value), value);
                     break;
                 case "MS":
-                    memory = displayValue;
+                    register.store(value);
+                    showValue(value);
                     startNewNumber = true;
-                    addToHistory("Memory Store: " + formatter.format(displayValue));
+                    addToHistory("Memory Store: " + NumberCodec.formatGrouped(value), value);
                     break;
             }
         } catch (Exception e) {
-            display.setText("Error");
+            setDisplay("Error");
             isError = true;
         }
     }
 
+    // The memory keys in programmer mode, on integerMemory with the word's wraparound
+    private void handleIntegerMemory(String operation) {
+        long[] value = integerOperand();
+        String shown = RadixFormat.formatGrouped(value[0], value[1], programmerWord, programmerRadix);
+        double approximate = programmerWord.toDouble(value[0], value[1]);
+        switch (operation) {
+            case "MC":
+                integerMemory = new long[2];
+                addToHistory("Memory Cleared", Double.NaN);
+                return;
+            case "MR":
+                // The word may have changed since the value was stored
+                long[] recalled = toWord(programmerWord, integerMemory[0], integerMemory[1]);
+                entry.setLength(0);
+                RadixFormat.digits(recalled[0], recalled[1], programmerWord, programmerRadix, entry);
+                setDisplay(entry.toString());
+                startNewNumber = false;
+                addToHistory("Memory Recall: " + RadixFormat.formatGrouped(recalled[0], recalled[1], programmerWord, programmerRadix),
+                    programmerWord.toDouble(recalled[0], recalled[1]));
+                return;
+            case "M+":
+            case "M-": {
+                boolean add = operation.equals("M+");
+                long low = add ? integerMemory[1] + value[1] : integerMemory[1] - value[1];
+                long carry = add ? (Long.compareUnsigned(low, value[1]) < 0 ? 1 : 0)
+                    : (Long.compareUnsigned(integerMemory[1], value[1]) < 0 ? -1 : 0);
+                long high = (add ? integerMemory[0] + value[0] : integerMemory[0] - value[0]) + carry;
+                integerMemory = toWord(programmerWord, high, low);
+                addToHistory("Memory " + (add ? "+ " : "- ") + shown, approximate);
+                break;
+            }
+            default:
+                integerMemory = value.clone();
+                addToHistory("Memory Store: " + shown, approximate);
+                break;
+        }
+        showInteger(value);
+        startNewNumber = true;
+    }
+
+    // high:low cut to the word the way the integer operators leave their results
+    private static long[] toWord(IntegerExpression.Word word, long high, long low) {
+        if (word.wide()) return new long[] {high, low};
+        return new long[] {word.signed() ? low >> 63 : 0, low};
+    }
+
+    // Count, mean and spread of the values tallied into a register since the last MC/MS
+    private static String memoryStatistics(MemoryBank.Register register) {
+        if (register.count() < 2) return "";
+        return " (n=" + register.count() + ", mean " + NumberCodec.formatGrouped(register.mean())
+            + ", sd " + NumberCodec.formatGrouped(register.standardDeviation()) + ")";
+    }
+
+    // Timed up to the repaint request; the repaint itself runs later on the EDT
     private void applyTheme() {
+        long started = Metrics.start();
         Color bgColor = themes[currentTheme];
-        Color fgColor = (currentTheme == 1) ? Color.WHITE : Color.BLACK;
-        
-        Container container = getContentPane();
-        container.setBackground(bgColor);
+        Color keyColor = bgColor.brighter();
+        Color fgColor = foreground();
+
+        setBackground(bgColor);
         display.setBackground(bgColor);
         display.setForeground(fgColor);
         history.setBackground(bgColor);
         history.setForeground(fgColor);
         
-        for (Component comp : container.getComponents()) {
-            updateComponentColors(comp, bgColor, fgColor);
+        for (Component comp : getComponents()) {
+            updateComponentColors(comp, bgColor, keyColor, fgColor);
         }
+        Metrics.THEME.stop(started);
+    }
+
+    private Color foreground() {
+        return currentTheme == 1 ? Color.WHITE : Color.BLACK;
     }
 
-    private void updateComponentColors(Component comp, Color bgColor, Color fgColor) {
+    private void updateComponentColors(Component comp, Color bgColor, Color keyColor, Color fgColor) {
         if (comp instanceof JPanel) {
             comp.setBackground(bgColor);
             for (Component child : ((JPanel)comp).getComponents()) {
-                updateComponentColors(child, bgColor, fgColor);
+                updateComponentColors(child, bgColor, keyColor, fgColor);
             }
-        } else if (comp instanceof JButton) {
-            comp.setBackground(bgColor.brighter());
+        } else if (comp instanceof AbstractButton) {
+            comp.setBackground(keyColor);
+            comp.setForeground(fgColor);
+        } else if (comp instanceof PlotPanel) {
+            comp.setBackground(keyColor);
             comp.setForeground(fgColor);
         }
     }
 
-    private class ButtonClickListener implements ActionListener {
-        public void actionPerformed(ActionEvent event) {
-            String command = event.getActionCommand();
-            
-            if (command.matches("M[CRST+-]")) {
-                handleMemoryOperation(command);
-            } else if (command.equals("Theme")) {
-                currentTheme = (currentTheme + 1) % themes.length;
-                applyTheme();
-            } else if (command.equals("C")) {
-                reset();
-                calculationHistory.clear();
-                updateHistory();
-            } else if (command.equals("±")) {
-                if (!display.getText().equals("0") && !isError) {
-                    if (display.getText().startsWith("-")) {
-                        display.setText(display.getText().substring(1));
-                    } else {
-                        display.setText("-" + display.getText());
-                    }
-                }
-            } else {
-                processInput(command);
+    @SuppressWarnings("serial")
+    private class HistoryListModel extends AbstractListModel<String> {
+        private int size;
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String getElementAt(int index) {
+            return calculationHistory.get(index);
+        }
+
+        void added(int dropped) {
+            if (dropped > 0) {
+                size -= dropped;
+                fireIntervalRemoved(this, 0, dropped - 1);
+            }
+            size++;
+            fireIntervalAdded(this, size - 1, size - 1);
+        }
+
+        void removed(int count) {
+            if (count > 0) {
+                size = 0;
+                fireIntervalRemoved(this, 0, count - 1);
+            }
+        }
+
+        // After an empty history was replaced by one of count entries
+        void restored(int count) {
+            if (count > 0) {
+                size = count;
+                fireIntervalAdded(this, 0, count - 1);
             }
         }
     }
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            Calculator calc = new Calculator();
-            calc.setVisible(true);
-        });
+    // The metrics snapshot, as JSON to the file named by calculator.metrics.out or
+    // as text to standard error
+    private static void writeMetrics() {
+        String out = System.getProperty("calculator.metrics.out");
+        if (out == null) {
+            System.err.print(Metrics.text());
+            return;
+        }
+        try {
+            Files.write(Paths.get(out), Metrics.json().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.print(Metrics.text());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        mainStarted = System.nanoTime();
+        if (args.length > 0 && args[0].equals("--batch")) {
+            BatchEvaluator.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--sheet")) {
+            Sheet.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--solve")) {
+            NumericSolver.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--serve")) {
+            CalculatorServer.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (Metrics.ENABLED) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Calculator::writeMetrics));
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            SAVER.shutdown();
+            try {
+                SAVER.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        SwingUtilities.invokeLater(() -> new Calculator().open());
     }
 }
\ No newline at end of file
@@ -0,0 +1,523 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Local HTTP service behind the pages in practice2: each user who logs in gets a
+// calculator session of their own (last result, memory register and history) that
+// lasts as long as the server. Requests run on virtual threads, one per exchange.
+//
+// Sessions are found by the token in the "session" cookie in a ConcurrentHashMap,
+// whose reads take no lock and whose writes lock a single bin, so logins and
+// lookups from thousands of clients do not contend. Requests of one user are
+// serialized by that user's ReentrantLock; a lock rather than synchronized, which
+// would pin the virtual thread to its carrier while it waits. Tokens idle for
+// longer than IDLE_TIMEOUT are dropped.
+//
+//   POST /login      username=...&password=...; sets the cookie. A user is created
+//                    on first login and later logins need the same password.
+//   POST /logout     drops the token
+//   GET  /session    user, result, memory and recent history as JSON
+//   GET  /session/snapshot
+//                    result, memory registers and history as a SessionSnapshot,
+//                    the file the desktop calculator saves its session to
+//   PUT  /session/snapshot
+//                    replaces them with the snapshot in the body (POST works too),
+//                    e.g. one saved by the desktop; the newest HISTORY_LIMIT
+//                    entries of its history are kept
+//   POST /evaluate   one expression per line, evaluated in order; the response has
+//                    one result per line like --batch. "ans" is the previous result
+//                    and "M" the memory; MC, MR, MS, M+ and M- work on the memory.
+//                    Followed by a name ("MS rate", "M+ total") they work on the
+//                    register of that name, and an expression reads a register by
+//                    its name; "MC name" removes the register.
+//   GET  /metrics    the Metrics snapshot as JSON, or text with ?format=text
+//   GET  /name.html  the pages, from the web directory
+//
+//   java Calculator --serve [--port 8080] [--web practice2]
+//
+// Nothing is persisted and the server only listens on the loopback interface.
+// Snapshots are how a session is carried out and brought back.
+public final class CalculatorServer {
+    private static final String COOKIE = "session";
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toNanos(30);
+    private static final int HISTORY_LIMIT = 1000;
+    private static final Set<String> MEMORY_KEYS = Set.of("MC", "MR", "MS", "M+", "M-");
+    // Entries of the history returned by /session
+    private static final int RECENT = 50;
+    private static final int MAX_BODY = 1 << 20;
+    // A snapshot carries a whole history, so it may be larger than a text body
+    private static final int MAX_SNAPSHOT = 16 << 20;
+    private static final int BACKLOG = 4096;
+
+    private final HttpServer http;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+    private final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "session-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Path web;
+    private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Token> tokens = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        Path web = Paths.get("practice2");
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--web") && i + 1 < args.length) {
+                web = Paths.get(args[++i]);
+            } else {
+                throw new IllegalArgumentException("Usage: --serve [--port N] [--web dir]");
+            }
+        }
+        CalculatorServer server = new CalculatorServer(port, web);
+        server.start();
+        System.out.println("Serving on http://localhost:" + server.port() + "/");
+    }
+
+    // Binds to the port on the loopback interface, 0 for any free port
+    public CalculatorServer(int port, Path web) throws IOException {
+        this.web = web.toAbsolutePath().normalize();
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        http.setExecutor(workers);
+        // One context for everything: contexts match by prefix, so "/login" would
+        // also take "/login.html"
+        http.createContext("/", this::route);
+    }
+
+    public void start() {
+        http.start();
+        sweeper.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void stop() {
+        http.stop(0);
+        sweeper.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    public int port() {
+        return http.getAddress().getPort();
+    }
+
+    // Number of live tokens
+    public int sessions() {
+        return tokens.size();
+    }
+
+    // A user's calculator; every field is guarded by lock
+    private static final class User {
+        final String name;
+        final byte[] salt;
+        final byte[] passwordHash;
+        final ReentrantLock lock = new ReentrantLock();
+        MemoryBank memory = new MemoryBank();
+        HistoryBuffer history = new HistoryBuffer(HISTORY_LIMIT);
+        final DoubleStack workspace = new DoubleStack();
+        double[] bound = new double[2];
+        double result;
+
+        User(String name, byte[] salt, byte[] passwordHash) {
+            this.name = name;
+            this.salt = salt;
+            this.passwordHash = passwordHash;
+        }
+    }
+
+    private static final class Token {
+        final User user;
+        volatile long lastUsed = System.nanoTime();
+
+        Token(User user) {
+            this.user = user;
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        long started = Metrics.start();
+        dispatch(exchange);
+        Metrics.REQUEST.stop(started);
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        switch (exchange.getRequestURI().getPath()) {
+            case "/login":
+                login(exchange);
+                break;
+            case "/logout":
+                logout(exchange);
+                break;
+            case "/session":
+                session(exchange);
+                break;
+            case "/session/snapshot":
+                snapshot(exchange);
+                break;
+            case "/evaluate":
+                evaluate(exchange);
+                break;
+            case "/metrics":
+                if (!method(exchange, "GET")) return;
+                boolean text = "format=text".equals(exchange.getRequestURI().getQuery());
+                send(exchange, 200, text ? "text/plain" : "application/json", text ? Metrics.text() : Metrics.json());
+                break;
+            default:
+                page(exchange);
+                break;
+        }
+    }
+
+    private void login(HttpExchange exchange) throws IOException {
+        if (!method(exchange, "POST")) return;
+        Map<String, String> form = form(body(exchange));
+        String name = form.getOrDefault("username", "").trim();
+        String password = form.getOrDefault("password", "");
+        if (name.isEmpty() || password.isEmpty()) {
+            send(exchange, 400, "text/plain", "Username and password are required");
+            return;
+        }
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        User user = users.computeIfAbsent(name, n -> new User(n, salt, hash(salt, password)));
+        if (!MessageDigest.isEqual(user.passwordHash, hash(user.salt, password))) {
+            send(exchange, 401, "text/plain", "Invalid username or password");
+            return;
+        }
+        byte[] id = new byte[16];
+        random.nextBytes(id);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(id);
+        tokens.put(token, new Token(user));
+        exchange.getResponseHeaders().add("Set-Cookie", COOKIE + "=" + token + "; Path=/; HttpOnly; SameSite=Strict");
+        send(exchange, 204, null, null);
+    }
+
+    private void logout(HttpExchange exchange) throws IOException {
+        if (!method(exchange, "POST")) return;
+        String token = token(exchange);
+        if (token != null) tokens.remove(token);
+        exchange.getResponseHeaders().add("Set-Cookie", COOKIE + "=; Path=/; Max-Age=0");
+        send(exchange, 204, null, null);
+    }
+
+    private void session(HttpExchange exchange) throws IOException {
+        if (!method(exchange, "GET")) return;
+        User user = user(exchange);
+        if (user == null) return;
+        StringBuilder json = new StringBuilder("{\"user\":");
+        user.lock.lock();
+        try {
+            quote(user.name, json).append(",\"result\":");
+            quote(NumberCodec.format(user.result), json).append(",\"memory\":");
+            quote(NumberCodec.format(user.memory.defaultRegister().value()), json).append(",\"history\":[");
+            HistoryBuffer history = user.history;
+            StringBuilder entry = new StringBuilder();
+            for (int i = Math.max(0, history.size() - RECENT); i < history.size(); i++) {
+                if (json.charAt(json.length() - 1) != '[') json.append(',');
+                entry.setLength(0);
+                quote(history.appendTo(i, entry), json);
+            }
+        } finally {
+            user.lock.unlock();
+        }
+        json.append("]}");
+        send(exchange, 200, "application/json", json.toString());
+    }
+
+    private void snapshot(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!method.equals("GET") && !method.equals("PUT") && !method.equals("POST")) {
+            exchange.getResponseHeaders().add("Allow", "GET, PUT, POST");
+            send(exchange, 405, "text/plain", "Method not allowed");
+            return;
+        }
+        User user = user(exchange);
+        if (user == null) return;
+        if (method.equals("GET")) {
+            SessionSnapshot snapshot = new SessionSnapshot();
+            user.lock.lock();
+            try {
+                snapshot.result = user.result;
+                snapshot.memory = user.memory.copy();
+                snapshot.history = user.history.copy();
+            } finally {
+                user.lock.unlock();
+            }
+            send(exchange, 200, snapshot.encode());
+            return;
+        }
+        SessionSnapshot snapshot;
+        try (InputStream in = exchange.getRequestBody()) {
+            snapshot = SessionSnapshot.read(Channels.newChannel(in), MAX_SNAPSHOT, HISTORY_LIMIT);
+        } catch (IOException e) {
+            send(exchange, 400, "text/plain", "Not a valid session snapshot");
+            return;
+        }
+        user.lock.lock();
+        try {
+            user.result = snapshot.result;
+            user.memory = snapshot.memory;
+            user.history = snapshot.history;
+        } finally {
+            user.lock.unlock();
+        }
+        send(exchange, 204, null, null);
+    }
+
+    private void evaluate(HttpExchange exchange) throws IOException {
+        if (!method(exchange, "POST")) return;
+        User user = user(exchange);
+        if (user == null) return;
+        String text = body(exchange);
+        if (text == null) {
+            send(exchange, 413, "text/plain", "Request too large");
+            return;
+        }
+        StringBuilder out = new StringBuilder(text.length());
+        user.lock.lock();
+        try {
+            int start = 0;
+            while (start < text.length()) {
+                int end = text.indexOf('\n', start);
+                if (end < 0) end = text.length();
+                int lineEnd = end > start && text.charAt(end - 1) == '\r' ? end - 1 : end;
+                long started = Metrics.start();
+                evaluateLine(user, text.substring(start, lineEnd).trim(), out);
+                Metrics.EVALUATE.stop(started);
+                out.append('\n');
+                start = end + 1;
+            }
+        } finally {
+            user.lock.unlock();
+        }
+        send(exchange, 200, "text/plain", out.toString());
+    }
+
+    // Called with the user's lock held
+    private static void evaluateLine(User user, String line, StringBuilder out) {
+        if (line.isEmpty()) return;
+        String key = line;
+        String name = MemoryBank.DEFAULT;
+        int space = line.indexOf(' ');
+        if (space > 0 && MEMORY_KEYS.contains(line.substring(0, space)) && isRegisterName(line.substring(space + 1).trim())) {
+            key = line.substring(0, space);
+            name = line.substring(space + 1).trim();
+        }
+        MemoryBank.Register memory = user.memory.register(name);
+        switch (key) {
+            case "MC":
+                memory.clear();
+                if (!name.equals(MemoryBank.DEFAULT)) user.memory.remove(name);
+                break;
+            case "MR":
+                user.result = memory.value();
+                break;
+            case "MS":
+                memory.store(user.result);
+                break;
+            case "M+":
+                memory.add(user.result);
+                break;
+            case "M-":
+                memory.add(-user.result);
+                break;
+            default:
+                try {
+                    CompiledExpression compiled = ExpressionCache.shared().get(line);
+                    if (user.bound.length < compiled.variableCount()) user.bound = new double[compiled.variableCount()];
+                    double[] bound = user.bound;
+                    for (int i = 0; i < compiled.variableCount(); i++) {
+                        String variable = compiled.variable(i);
+                        if (variable.equals("ans")) {
+                            bound[i] = user.result;
+                        } else if (variable.equals(MemoryBank.DEFAULT) || user.memory.names().contains(variable)) {
+                            bound[i] = user.memory.register(variable).value();
+                        } else {
+                            throw new IllegalArgumentException("Unknown variable '" + variable + "'");
+                        }
+                    }
+                    user.result = compiled.evaluate(user.workspace, bound);
+                } catch (ArithmeticException e) {
+                    out.append("Not applicable");
+                    return;
+                } catch (IllegalArgumentException e) {
+                    out.append("Error");
+                    return;
+                }
+                int start = out.length();
+                NumberCodec.format(user.result, out);
+                user.history.add(line + " = " + out.substring(start));
+                return;
+        }
+        NumberCodec.format(key.equals("MR") ? user.result : memory.value(), out);
+    }
+
+    // A name an expression can read back: a variable other than "ans" and the
+    // default register, which the memory keys reach without a name. "M+ M" stays
+    // the sum it reads as.
+    private static boolean isRegisterName(String name) {
+        if (name.equals("ans") || name.equals(MemoryBank.DEFAULT)) return false;
+        try {
+            CompiledExpression compiled = ExpressionCache.shared().get(name);
+            return compiled.variableCount() == 1 && compiled.variable(0).equals(name);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void page(HttpExchange exchange) throws IOException {
+        if (!method(exchange, "GET")) return;
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/")) {
+            exchange.getResponseHeaders().add("Location", "/login.html");
+            send(exchange, 302, null, null);
+            return;
+        }
+        Path file = web.resolve(path.substring(1)).normalize();
+        if (!path.endsWith(".html") || !file.startsWith(web) || !Files.isRegularFile(file)) {
+            send(exchange, 404, "text/plain", "Not found");
+            return;
+        }
+        byte[] content = Files.readAllBytes(file);
+        exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(200, content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content);
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        tokens.values().removeIf(token -> now - token.lastUsed > IDLE_TIMEOUT);
+    }
+
+    // The user of the request's token, or null after answering 401
+    private User user(HttpExchange exchange) throws IOException {
+        String id = token(exchange);
+        Token token = id == null ? null : tokens.get(id);
+        if (token == null) {
+            send(exchange, 401, "text/plain", "Not logged in");
+            return null;
+        }
+        token.lastUsed = System.nanoTime();
+        return token.user;
+    }
+
+    private static String token(HttpExchange exchange) {
+        for (String header : exchange.getRequestHeaders().getOrDefault("Cookie", List.of())) {
+            for (String cookie : header.split(";")) {
+                String pair = cookie.trim();
+                if (pair.startsWith(COOKIE + "=")) return pair.substring(COOKIE.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static boolean method(HttpExchange exchange, String method) throws IOException {
+        if (exchange.getRequestMethod().equals(method)) return true;
+        exchange.getResponseHeaders().add("Allow", method);
+        send(exchange, 405, "text/plain", "Method not allowed");
+        return false;
+    }
+
+    // The request body as text, or null when it is larger than MAX_BODY
+    private static String body(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] bytes = in.readNBytes(MAX_BODY + 1);
+            return bytes.length > MAX_BODY ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Map<String, String> form(String body) {
+        Map<String, String> fields = new HashMap<>();
+        if (body == null) return fields;
+        for (String pair : body.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0) continue;
+            fields.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+        }
+        return fields;
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, String text) throws IOException {
+        if (text == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Content-Type", type + "; charset=utf-8");
+        headers.add("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, ByteBuffer bytes) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        headers.add("Content-Type", "application/octet-stream");
+        headers.add("Cache-Control", "no-store");
+        exchange.sendResponseHeaders(status, bytes.remaining());
+        try (WritableByteChannel out = Channels.newChannel(exchange.getResponseBody())) {
+            while (bytes.hasRemaining()) out.write(bytes);
+        }
+    }
+
+    private static byte[] hash(byte[] salt, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            return digest.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static StringBuilder quote(CharSequence text, StringBuilder json) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"');
+    }
+}
@@ -0,0 +1,63 @@
+// Running sum with Neumaier compensation: the rounding error of every addition is
+// collected in a second term and added back when the value is read, so long
+// tallies of thousands of values stay accurate to about one rounding of the total
+// instead of accumulating one rounding per addition.
+public final class CompensatedSum {
+    private double sum;
+    private double compensation;
+
+    public CompensatedSum() {
+    }
+
+    public CompensatedSum(double value) {
+        sum = value;
+    }
+
+    public void add(double value) {
+        double t = sum + value;
+        if (Math.abs(sum) >= Math.abs(value)) {
+            compensation += (sum - t) + value;
+        } else {
+            compensation += (value - t) + sum;
+        }
+        sum = t;
+    }
+
+    public void subtract(double value) {
+        add(-value);
+    }
+
+    public void set(double value) {
+        sum = value;
+        compensation = 0;
+    }
+
+    public void reset() {
+        set(0);
+    }
+
+    // The two terms as they are, and back, so a snapshot restores the sum exactly
+    public double sum() {
+        return sum;
+    }
+
+    public double compensation() {
+        return compensation;
+    }
+
+    public void set(double sum, double compensation) {
+        this.sum = sum;
+        this.compensation = compensation;
+    }
+
+    public double value() {
+        double value = sum + compensation;
+        // Once the sum overflows the compensation turns into NaN; report the sum
+        return Double.isNaN(value) ? sum : value;
+    }
+
+    @Override
+    public String toString() {
+        return NumberCodec.format(value());
+    }
+}
@@ -0,0 +1,508 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+// An expression compiled by Evaluator into a flat postfix program. Instances are
+// immutable, so one compiled formula can be evaluated concurrently by any number
+// of threads with different variable values.
+//
+// Besides the double interpreter there is a decimal one for exact arithmetic with a
+// given MathContext. It first runs the double program while checking that every
+// step is exact (error-free transformations via fma); only when some step rounds
+// does it fall back to BigDecimal, so exact inputs like 1.5 + 2.25 cost about the
+// same as in double mode and only cases like 0.1 + 0.2 pay for BigDecimal.
+public final class CompiledExpression {
+    static final byte CONST = 0;
+    static final byte LOAD = 1;
+    static final byte ADD = 2;
+    static final byte SUB = 3;
+    static final byte MUL = 4;
+    static final byte DIV = 5;
+    static final byte PERCENT = 6;
+    static final byte NEG = 7;
+    static final byte SQRT = 8;
+    static final byte SQR = 9;
+    static final byte RECIP = 10;
+    // Scientific function (argument is the ScientificFunctions id) and x^y, on the
+    // strict tier or the fast one
+    static final byte CALL = 11;
+    static final byte POW = 12;
+    static final byte FAST_CALL = 13;
+    static final byte FAST_POW = 14;
+    // Common subexpressions (see Optimizer): STORE copies the top of the stack into
+    // temporary slot arg, FETCH pushes it again
+    static final byte STORE = 15;
+    static final byte FETCH = 16;
+
+    private static final double[] NO_VALUES = new double[0];
+    private static final BigDecimal[] NO_DECIMALS = new BigDecimal[0];
+    private static final long[] POW5 = new long[28];
+    private static final BigDecimal MAX_DECIMAL_FACTORIAL = BigDecimal.valueOf(100_000);
+    private static final BigDecimal MAX_DECIMAL_EXPONENT = BigDecimal.valueOf(999_999_999);
+
+    static {
+        POW5[0] = 1;
+        for (int i = 1; i < POW5.length; i++) POW5[i] = POW5[i - 1] * 5;
+    }
+    private static final ThreadLocal<DoubleStack> WORKSPACE = ThreadLocal.withInitial(DoubleStack::new);
+
+    private final String source;
+    final byte[] ops;
+    final int[] args;
+    final double[] constants;
+    final String[] literals;
+    final String[] variables;
+    final int maxDepth;
+    final int temps;
+    // The program as parsed, for decimal evaluation, when this one has been optimized
+    final CompiledExpression unoptimized;
+    // Decimal values of the literals, built on first decimal evaluation
+    private volatile BigDecimal[] decimalConstants;
+    private volatile boolean constantsExact;
+    private volatile CompiledExpression fastVariant;
+
+    CompiledExpression(String source, byte[] ops, int[] args, double[] constants, String[] literals,
+            String[] variables, int maxDepth) {
+        this(source, ops, args, constants, literals, variables, maxDepth, 0, null);
+    }
+
+    CompiledExpression(String source, byte[] ops, int[] args, double[] constants, String[] literals,
+            String[] variables, int maxDepth, int temps, CompiledExpression unoptimized) {
+        this.source = source;
+        this.ops = ops;
+        this.args = args;
+        this.constants = constants;
+        this.literals = literals;
+        this.variables = variables;
+        this.maxDepth = maxDepth;
+        this.temps = temps;
+        this.unoptimized = unoptimized;
+    }
+
+    public String source() {
+        return source;
+    }
+
+    public int variableCount() {
+        return variables.length;
+    }
+
+    public String variable(int index) {
+        return variables[index];
+    }
+
+    public int indexOf(String name) {
+        for (int i = 0; i < variables.length; i++) {
+            if (variables[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    // The same program with its scientific functions on the fast tier, which gives up
+    // an ulp or two for throughput (see ScientificFunctions). Decimal evaluation
+    // always uses the strict tier.
+    public CompiledExpression fast() {
+        CompiledExpression variant = fastVariant;
+        if (variant == null && unoptimized != null) {
+            // Constants were folded with the strict tier; fold again from the parsed program
+            CompiledExpression parsed = unoptimized.fast();
+            variant = parsed == unoptimized ? this : Optimizer.optimize(parsed);
+            fastVariant = variant;
+        } else if (variant == null) {
+            byte[] fastOps = ops.clone();
+            boolean changed = false;
+            for (int i = 0; i < fastOps.length; i++) {
+                if (fastOps[i] == CALL || fastOps[i] == POW) {
+                    fastOps[i] = fastOps[i] == CALL ? FAST_CALL : FAST_POW;
+                    changed = true;
+                }
+            }
+            variant = changed
+                ? new CompiledExpression(source, fastOps, args, constants, literals, variables, maxDepth, temps, unoptimized)
+                : this;
+            fastVariant = variant;
+        }
+        return variant;
+    }
+
+    public double evaluate() {
+        return evaluate(WORKSPACE.get(), NO_VALUES);
+    }
+
+    // Values are bound to variables in order of their first appearance in the source.
+    public double evaluate(double... values) {
+        return evaluate(WORKSPACE.get(), values);
+    }
+
+    // Evaluates on a caller-owned stack. Nothing is allocated and no locks are taken,
+    // so this is the entry point for hot loops that keep their own workspace.
+    //
+    // Chains of + and - are summed with Neumaier compensation: each stack slot has a
+    // companion error term that collects the rounding of its additions and is only
+    // folded into the value when another operator consumes it.
+    public double evaluate(DoubleStack workspace, double[] values) {
+        if (values.length < variables.length) {
+            throw new IllegalArgumentException("Missing value for variable '" + variables[values.length] + "'");
+        }
+        // Value stack, its error terms, then value and error of each temporary
+        double[] stack = workspace.array(2 * maxDepth + 2 * temps);
+        int c = maxDepth;
+        int t = 2 * maxDepth;
+        int sp = -1;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case CONST:
+                    stack[++sp] = constants[args[pc]];
+                    stack[c + sp] = 0;
+                    break;
+                case LOAD:
+                    stack[++sp] = values[args[pc]];
+                    stack[c + sp] = 0;
+                    break;
+                case ADD:
+                case SUB: {
+                    double a = stack[sp - 1];
+                    double b = ops[pc] == ADD ? stack[sp] : -stack[sp];
+                    double bError = ops[pc] == ADD ? stack[c + sp] : -stack[c + sp];
+                    double sum = a + b;
+                    double error = Math.abs(a) >= Math.abs(b) ? (a - sum) + b : (b - sum) + a;
+                    sp--;
+                    stack[sp] = sum;
+                    stack[c + sp] += bError + error;
+                    break;
+                }
+                case MUL:
+                    stack[sp - 1] = fold(stack, c, sp - 1) * fold(stack, c, sp);
+                    stack[c + --sp] = 0;
+                    break;
+                case DIV: {
+                    double divisor = fold(stack, c, sp);
+                    if (divisor == 0) throw new ArithmeticException("Division by zero");
+                    stack[sp - 1] = fold(stack, c, sp - 1) / divisor;
+                    stack[c + --sp] = 0;
+                    break;
+                }
+                case PERCENT:
+                    stack[sp - 1] = fold(stack, c, sp - 1) * (fold(stack, c, sp) / 100);
+                    stack[c + --sp] = 0;
+                    break;
+                case NEG:
+                    stack[sp] = -stack[sp];
+                    stack[c + sp] = -stack[c + sp];
+                    break;
+                case SQRT: {
+                    double x = fold(stack, c, sp);
+                    if (x < 0) throw new ArithmeticException("Invalid square root");
+                    stack[sp] = Math.sqrt(x);
+                    stack[c + sp] = 0;
+                    break;
+                }
+                case SQR: {
+                    double x = fold(stack, c, sp);
+                    stack[sp] = x * x;
+                    stack[c + sp] = 0;
+                    break;
+                }
+                case RECIP: {
+                    double x = fold(stack, c, sp);
+                    if (x == 0) throw new ArithmeticException("Division by zero");
+                    stack[sp] = 1 / x;
+                    stack[c + sp] = 0;
+                    break;
+                }
+                case CALL:
+                case FAST_CALL: {
+                    double x = fold(stack, c, sp);
+                    stack[sp] = call(ops[pc], args[pc], x);
+                    stack[c + sp] = 0;
+                    break;
+                }
+                case POW:
+                case FAST_POW:
+                    stack[sp - 1] = power(ops[pc], fold(stack, c, sp - 1), fold(stack, c, sp));
+                    stack[c + --sp] = 0;
+                    break;
+                case STORE:
+                    stack[t + 2 * args[pc]] = stack[sp];
+                    stack[t + 2 * args[pc] + 1] = stack[c + sp];
+                    break;
+                case FETCH:
+                    stack[++sp] = stack[t + 2 * args[pc]];
+                    stack[c + sp] = stack[t + 2 * args[pc] + 1];
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode " + ops[pc]);
+            }
+        }
+        return fold(stack, c, 0);
+    }
+
+    // The scientific functions signal a domain error with NaN
+    private static double call(byte op, int function, double x) {
+        double r = op == CALL ? ScientificFunctions.strict(function, x) : ScientificFunctions.fast(function, x);
+        if (r != r && x == x) throw new ArithmeticException("Invalid argument");
+        return r;
+    }
+
+    private static double power(byte op, double x, double y) {
+        double r = op == POW ? ScientificFunctions.strictPow(x, y) : ScientificFunctions.fastPow(x, y);
+        if (r != r && x == x && y == y) throw new ArithmeticException("Invalid power");
+        return r;
+    }
+
+    // Value of a stack slot with its accumulated rounding error added back. An
+    // overflowed sum has a NaN error term, in which case the sum itself is the answer.
+    private static double fold(double[] stack, int c, int slot) {
+        double value = stack[slot] + stack[c + slot];
+        return value == value ? value : stack[slot];
+    }
+
+    public BigDecimal evaluate(MathContext context) {
+        return evaluate(context, NO_DECIMALS);
+    }
+
+    // Decimal evaluation; values are bound to variables like evaluate(double...)
+    public BigDecimal evaluate(MathContext context, BigDecimal... values) {
+        // Folded constants are doubles; decimal arithmetic starts again from the literals
+        if (unoptimized != null) return unoptimized.evaluate(context, values);
+        if (values.length < variables.length) {
+            throw new IllegalArgumentException("Missing value for variable '" + variables[values.length] + "'");
+        }
+        BigDecimal[] decimals = decimalConstants();
+        if (constantsExact) {
+            double[] doubles = values.length == 0 ? NO_VALUES : new double[values.length];
+            boolean exact = true;
+            for (int i = 0; i < values.length && exact; i++) {
+                doubles[i] = values[i].doubleValue();
+                exact = Double.isFinite(doubles[i]) && new BigDecimal(doubles[i]).compareTo(values[i]) == 0;
+            }
+            if (exact) {
+                double result = evaluateIfExact(WORKSPACE.get(), doubles);
+                if (!Double.isNaN(result)) return exactDecimal(result).round(context);
+            }
+        }
+        return evaluateDecimal(context, decimals, values);
+    }
+
+    // Runs the double program and returns NaN as soon as a step would round
+    private double evaluateIfExact(DoubleStack workspace, double[] values) {
+        double[] stack = workspace.array(maxDepth);
+        int sp = -1;
+        for (int pc = 0; pc < ops.length; pc++) {
+            double a = sp > 0 ? stack[sp - 1] : 0;
+            double b = sp >= 0 ? stack[sp] : 0;
+            double r;
+            switch (ops[pc]) {
+                case CONST:
+                    stack[++sp] = constants[args[pc]];
+                    continue;
+                case LOAD:
+                    stack[++sp] = values[args[pc]];
+                    continue;
+                case ADD:
+                case SUB:
+                    if (ops[pc] == SUB) b = -b;
+                    r = a + b;
+                    double bb = r - a;
+                    if ((a - (r - bb)) + (b - bb) != 0) return Double.NaN;
+                    stack[--sp] = r;
+                    break;
+                case MUL:
+                    r = a * b;
+                    if (Math.fma(a, b, -r) != 0) return Double.NaN;
+                    stack[--sp] = r;
+                    break;
+                case DIV:
+                    if (b == 0) throw new ArithmeticException("Division by zero");
+                    r = a / b;
+                    if (Math.fma(r, b, -a) != 0) return Double.NaN;
+                    stack[--sp] = r;
+                    break;
+                case PERCENT:
+                    double fraction = b / 100;
+                    r = a * fraction;
+                    if (Math.fma(fraction, 100, -b) != 0 || Math.fma(a, fraction, -r) != 0) return Double.NaN;
+                    stack[--sp] = r;
+                    break;
+                case NEG:
+                    stack[sp] = -b;
+                    break;
+                case SQRT:
+                    if (b < 0) throw new ArithmeticException("Invalid square root");
+                    r = Math.sqrt(b);
+                    if (Math.fma(r, r, -b) != 0) return Double.NaN;
+                    stack[sp] = r;
+                    break;
+                case SQR:
+                    r = b * b;
+                    if (Math.fma(b, b, -r) != 0) return Double.NaN;
+                    stack[sp] = r;
+                    break;
+                case RECIP:
+                    if (b == 0) throw new ArithmeticException("Division by zero");
+                    r = 1 / b;
+                    if (Math.fma(r, b, -1) != 0) return Double.NaN;
+                    stack[sp] = r;
+                    break;
+                case CALL:
+                case FAST_CALL:
+                case POW:
+                case FAST_POW:
+                    // Left to the decimal interpreter
+                    return Double.NaN;
+                default:
+                    throw new IllegalStateException("Bad opcode " + ops[pc]);
+            }
+            if (Double.isInfinite(stack[sp])) return Double.NaN;
+        }
+        return stack[0];
+    }
+
+    // Each step can take a while at high precision, so the loop stops when the
+    // evaluating thread is interrupted (the UI cancelling a slow evaluation)
+    private BigDecimal evaluateDecimal(MathContext context, BigDecimal[] decimals, BigDecimal[] values) {
+        BigDecimal[] stack = new BigDecimal[maxDepth];
+        int sp = -1;
+        for (int pc = 0; pc < ops.length; pc++) {
+            if (Thread.currentThread().isInterrupted()) throw new CancellationException("Evaluation cancelled");
+            switch (ops[pc]) {
+                case CONST:
+                    stack[++sp] = decimals[args[pc]];
+                    break;
+                case LOAD:
+                    stack[++sp] = values[args[pc]];
+                    break;
+                case ADD:
+                    stack[sp - 1] = stack[sp - 1].add(stack[sp], context);
+                    sp--;
+                    break;
+                case SUB:
+                    stack[sp - 1] = stack[sp - 1].subtract(stack[sp], context);
+                    sp--;
+                    break;
+                case MUL:
+                    stack[sp - 1] = stack[sp - 1].multiply(stack[sp], context);
+                    sp--;
+                    break;
+                case DIV:
+                    if (stack[sp].signum() == 0) throw new ArithmeticException("Division by zero");
+                    stack[sp - 1] = stack[sp - 1].divide(stack[sp], context);
+                    sp--;
+                    break;
+                case PERCENT:
+                    stack[sp - 1] = stack[sp - 1].multiply(stack[sp].movePointLeft(2), context);
+                    sp--;
+                    break;
+                case NEG:
+                    stack[sp] = stack[sp].negate();
+                    break;
+                case SQRT:
+                    if (stack[sp].signum() < 0) throw new ArithmeticException("Invalid square root");
+                    stack[sp] = stack[sp].sqrt(context);
+                    break;
+                case SQR:
+                    stack[sp] = stack[sp].multiply(stack[sp], context);
+                    break;
+                case RECIP:
+                    if (stack[sp].signum() == 0) throw new ArithmeticException("Division by zero");
+                    stack[sp] = BigDecimal.ONE.divide(stack[sp], context);
+                    break;
+                case CALL:
+                case FAST_CALL:
+                    stack[sp] = decimalCall(args[pc], stack[sp], context);
+                    break;
+                case POW:
+                case FAST_POW:
+                    stack[sp - 1] = decimalPower(stack[sp - 1], stack[sp], context);
+                    sp--;
+                    break;
+                default:
+                    throw new IllegalStateException("Bad opcode " + ops[pc]);
+            }
+        }
+        return stack[0].round(context);
+    }
+
+    // Factorials of whole numbers are computed in decimal; the transcendental functions
+    // are computed in double on the strict tier, so their results carry about 16
+    // significant digits whatever the context
+    private static BigDecimal decimalCall(int function, BigDecimal x, MathContext context) {
+        if (function == ScientificFunctions.FACTORIAL && x.signum() >= 0 && isInteger(x)
+                && x.compareTo(MAX_DECIMAL_FACTORIAL) <= 0) {
+            // Eight guard digits absorb the rounding of up to 10^5 products
+            MathContext working = context.getPrecision() == 0 ? context
+                : new MathContext(context.getPrecision() + 8, context.getRoundingMode());
+            int count = x.intValue();
+            BigDecimal product = BigDecimal.ONE;
+            for (int n = 2; n <= count; n++) {
+                if ((n & 1023) == 0 && Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("Evaluation cancelled");
+                }
+                product = product.multiply(BigDecimal.valueOf(n), working);
+            }
+            return product.round(context);
+        }
+        return decimalResult(ScientificFunctions.strict(function, x.doubleValue()));
+    }
+
+    private static BigDecimal decimalPower(BigDecimal x, BigDecimal y, MathContext context) {
+        if (isInteger(y) && y.abs().compareTo(MAX_DECIMAL_EXPONENT) <= 0) {
+            if (x.signum() == 0 && y.signum() < 0) throw new ArithmeticException("Division by zero");
+            return x.pow(y.intValue(), context);
+        }
+        return decimalResult(ScientificFunctions.strictPow(x.doubleValue(), y.doubleValue()));
+    }
+
+    private static BigDecimal decimalResult(double value) {
+        if (Double.isNaN(value)) throw new ArithmeticException("Invalid argument");
+        if (Double.isInfinite(value)) throw new ArithmeticException("Overflow");
+        return BigDecimal.valueOf(value);
+    }
+
+    private static boolean isInteger(BigDecimal value) {
+        return value.signum() == 0 || value.stripTrailingZeros().scale() <= 0;
+    }
+
+    // Same value as new BigDecimal(value), without going through BigInteger for the
+    // short binary fractions typical of exact results (m / 2^k = m * 5^k / 10^k)
+    private static BigDecimal exactDecimal(double value) {
+        if (value == 0) return BigDecimal.ZERO;
+        long bits = Double.doubleToRawLongBits(value);
+        int exponent = Math.getExponent(value);
+        long mantissa = (bits & 0x000FFFFFFFFFFFFFL) | (exponent >= Double.MIN_EXPONENT ? 0x0010000000000000L : 0);
+        int shift = Long.numberOfTrailingZeros(mantissa);
+        mantissa >>= shift;
+        int scale = 52 - exponent - shift;
+        if (scale <= 0) {
+            if (scale > -11) {
+                long integer = mantissa << -scale;
+                return BigDecimal.valueOf(value < 0 ? -integer : integer);
+            }
+        } else if (scale < POW5.length && mantissa <= Long.MAX_VALUE / POW5[scale]) {
+            long unscaled = mantissa * POW5[scale];
+            return BigDecimal.valueOf(value < 0 ? -unscaled : unscaled, scale);
+        }
+        return new BigDecimal(value);
+    }
+
+    private BigDecimal[] decimalConstants() {
+        BigDecimal[] decimals = decimalConstants;
+        if (decimals == null) {
+            decimals = new BigDecimal[constants.length];
+            boolean exact = true;
+            for (int i = 0; i < decimals.length; i++) {
+                decimals[i] = new BigDecimal(literals[i]);
+                exact &= Double.isFinite(constants[i]) && decimals[i].compareTo(new BigDecimal(constants[i])) == 0;
+            }
+            constantsExact = exact;
+            decimalConstants = decimals;
+        }
+        return decimals;
+    }
+
+    @Override
+    public String toString() {
+        return source + " " + Arrays.toString(variables);
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.Arrays;
+
+// Growable stack of primitive doubles. Unlike Stack<Double> it neither boxes nor
+// synchronizes; each instance is meant to be owned by a single thread and reused.
+public final class DoubleStack {
+    private double[] values;
+    private int size;
+
+    public DoubleStack() {
+        this(16);
+    }
+
+    public DoubleStack(int capacity) {
+        values = new double[Math.max(1, capacity)];
+    }
+
+    public void push(double value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    public double pop() {
+        if (size == 0) throw new IllegalStateException("Stack is empty");
+        return values[--size];
+    }
+
+    public double peek() {
+        if (size == 0) throw new IllegalStateException("Stack is empty");
+        return values[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Returns the backing array with room for at least capacity values, for callers
+    // that index the stack directly in a tight loop.
+    double[] array(int capacity) {
+        if (values.length < capacity) values = new double[Math.max(capacity, values.length * 2)];
+        return values;
+    }
+}
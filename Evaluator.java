@@ -0,0 +1,298 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Headless expression compiler used by the Swing UI and by server-side callers.
+// Parses with normal operator precedence into a CompiledExpression:
+//
+//   expr    := term (('+' | '-') term)*
+//   term    := unary (('*' | '/' | '%') unary)*
+//   unary   := ('-' | '+' | '√' | function) unary | power
+//   power   := postfix ('^' unary)?
+//   postfix := primary ('²' | '!')*
+//   primary := number | constant | variable | '(' expr ')'
+//
+// Functions are sqrt, sqr, recip and the scientific ones in FUNCTIONS; the
+// constants are pi and e. '^' is right-associative
+// and binds tighter than a prefix minus, so -2^2 is -4 and 2^3^2 is 512.
+// "a % b" keeps the calculator meaning of a * (b / 100). Arithmetic failures raise
+// ArithmeticException (shown as "Not applicable"), malformed input raises
+// IllegalArgumentException. Any identifier that is not a function name is a
+// variable. Parsing is iterative (shunting-yard over a byte opcode stack), so
+// nesting depth is limited only by memory. Instances are confined to one compile
+// call, so the static entry points are safe to use from any number of threads.
+public final class Evaluator {
+    // Marker for an open parenthesis on the operator stack
+    private static final byte LPAREN = -1;
+    // Scientific function f sits on the operator stack as FUNCTION + f
+    private static final byte FUNCTION = 32;
+    // Indexed by ScientificFunctions id
+    private static final String[] FUNCTIONS = {"sin", "cos", "tan", "ln", "log", "exp", "sinh", "cosh", "tanh", "gamma", "fact"};
+    private static final String PI = "3.14159265358979323846264338327950288419716939937510582097494459";
+    private static final String E = "2.71828182845904523536028747135266249775724709369995957496696763";
+
+    private final CharSequence src;
+    private final int end;
+    private int pos;
+
+    private byte[] ops = new byte[16];
+    private int[] args = new int[16];
+    private int size;
+    private double[] constants = new double[8];
+    private String[] literals = new String[8];
+    private int constantCount;
+    private final ArrayList<String> variables = new ArrayList<>();
+    private final ByteStack operators = new ByteStack();
+    private int depth;
+    private int maxDepth;
+
+    private Evaluator(CharSequence src) {
+        this.src = src;
+        this.end = src.length();
+    }
+
+    public static double evaluate(CharSequence expression) {
+        return compile(expression).evaluate();
+    }
+
+    public static CompiledExpression compile(CharSequence expression) {
+        return compile(expression, true);
+    }
+
+    // Without the Optimizer pass, for comparing the two
+    static CompiledExpression compile(CharSequence expression, boolean optimize) {
+        Evaluator e = new Evaluator(expression);
+        e.parse();
+        CompiledExpression parsed = new CompiledExpression(expression.toString(),
+            Arrays.copyOf(e.ops, e.size), Arrays.copyOf(e.args, e.size),
+            Arrays.copyOf(e.constants, e.constantCount), Arrays.copyOf(e.literals, e.constantCount),
+            e.variables.toArray(new String[0]), e.maxDepth);
+        return optimize ? Optimizer.optimize(parsed) : parsed;
+    }
+
+    private void parse() {
+        boolean expectOperand = true;
+        while (true) {
+            char c = peek();
+            if (expectOperand) {
+                if (c == '(') {
+                    pos++;
+                    operators.push(LPAREN);
+                } else if (c == '-') {
+                    pos++;
+                    operators.push(CompiledExpression.NEG);
+                } else if (c == '+') {
+                    pos++;
+                } else if (c == '√') {
+                    pos++;
+                    operators.push(CompiledExpression.SQRT);
+                } else if (isDigit(c) || c == '.') {
+                    int start = pos;
+                    double value = parseNumber();
+                    emitConstant(value, src.subSequence(start, pos).toString());
+                    expectOperand = false;
+                } else if (isLetter(c)) {
+                    int start = pos;
+                    while (pos < end && isIdentifierPart(src.charAt(pos))) pos++;
+                    byte function = function(start);
+                    if (function >= 0) {
+                        operators.push(function);
+                    } else if (matches(start, "pi")) {
+                        emitConstant(Math.PI, PI);
+                        expectOperand = false;
+                    } else if (matches(start, "e")) {
+                        emitConstant(Math.E, E);
+                        expectOperand = false;
+                    } else {
+                        emitVariable(src.subSequence(start, pos).toString());
+                        expectOperand = false;
+                    }
+                } else {
+                    throw pos < end ? error("Unexpected '" + c + "'") : error("Unexpected end of expression");
+                }
+            } else {
+                byte op = binaryOperator(c);
+                if (op >= 0) {
+                    pos++;
+                    // A right-associative operator leaves an equal one pending
+                    reduce(op == CompiledExpression.POW ? precedence(op) + 1 : precedence(op));
+                    operators.push(op);
+                    expectOperand = true;
+                } else if (c == '²') {
+                    pos++;
+                    emit(CompiledExpression.SQR, 0, 0);
+                } else if (c == '!') {
+                    pos++;
+                    emit(CompiledExpression.CALL, ScientificFunctions.FACTORIAL, 0);
+                } else if (c == ')') {
+                    reduce(0);
+                    if (operators.isEmpty()) throw error("Unexpected ')'");
+                    operators.pop();
+                    pos++;
+                } else if (pos == end) {
+                    reduce(0);
+                    if (!operators.isEmpty()) throw error("Missing ')'");
+                    return;
+                } else {
+                    throw error("Unexpected '" + c + "'");
+                }
+            }
+        }
+    }
+
+    // Emits pending operators that bind at least as tightly as minPrecedence, stopping
+    // at an open parenthesis
+    private void reduce(int minPrecedence) {
+        while (!operators.isEmpty() && operators.peek() != LPAREN
+                && precedence(operators.peek()) >= minPrecedence) {
+            byte op = operators.pop();
+            if (op >= FUNCTION) {
+                emit(CompiledExpression.CALL, op - FUNCTION, 0);
+            } else {
+                emit(op, 0, isUnary(op) ? 0 : -1);
+            }
+        }
+    }
+
+    private byte function(int start) {
+        if (matches(start, "sqrt")) return CompiledExpression.SQRT;
+        if (matches(start, "sqr")) return CompiledExpression.SQR;
+        if (matches(start, "recip")) return CompiledExpression.RECIP;
+        for (int f = 0; f < FUNCTIONS.length; f++) {
+            if (matches(start, FUNCTIONS[f])) return (byte) (FUNCTION + f);
+        }
+        return -1;
+    }
+
+    private static byte binaryOperator(char c) {
+        switch (c) {
+            case '+': return CompiledExpression.ADD;
+            case '-': return CompiledExpression.SUB;
+            case '*': return CompiledExpression.MUL;
+            case '/': return CompiledExpression.DIV;
+            case '%': return CompiledExpression.PERCENT;
+            case '^': return CompiledExpression.POW;
+            default: return -1;
+        }
+    }
+
+    private static int precedence(byte op) {
+        switch (op) {
+            case CompiledExpression.ADD:
+            case CompiledExpression.SUB:
+                return 1;
+            case CompiledExpression.MUL:
+            case CompiledExpression.DIV:
+            case CompiledExpression.PERCENT:
+                return 2;
+            case CompiledExpression.POW:
+                return 4;
+            default:
+                // Prefix operators bind tighter than any binary operator
+                return 3;
+        }
+    }
+
+    private static boolean isUnary(byte op) {
+        return precedence(op) == 3;
+    }
+
+    private double parseNumber() {
+        int start = pos;
+        while (pos < end && isDigit(src.charAt(pos))) pos++;
+        if (pos < end && src.charAt(pos) == '.') {
+            pos++;
+            while (pos < end && isDigit(src.charAt(pos))) pos++;
+        }
+        if (pos - start == 1 && src.charAt(start) == '.') {
+            throw error("Malformed number");
+        }
+        if (pos < end && (src.charAt(pos) == 'e' || src.charAt(pos) == 'E')) {
+            int mark = pos++;
+            if (pos < end && (src.charAt(pos) == '+' || src.charAt(pos) == '-')) pos++;
+            if (pos < end && isDigit(src.charAt(pos))) {
+                while (pos < end && isDigit(src.charAt(pos))) pos++;
+            } else {
+                pos = mark;
+            }
+        }
+        return NumberCodec.parse(src, start, pos);
+    }
+
+    private void emitVariable(String name) {
+        int slot = variables.indexOf(name);
+        if (slot < 0) {
+            slot = variables.size();
+            variables.add(name);
+        }
+        emit(CompiledExpression.LOAD, slot, 1);
+    }
+
+    // The literal text is kept for decimal evaluation, where "0.1" must not become
+    // the nearest double
+    private void emitConstant(double value, String literal) {
+        int index = -1;
+        for (int i = 0; i < constantCount; i++) {
+            if (Double.doubleToRawLongBits(constants[i]) == Double.doubleToRawLongBits(value)
+                    && literals[i].equals(literal)) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+                literals = Arrays.copyOf(literals, constantCount * 2);
+            }
+            index = constantCount;
+            literals[constantCount] = literal;
+            constants[constantCount++] = value;
+        }
+        emit(CompiledExpression.CONST, index, 1);
+    }
+
+    // stackEffect is the net change of the evaluation stack depth
+    private void emit(byte op, int arg, int stackEffect) {
+        if (size == ops.length) {
+            ops = Arrays.copyOf(ops, size * 2);
+            args = Arrays.copyOf(args, size * 2);
+        }
+        ops[size] = op;
+        args[size] = arg;
+        size++;
+        depth += stackEffect;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private char peek() {
+        skipSpaces();
+        return pos < end ? src.charAt(pos) : '\0';
+    }
+
+    private void skipSpaces() {
+        while (pos < end && Character.isWhitespace(src.charAt(pos))) pos++;
+    }
+
+    private boolean matches(int start, String word) {
+        if (pos - start != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (src.charAt(start + i) != word.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isLetter(c) || isDigit(c);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+}
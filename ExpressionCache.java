@@ -0,0 +1,121 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded LRU cache of compiled expressions keyed by their source text, so hot
+// formulas are parsed once and then only evaluated. The cache is split into
+// independently locked segments to keep lock hold times short when many worker
+// threads share it; each segment evicts its own least recently used entry.
+public final class ExpressionCache {
+    private static final int MAX_SEGMENTS = 16;
+    private static final ExpressionCache SHARED = new ExpressionCache(4096);
+
+    private final Segment[] segments;
+    private final int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ExpressionCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+        this.capacity = capacity;
+        // Segment limits add up to exactly the requested capacity
+        int count = Integer.highestOneBit(Math.min(MAX_SEGMENTS, capacity));
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+        }
+    }
+
+    public static ExpressionCache shared() {
+        return SHARED;
+    }
+
+    public CompiledExpression get(String expression) {
+        Segment segment = segmentFor(expression);
+        CompiledExpression compiled;
+        synchronized (segment) {
+            compiled = segment.get(expression);
+        }
+        if (compiled != null) {
+            hits.increment();
+            return compiled;
+        }
+        misses.increment();
+        // Compile outside the lock; a racing thread compiling the same text is harmless
+        compiled = Evaluator.compile(expression);
+        synchronized (segment) {
+            CompiledExpression existing = segment.putIfAbsent(expression, compiled);
+            return existing != null ? existing : compiled;
+        }
+    }
+
+    public double evaluate(String expression, double... values) {
+        return get(expression).evaluate(values);
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionCache[size=" + size() + "/" + capacity + ", hits=" + hits()
+            + ", misses=" + misses() + ", evictions=" + evictions() + "]";
+    }
+
+    private Segment segmentFor(String expression) {
+        int h = expression.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (segments.length - 1)];
+    }
+
+    @SuppressWarnings("serial")
+    private final class Segment extends LinkedHashMap<String, CompiledExpression> {
+        private final int limit;
+
+        Segment(int limit) {
+            super(16, 0.75f, true);
+            this.limit = limit;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+            if (size() > limit) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+// Fixed-capacity ring buffer of history entries. Entry text is copied into one
+// circular char arena rather than kept as String objects, so retaining a million
+// entries costs a few bytes of bookkeeping each and no per-entry garbage. When
+// either the entry limit or the arena is full, the oldest entries are dropped.
+// Entries are only turned back into Strings when asked for, e.g. for the rows a
+// list view is actually painting. Not thread-safe; callers confine an instance to
+// one thread (the EDT) or guard it themselves.
+public final class HistoryBuffer {
+    private final char[] arena;
+    private final long[] starts;
+    private final int[] lengths;
+    private long first;
+    private long next;
+    private long writePosition;
+
+    public HistoryBuffer(int maxEntries) {
+        this(maxEntries, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1024L, maxEntries * 48L)));
+    }
+
+    public HistoryBuffer(int maxEntries, int maxChars) {
+        if (maxEntries < 1 || maxChars < 1) throw new IllegalArgumentException("History limits must be positive");
+        arena = new char[maxChars];
+        starts = new long[maxEntries];
+        lengths = new int[maxEntries];
+    }
+
+    public int capacity() {
+        return starts.length;
+    }
+
+    public int size() {
+        return (int) (next - first);
+    }
+
+    public boolean isEmpty() {
+        return next == first;
+    }
+
+    // Number of entries ever added, including those that have since been dropped
+    public long totalAdded() {
+        return next;
+    }
+
+    // Adds an entry and returns how many old entries were dropped to make room
+    public int add(CharSequence entry) {
+        int length = Math.min(entry.length(), arena.length);
+        int dropped = 0;
+        while (next - first == starts.length
+                || (next > first && writePosition + length - starts[slot(first)] > arena.length)) {
+            first++;
+            dropped++;
+        }
+        int offset = (int) (writePosition % arena.length);
+        for (int i = 0; i < length; i++) {
+            arena[offset] = entry.charAt(i);
+            if (++offset == arena.length) offset = 0;
+        }
+        starts[slot(next)] = writePosition;
+        lengths[slot(next)] = length;
+        next++;
+        writePosition += length;
+        return dropped;
+    }
+
+    // Index 0 is the oldest retained entry
+    public String get(int index) {
+        return appendTo(index, new StringBuilder(length(index))).toString();
+    }
+
+    public int length(int index) {
+        return lengths[slot(position(index))];
+    }
+
+    public StringBuilder appendTo(int index, StringBuilder out) {
+        int slot = slot(position(index));
+        int offset = (int) (starts[slot] % arena.length);
+        int length = lengths[slot];
+        int firstPart = Math.min(length, arena.length - offset);
+        out.append(arena, offset, firstPart);
+        if (firstPart < length) out.append(arena, 0, length - firstPart);
+        return out;
+    }
+
+    public void clear() {
+        first = next;
+    }
+
+    // A buffer holding just the retained entries, sized to them. The text is moved
+    // with at most two array copies, so a copy can be taken on the EDT and handed to
+    // another thread.
+    public HistoryBuffer copy() {
+        int size = size();
+        long base = size == 0 ? writePosition : starts[slot(first)];
+        int chars = (int) (writePosition - base);
+        HistoryBuffer copy = new HistoryBuffer(Math.max(1, size), Math.max(1, chars));
+        int offset = (int) (base % arena.length);
+        int firstPart = Math.min(chars, arena.length - offset);
+        System.arraycopy(arena, offset, copy.arena, 0, firstPart);
+        System.arraycopy(arena, 0, copy.arena, firstPart, chars - firstPart);
+        for (int i = 0; i < size; i++) {
+            int slot = slot(first + i);
+            copy.starts[i] = starts[slot] - base;
+            copy.lengths[i] = lengths[slot];
+        }
+        copy.next = size;
+        copy.writePosition = chars;
+        return copy;
+    }
+
+    private long position(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size());
+        }
+        return first + index;
+    }
+
+    private int slot(long position) {
+        return (int) (position % starts.length);
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryBuffer[size=" + size() + ", capacity=" + capacity() + ", chars=" + arena.length + "]";
+    }
+}
@@ -0,0 +1,392 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Persistent calculation history: an append-only binary log plus an on-disk index,
+// both memory-mapped. Opening reads two fixed-size headers and nothing else, so
+// startup cost does not depend on how much history has accumulated.
+//
+// history.log
+//   header  magic, version, entry count, end offset
+//   record  int length | long timestamp | double result | UTF-8 text | int length
+//           (the trailing length lets the newest entries be read backwards)
+//
+// history.idx
+//   header  magic, version, end offset, log offset indexed up to
+//   value buckets    head posting per hash of the result value
+//   trigram buckets  head posting and posting count per hash of a 3-char substring
+//   postings         long record offset | long next posting, newest first
+//
+// A search walks one bucket chain and checks each candidate record, instead of
+// scanning the log. Substring queries shorter than three characters have no
+// trigram to look up and fall back to a backwards scan.
+//
+// The log is committed before its index, so after a crash the index may lag the
+// log; opening indexes whatever the header says it has not seen yet. A file that
+// reaches the 2 GB a mapping can address is set aside as history-<n>.log/.idx and
+// a fresh pair is started; searches cover the current pair.
+//
+// Appends go to a cached end offset, so only one HistoryLog may have the pair open:
+// opening takes an exclusive lock on the log and fails if another calculator
+// holds it. Within one process the open directories are tracked instead, since
+// closing any channel on a file drops the process's lock on it.
+public final class HistoryLog implements Closeable {
+    private static final long LOG_MAGIC = 0x43414C4348495354L; // "CALCHIST"
+    private static final long INDEX_MAGIC = 0x43414C4348494458L; // "CALCHIDX"
+    private static final int VERSION = 1;
+    private static final int INDEX_VERSION = 2;
+    private static final int HEADER = 64;
+    private static final int RECORD_OVERHEAD = 4 + 8 + 8 + 4;
+    private static final int VALUE_BUCKETS = 1 << 12;
+    private static final int GRAM_BUCKETS = 1 << 16;
+    private static final int VALUE_HEADS = HEADER;
+    private static final int GRAM_HEADS = VALUE_HEADS + VALUE_BUCKETS * 8;
+    private static final int GRAM_COUNTS = GRAM_HEADS + GRAM_BUCKETS * 8;
+    private static final int POSTINGS = GRAM_COUNTS + GRAM_BUCKETS * 4;
+    private static final int POSTING = 16;
+    private static final long NONE = -1;
+    private static final Set<Path> OPEN = ConcurrentHashMap.newKeySet();
+
+    private final Path directory;
+    private FileChannel logChannel;
+    private FileChannel indexChannel;
+    private MappedByteBuffer log;
+    private MappedByteBuffer index;
+    private long count;
+    private long logEnd;
+    private long indexEnd;
+    private long indexedEnd;
+
+    public static final class Entry {
+        public final long offset;
+        public final long timestamp;
+        public final double result;
+        public final String text;
+
+        Entry(long offset, long timestamp, double result, String text) {
+            this.offset = offset;
+            this.timestamp = timestamp;
+            this.result = result;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private HistoryLog(Path directory) throws IOException {
+        this.directory = directory;
+        openFiles();
+    }
+
+    public static HistoryLog open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        Path key = directory.toRealPath();
+        if (!OPEN.add(key)) throw new IOException("History is in use by another calculator");
+        try {
+            return new HistoryLog(key);
+        } catch (IOException | RuntimeException e) {
+            OPEN.remove(key);
+            throw e;
+        }
+    }
+
+    private void openFiles() throws IOException {
+        logChannel = FileChannel.open(directory.resolve("history.log"),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (logChannel.tryLock() == null) throw new IOException("History is in use by another calculator");
+            indexChannel = FileChannel.open(directory.resolve("history.idx"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException | RuntimeException e) {
+            logChannel.close();
+            throw e;
+        }
+        try {
+            mapFiles();
+        } catch (IOException | RuntimeException e) {
+            try {
+                logChannel.close();
+            } finally {
+                indexChannel.close();
+            }
+            throw e;
+        }
+    }
+
+    private void mapFiles() throws IOException {
+        boolean freshLog = logChannel.size() == 0;
+        boolean freshIndex = indexChannel.size() < POSTINGS;
+        log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(logChannel.size(), 1 << 20));
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(indexChannel.size(), POSTINGS + (1 << 20)));
+        if (freshLog) {
+            initializeLog();
+        } else {
+            if (log.getLong(0) != LOG_MAGIC) throw new IOException("Not a calculator history log");
+            if (log.getInt(8) != VERSION) throw new IOException("Unsupported history log version " + log.getInt(8));
+            count = log.getLong(16);
+            logEnd = log.getLong(24);
+        }
+        if (!freshIndex && index.getLong(0) != INDEX_MAGIC) throw new IOException("Not a calculator history index");
+        indexedEnd = 0;
+        if (!freshLog && !freshIndex && index.getInt(8) == INDEX_VERSION) {
+            indexEnd = index.getLong(16);
+            indexedEnd = index.getLong(24);
+        }
+        // A missing or older index, or one that has entries the log never committed,
+        // is rebuilt from the log; one that lags it catches up
+        if (indexedEnd < HEADER || indexedEnd > logEnd) {
+            initializeIndex();
+        } else if (indexedEnd < logEnd) {
+            unlinkUncommittedPostings();
+        }
+        for (long position = indexedEnd; position < logEnd; position += RECORD_OVERHEAD + log.getInt((int) position)) {
+            Entry entry = read(position);
+            indexEntry(position, entry.text, entry.result);
+        }
+    }
+
+    public synchronized long size() {
+        return count;
+    }
+
+    // Appends an entry and returns its offset. Results that are not finite (such as
+    // "Memory Cleared") are stored but not indexed by value.
+    public synchronized long append(String text, double result) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        // At most one value and one trigram posting per character
+        long postings = (long) (text.length() + 1) * POSTING;
+        if (logEnd + RECORD_OVERHEAD + bytes.length > Integer.MAX_VALUE || indexEnd + postings > Integer.MAX_VALUE) {
+            rollOver();
+        }
+        long offset = logEnd;
+        ensureLog(offset + RECORD_OVERHEAD + bytes.length);
+        int at = (int) offset;
+        log.putInt(at, bytes.length);
+        log.putLong(at + 4, System.currentTimeMillis());
+        log.putDouble(at + 12, result);
+        log.put(at + 20, bytes);
+        log.putInt(at + 20 + bytes.length, bytes.length);
+        // Commit the record before indexing it
+        logEnd = offset + RECORD_OVERHEAD + bytes.length;
+        count++;
+        log.putLong(24, logEnd);
+        log.putLong(16, count);
+        indexEntry(offset, text, result);
+        return offset;
+    }
+
+    public synchronized Entry read(long offset) {
+        if (offset < HEADER || offset >= logEnd) throw new IllegalArgumentException("No entry at " + offset);
+        int at = (int) offset;
+        int length = log.getInt(at);
+        byte[] bytes = new byte[length];
+        log.get(at + 20, bytes);
+        return new Entry(offset, log.getLong(at + 4), log.getDouble(at + 12), new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    // The newest entries, oldest first
+    public synchronized List<Entry> tail(int limit) {
+        ArrayList<Entry> entries = new ArrayList<>();
+        long position = logEnd;
+        while (position > HEADER && entries.size() < limit) {
+            int length = log.getInt((int) position - 4);
+            position -= RECORD_OVERHEAD + length;
+            entries.add(read(position));
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    // Entries whose result equals value, newest first
+    public synchronized List<Entry> findByResult(double value, int limit) {
+        ArrayList<Entry> found = new ArrayList<>();
+        if (!Double.isFinite(value)) return found;
+        long posting = index.getLong(VALUE_HEADS + valueBucket(value) * 8);
+        while (posting != NONE && found.size() < limit) {
+            long offset = index.getLong((int) posting);
+            if (log.getDouble((int) offset + 12) == value) found.add(read(offset));
+            posting = index.getLong((int) posting + 8);
+        }
+        return found;
+    }
+
+    // Entries whose text contains the query, newest first
+    public synchronized List<Entry> findBySubstring(String query, int limit) {
+        ArrayList<Entry> found = new ArrayList<>();
+        if (query.length() < 3) {
+            long position = logEnd;
+            while (position > HEADER && found.size() < limit) {
+                int length = log.getInt((int) position - 4);
+                position -= RECORD_OVERHEAD + length;
+                Entry entry = read(position);
+                if (entry.text.contains(query)) found.add(entry);
+            }
+            return found;
+        }
+        // Walk the rarest trigram's chain; every match must appear in it
+        int best = -1;
+        int bestCount = Integer.MAX_VALUE;
+        for (int bucket : trigramBuckets(query)) {
+            int n = index.getInt(GRAM_COUNTS + bucket * 4);
+            if (n < bestCount) {
+                best = bucket;
+                bestCount = n;
+            }
+        }
+        long posting = index.getLong(GRAM_HEADS + best * 8);
+        while (posting != NONE && found.size() < limit) {
+            Entry entry = read(index.getLong((int) posting));
+            if (entry.text.contains(query)) found.add(entry);
+            posting = index.getLong((int) posting + 8);
+        }
+        return found;
+    }
+
+    public synchronized void force() {
+        log.force();
+        index.force();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            closeFiles();
+        } finally {
+            OPEN.remove(directory);
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        try {
+            force();
+        } finally {
+            try {
+                logChannel.close();
+            } finally {
+                indexChannel.close();
+            }
+        }
+    }
+
+    private void indexEntry(long offset, String text, double result) throws IOException {
+        if (Double.isFinite(result)) {
+            int head = VALUE_HEADS + valueBucket(result) * 8;
+            index.putLong(head, addPosting(offset, index.getLong(head)));
+        }
+        for (int bucket : trigramBuckets(text)) {
+            int head = GRAM_HEADS + bucket * 8;
+            index.putLong(head, addPosting(offset, index.getLong(head)));
+            index.putInt(GRAM_COUNTS + bucket * 4, index.getInt(GRAM_COUNTS + bucket * 4) + 1);
+        }
+        indexedEnd = offset + RECORD_OVERHEAD + log.getInt((int) offset);
+        index.putLong(16, indexEnd);
+        index.putLong(24, indexedEnd);
+    }
+
+    // A crash while indexing can leave heads pointing at postings past the committed
+    // end, which the catch-up would overwrite. Each such posting was written before
+    // its head, so the head goes back to the posting it replaced. Trigram counts may
+    // stay one high, which only affects which chain a search picks.
+    private void unlinkUncommittedPostings() {
+        for (int head = VALUE_HEADS; head < GRAM_COUNTS; head += 8) {
+            long posting = index.getLong(head);
+            while (posting >= indexEnd) posting = index.getLong((int) posting + 8);
+            index.putLong(head, posting);
+        }
+    }
+
+    // Sets the full pair aside under the first free history-<n> name and starts
+    // an empty one
+    private void rollOver() throws IOException {
+        closeFiles();
+        int n = 1;
+        while (Files.exists(directory.resolve("history-" + n + ".log"))) n++;
+        Files.move(directory.resolve("history.log"), directory.resolve("history-" + n + ".log"));
+        Files.move(directory.resolve("history.idx"), directory.resolve("history-" + n + ".idx"));
+        openFiles();
+    }
+
+    private void initializeLog() {
+        log.putLong(0, LOG_MAGIC);
+        log.putInt(8, VERSION);
+        count = 0;
+        logEnd = HEADER;
+        log.putLong(16, count);
+        log.putLong(24, logEnd);
+    }
+
+    private void initializeIndex() {
+        for (int i = VALUE_HEADS; i < GRAM_COUNTS; i += 8) index.putLong(i, NONE);
+        for (int i = GRAM_COUNTS; i < POSTINGS; i += 4) index.putInt(i, 0);
+        indexEnd = POSTINGS;
+        indexedEnd = HEADER;
+        index.putLong(0, INDEX_MAGIC);
+        index.putInt(8, INDEX_VERSION);
+        index.putLong(16, indexEnd);
+        index.putLong(24, indexedEnd);
+    }
+
+    private long addPosting(long recordOffset, long next) throws IOException {
+        ensureIndex(indexEnd + POSTING);
+        long posting = indexEnd;
+        index.putLong((int) posting, recordOffset);
+        index.putLong((int) posting + 8, next);
+        indexEnd += POSTING;
+        return posting;
+    }
+
+    private void ensureLog(long size) throws IOException {
+        if (size > log.capacity()) log = grow(logChannel, log, size);
+    }
+
+    private void ensureIndex(long size) throws IOException {
+        if (size > index.capacity()) index = grow(indexChannel, index, size);
+    }
+
+    // A single mapping is addressed with int offsets, which caps each file at 2 GB.
+    // Both mappings share the page cache, so nothing needs flushing to remap.
+    private static MappedByteBuffer grow(FileChannel channel, MappedByteBuffer current, long size) throws IOException {
+        long capacity = Math.max(size, Math.min((long) current.capacity() * 2, Integer.MAX_VALUE));
+        if (capacity > Integer.MAX_VALUE) throw new IOException("History log is full");
+        return channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static int valueBucket(double value) {
+        long bits = Double.doubleToLongBits(value == 0 ? 0.0 : value);
+        bits ^= bits >>> 29;
+        bits *= 0x9E3779B97F4A7C15L;
+        return (int) (bits >>> 52) & (VALUE_BUCKETS - 1);
+    }
+
+    // Distinct trigram buckets of text
+    private static int[] trigramBuckets(String text) {
+        if (text.length() < 3) return new int[0];
+        int[] buckets = new int[text.length() - 2];
+        for (int i = 0; i < buckets.length; i++) {
+            long h = text.charAt(i) * 0x9E3779B97F4A7C15L;
+            h = (h ^ text.charAt(i + 1)) * 0xC2B2AE3D27D4EB4FL;
+            h = (h ^ text.charAt(i + 2)) * 0x165667B19E3779F9L;
+            buckets[i] = (int) (h >>> 48) & (GRAM_BUCKETS - 1);
+        }
+        Arrays.sort(buckets);
+        int distinct = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            if (i == 0 || buckets[i] != buckets[i - 1]) buckets[distinct++] = buckets[i];
+        }
+        return Arrays.copyOf(buckets, distinct);
+    }
+}
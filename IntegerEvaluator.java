@@ -0,0 +1,349 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Expression compiler for programmer mode. Parses integer expressions into an
+// IntegerExpression for a given word (see IntegerExpression.Word), with C
+// precedence from loosest to tightest:
+//
+//   |  or          bitwise or
+//   ^  xor         bitwise exclusive or (not a power, as it is in Evaluator)
+//   &  and         bitwise and
+//   << >> >>> shl shr rol ror
+//                  shifts and rotations; ">>" and "shr" fill with the sign on
+//                  signed words, ">>>" always with zeros
+//   + -
+//   * / % mod      "%" is the remainder, not a percentage
+//   - ~ not        prefix minus and bitwise not
+//
+// All binary operators are left-associative. Literals are decimal or take a 0x,
+// 0o or 0b prefix, may separate digit groups with '_' (0xFFFF_0000), and may
+// use every bit of the word: 0xFFFFFFFFFFFFFFFF and 18446744073709551615 are both
+// -1 on a signed 64-bit word. Any other identifier is a variable. Malformed
+// input raises IllegalArgumentException; like Evaluator the parser is iterative
+// and instances are confined to one compile call.
+public final class IntegerEvaluator {
+    // Marker for an open parenthesis on the operator stack
+    private static final byte LPAREN = -1;
+    private static final String[] OPERATOR_WORDS = {"or", "xor", "and", "shl", "shr", "rol", "ror", "mod"};
+
+    private final CharSequence src;
+    private final int end;
+    private final IntegerExpression.Word word;
+    private int pos;
+
+    private byte[] ops = new byte[16];
+    private int[] args = new int[16];
+    private int size;
+    private long[] lows = new long[8];
+    private long[] highs = new long[8];
+    private int constantCount;
+    private final ArrayList<String> variables = new ArrayList<>();
+    private final ByteStack operators = new ByteStack();
+    private int depth;
+    private int maxDepth;
+    // The literal being read, as high:low
+    private long high;
+    private long low;
+
+    private IntegerEvaluator(CharSequence src, IntegerExpression.Word word) {
+        this.src = src;
+        this.end = src.length();
+        this.word = word;
+    }
+
+    public static long evaluate(CharSequence expression, IntegerExpression.Word word) {
+        return compile(expression, word).evaluate();
+    }
+
+    public static IntegerExpression compile(CharSequence expression, IntegerExpression.Word word) {
+        IntegerEvaluator e = new IntegerEvaluator(expression, word);
+        e.parse();
+        return new IntegerExpression(expression.toString(), word,
+            Arrays.copyOf(e.ops, e.size), Arrays.copyOf(e.args, e.size),
+            Arrays.copyOf(e.lows, e.constantCount), Arrays.copyOf(e.highs, e.constantCount),
+            e.variables.toArray(new String[0]), e.maxDepth);
+    }
+
+    private void parse() {
+        boolean expectOperand = true;
+        while (true) {
+            char c = peek();
+            if (expectOperand) {
+                if (c == '(') {
+                    pos++;
+                    operators.push(LPAREN);
+                } else if (c == '-') {
+                    pos++;
+                    operators.push(IntegerExpression.NEG);
+                } else if (c == '~') {
+                    pos++;
+                    operators.push(IntegerExpression.NOT);
+                } else if (c == '+') {
+                    pos++;
+                } else if (isDigit(c)) {
+                    parseLiteral();
+                    emitConstant(high, low);
+                    expectOperand = false;
+                } else if (isLetter(c)) {
+                    int start = pos;
+                    while (pos < end && isIdentifierPart(src.charAt(pos))) pos++;
+                    if (matches(start, "not")) {
+                        operators.push(IntegerExpression.NOT);
+                    } else if (operatorWord(start) >= 0) {
+                        throw error("Unexpected '" + src.subSequence(start, pos) + "'");
+                    } else {
+                        emitVariable(src.subSequence(start, pos).toString());
+                        expectOperand = false;
+                    }
+                } else {
+                    throw pos < end ? error("Unexpected '" + c + "'") : error("Unexpected end of expression");
+                }
+            } else {
+                byte op = binaryOperator(c);
+                if (op >= 0) {
+                    reduce(precedence(op));
+                    operators.push(op);
+                    expectOperand = true;
+                } else if (c == ')') {
+                    reduce(0);
+                    if (operators.isEmpty()) throw error("Unexpected ')'");
+                    operators.pop();
+                    pos++;
+                } else if (pos == end) {
+                    reduce(0);
+                    if (!operators.isEmpty()) throw error("Missing ')'");
+                    return;
+                } else {
+                    throw error("Unexpected '" + c + "'");
+                }
+            }
+        }
+    }
+
+    // Emits pending operators that bind at least as tightly as minPrecedence, stopping
+    // at an open parenthesis
+    private void reduce(int minPrecedence) {
+        while (!operators.isEmpty() && operators.peek() != LPAREN
+                && precedence(operators.peek()) >= minPrecedence) {
+            byte op = operators.pop();
+            emit(op, 0, isUnary(op) ? 0 : -1);
+        }
+    }
+
+    // Reads the binary operator at the current position, or returns -1 and leaves
+    // the position alone
+    private byte binaryOperator(char c) {
+        byte op;
+        int length = 1;
+        switch (c) {
+            case '|': op = IntegerExpression.OR; break;
+            case '^': op = IntegerExpression.XOR; break;
+            case '&': op = IntegerExpression.AND; break;
+            case '+': op = IntegerExpression.ADD; break;
+            case '-': op = IntegerExpression.SUB; break;
+            case '*': op = IntegerExpression.MUL; break;
+            case '/': op = word.signed() ? IntegerExpression.DIV : IntegerExpression.UDIV; break;
+            case '%': op = word.signed() ? IntegerExpression.REM : IntegerExpression.UREM; break;
+            case '<':
+                if (!next('<', 1)) return -1;
+                op = IntegerExpression.SHL;
+                length = 2;
+                break;
+            case '>':
+                if (!next('>', 1)) return -1;
+                boolean logical = next('>', 2);
+                op = logical || !word.signed() ? IntegerExpression.USHR : IntegerExpression.SHR;
+                length = logical ? 3 : 2;
+                break;
+            default:
+                if (!isLetter(c)) return -1;
+                int start = pos;
+                while (pos < end && isIdentifierPart(src.charAt(pos))) pos++;
+                op = operatorWord(start);
+                if (op < 0) throw error("Unexpected '" + src.subSequence(start, pos) + "'");
+                return op;
+        }
+        pos += length;
+        return op;
+    }
+
+    // The operator spelled by the identifier from start to the current position, or -1
+    private byte operatorWord(int start) {
+        for (int i = 0; i < OPERATOR_WORDS.length; i++) {
+            if (!matches(start, OPERATOR_WORDS[i])) continue;
+            switch (i) {
+                case 0: return IntegerExpression.OR;
+                case 1: return IntegerExpression.XOR;
+                case 2: return IntegerExpression.AND;
+                case 3: return IntegerExpression.SHL;
+                case 4: return word.signed() ? IntegerExpression.SHR : IntegerExpression.USHR;
+                case 5: return IntegerExpression.ROL;
+                case 6: return IntegerExpression.ROR;
+                default: return word.signed() ? IntegerExpression.REM : IntegerExpression.UREM;
+            }
+        }
+        return -1;
+    }
+
+    private static int precedence(byte op) {
+        switch (op) {
+            case IntegerExpression.OR:
+                return 1;
+            case IntegerExpression.XOR:
+                return 2;
+            case IntegerExpression.AND:
+                return 3;
+            case IntegerExpression.SHL:
+            case IntegerExpression.SHR:
+            case IntegerExpression.USHR:
+            case IntegerExpression.ROL:
+            case IntegerExpression.ROR:
+                return 4;
+            case IntegerExpression.ADD:
+            case IntegerExpression.SUB:
+                return 5;
+            case IntegerExpression.MUL:
+            case IntegerExpression.DIV:
+            case IntegerExpression.UDIV:
+            case IntegerExpression.REM:
+            case IntegerExpression.UREM:
+                return 6;
+            default:
+                // Prefix operators bind tighter than any binary operator
+                return 7;
+        }
+    }
+
+    private static boolean isUnary(byte op) {
+        return precedence(op) == 7;
+    }
+
+    // Reads a literal into high:low
+    private void parseLiteral() {
+        int radix = 10;
+        if (src.charAt(pos) == '0' && pos + 1 < end) {
+            switch (src.charAt(pos + 1)) {
+                case 'x': case 'X': radix = 16; break;
+                case 'o': case 'O': radix = 8; break;
+                case 'b': case 'B': radix = 2; break;
+                default: break;
+            }
+            if (radix != 10) pos += 2;
+        }
+        high = 0;
+        low = 0;
+        int digits = 0;
+        boolean separated = false;
+        for (; pos < end; pos++) {
+            char c = src.charAt(pos);
+            if (c == '_' && digits > 0 && !separated) {
+                separated = true;
+                continue;
+            }
+            int digit = Character.digit(c, radix);
+            if (digit < 0) break;
+            accumulate(radix, digit);
+            digits++;
+            separated = false;
+        }
+        if (digits == 0 || separated || (pos < end && (isIdentifierPart(src.charAt(pos)) || src.charAt(pos) == '.'))) {
+            throw error("Malformed number");
+        }
+        if (word.bits() == 64 && high != 0) throw error("Number too large");
+    }
+
+    // high:low = high:low * radix + digit, failing when it no longer fits 128 bits
+    private void accumulate(int radix, int digit) {
+        long scaledHigh = high * radix;
+        long newHigh = scaledHigh + Math.unsignedMultiplyHigh(low, radix);
+        boolean overflow = Math.unsignedMultiplyHigh(high, radix) != 0 || Long.compareUnsigned(newHigh, scaledHigh) < 0;
+        long scaledLow = low * radix;
+        long newLow = scaledLow + digit;
+        if (Long.compareUnsigned(newLow, scaledLow) < 0) {
+            newHigh++;
+            overflow |= newHigh == 0;
+        }
+        if (overflow) throw error("Number too large");
+        high = newHigh;
+        low = newLow;
+    }
+
+    private void emitVariable(String name) {
+        int slot = variables.indexOf(name);
+        if (slot < 0) {
+            slot = variables.size();
+            variables.add(name);
+        }
+        emit(IntegerExpression.LOAD, slot, 1);
+    }
+
+    private void emitConstant(long constantHigh, long constantLow) {
+        int index = -1;
+        for (int i = 0; i < constantCount; i++) {
+            if (lows[i] == constantLow && highs[i] == constantHigh) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            if (constantCount == lows.length) {
+                lows = Arrays.copyOf(lows, constantCount * 2);
+                highs = Arrays.copyOf(highs, constantCount * 2);
+            }
+            index = constantCount;
+            highs[constantCount] = constantHigh;
+            lows[constantCount++] = constantLow;
+        }
+        emit(IntegerExpression.CONST, index, 1);
+    }
+
+    // stackEffect is the net change of the evaluation stack depth
+    private void emit(byte op, int arg, int stackEffect) {
+        if (size == ops.length) {
+            ops = Arrays.copyOf(ops, size * 2);
+            args = Arrays.copyOf(args, size * 2);
+        }
+        ops[size] = op;
+        args[size] = arg;
+        size++;
+        depth += stackEffect;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private char peek() {
+        skipSpaces();
+        return pos < end ? src.charAt(pos) : '\0';
+    }
+
+    private boolean next(char c, int offset) {
+        return pos + offset < end && src.charAt(pos + offset) == c;
+    }
+
+    private void skipSpaces() {
+        while (pos < end && Character.isWhitespace(src.charAt(pos))) pos++;
+    }
+
+    private boolean matches(int start, String word) {
+        if (pos - start != word.length()) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (src.charAt(start + i) != word.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return isLetter(c) || isDigit(c);
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at position " + pos);
+    }
+}
@@ -0,0 +1,483 @@
+// An expression compiled by IntegerEvaluator for programmer mode: the same kind of
+// flat postfix program as CompiledExpression, but over two's complement integers of
+// a fixed word instead of doubles, so every bit of a 64-bit (or 128-bit) value
+// survives and the bitwise operators are available. Instances are immutable and can
+// be evaluated concurrently by any number of threads.
+//
+// Arithmetic wraps around at the word size like it does in C or Java. Division and
+// remainder by zero and a negative shift count on a signed word raise
+// ArithmeticException; shifting by the word size or more shifts every bit out.
+// Rotations count modulo the word size.
+//
+// 64-bit words run on primitive longs. 128-bit words keep each value as a high
+// and a low long in adjacent stack slots; variables then take two longs each,
+// high first. Neither interpreter allocates when given a workspace.
+public final class IntegerExpression {
+    static final byte CONST = 0;
+    static final byte LOAD = 1;
+    static final byte ADD = 2;
+    static final byte SUB = 3;
+    static final byte MUL = 4;
+    // Signed and unsigned division and remainder; the parser picks by the word
+    static final byte DIV = 5;
+    static final byte UDIV = 6;
+    static final byte REM = 7;
+    static final byte UREM = 8;
+    static final byte NEG = 9;
+    static final byte NOT = 10;
+    static final byte AND = 11;
+    static final byte OR = 12;
+    static final byte XOR = 13;
+    static final byte SHL = 14;
+    // Arithmetic (sign-filling) and logical right shift
+    static final byte SHR = 15;
+    static final byte USHR = 16;
+    static final byte ROL = 17;
+    static final byte ROR = 18;
+
+    private static final long[] NO_VALUES = new long[0];
+    private static final ThreadLocal<LongStack> WORKSPACE = ThreadLocal.withInitial(LongStack::new);
+
+    // Word size and signedness; decides the range of literals, division and ">>",
+    // and how results are shown
+    public enum Word {
+        INT64("i64", 64, true),
+        UINT64("u64", 64, false),
+        INT128("i128", 128, true),
+        UINT128("u128", 128, false);
+
+        private final String label;
+        private final int bits;
+        private final boolean signed;
+
+        Word(String label, int bits, boolean signed) {
+            this.label = label;
+            this.bits = bits;
+            this.signed = signed;
+        }
+
+        public String label() {
+            return label;
+        }
+
+        public int bits() {
+            return bits;
+        }
+
+        public boolean signed() {
+            return signed;
+        }
+
+        public boolean wide() {
+            return bits == 128;
+        }
+
+        // Nearest double to high:low read as this word, for places that only keep doubles
+        public double toDouble(long high, long low) {
+            double unsignedLow = (double) (low >>> 1) * 2 + (low & 1);
+            if (bits == 64) return signed ? low : unsignedLow;
+            double highPart = signed ? high : (double) (high >>> 1) * 2 + (high & 1);
+            return highPart * 0x1p64 + unsignedLow;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+
+        public static Word of(String label) {
+            for (Word word : values()) {
+                if (word.label.equalsIgnoreCase(label)) return word;
+            }
+            throw new IllegalArgumentException("Unknown word size '" + label + "'");
+        }
+    }
+
+    private final String source;
+    private final Word word;
+    final byte[] ops;
+    final int[] args;
+    // Constant i is highs[i]:lows[i]; 64-bit words only use the low half
+    final long[] lows;
+    final long[] highs;
+    final String[] variables;
+    final int maxDepth;
+
+    IntegerExpression(String source, Word word, byte[] ops, int[] args, long[] lows, long[] highs,
+            String[] variables, int maxDepth) {
+        this.source = source;
+        this.word = word;
+        this.ops = ops;
+        this.args = args;
+        this.lows = lows;
+        this.highs = highs;
+        this.variables = variables;
+        this.maxDepth = maxDepth;
+    }
+
+    public String source() {
+        return source;
+    }
+
+    public Word word() {
+        return word;
+    }
+
+    public int variableCount() {
+        return variables.length;
+    }
+
+    public String variable(int index) {
+        return variables[index];
+    }
+
+    public long evaluate() {
+        return evaluate(WORKSPACE.get(), NO_VALUES);
+    }
+
+    // Values are bound to variables in order of their first appearance in the source.
+    public long evaluate(long... values) {
+        return evaluate(WORKSPACE.get(), values);
+    }
+
+    // The 64-bit interpreter, on a caller-owned stack: nothing is allocated
+    public long evaluate(LongStack workspace, long[] values) {
+        if (word.wide()) throw new IllegalStateException("A 128-bit expression has a two-long result");
+        if (values.length < variables.length) {
+            throw new IllegalArgumentException("Missing value for variable '" + variables[values.length] + "'");
+        }
+        long[] s = workspace.array(maxDepth);
+        boolean signed = word.signed();
+        int sp = -1;
+        for (int pc = 0; pc < ops.length; pc++) {
+            switch (ops[pc]) {
+                case CONST:
+                    s[++sp] = lows[args[pc]];
+                    break;
+                case LOAD:
+                    s[++sp] = values[args[pc]];
+                    break;
+                case ADD:
+                    s[sp - 1] += s[sp];
+                    sp--;
+                    break;
+                case SUB:
+                    s[sp - 1] -= s[sp];
+                    sp--;
+                    break;
+                case MUL:
+                    s[sp - 1] *= s[sp];
+                    sp--;
+                    break;
+                case DIV:
+                    s[sp - 1] /= divisor(s[sp]);
+                    sp--;
+                    break;
+                case UDIV:
+                    s[sp - 1] = Long.divideUnsigned(s[sp - 1], divisor(s[sp]));
+                    sp--;
+                    break;
+                case REM:
+                    s[sp - 1] %= divisor(s[sp]);
+                    sp--;
+                    break;
+                case UREM:
+                    s[sp - 1] = Long.remainderUnsigned(s[sp - 1], divisor(s[sp]));
+                    sp--;
+                    break;
+                case NEG:
+                    s[sp] = -s[sp];
+                    break;
+                case NOT:
+                    s[sp] = ~s[sp];
+                    break;
+                case AND:
+                    s[sp - 1] &= s[sp];
+                    sp--;
+                    break;
+                case OR:
+                    s[sp - 1] |= s[sp];
+                    sp--;
+                    break;
+                case XOR:
+                    s[sp - 1] ^= s[sp];
+                    sp--;
+                    break;
+                case SHL: {
+                    int n = shiftCount(0, s[sp--], 64, signed);
+                    s[sp] = n == 64 ? 0 : s[sp] << n;
+                    break;
+                }
+                case SHR: {
+                    int n = shiftCount(0, s[sp--], 64, signed);
+                    s[sp] = s[sp] >> Math.min(n, 63);
+                    break;
+                }
+                case USHR: {
+                    int n = shiftCount(0, s[sp--], 64, signed);
+                    s[sp] = n == 64 ? 0 : s[sp] >>> n;
+                    break;
+                }
+                case ROL:
+                    // The int cast keeps the count modulo 64, which is all a rotation uses
+                    s[sp - 1] = Long.rotateLeft(s[sp - 1], (int) s[sp]);
+                    sp--;
+                    break;
+                case ROR:
+                    s[sp - 1] = Long.rotateRight(s[sp - 1], (int) s[sp]);
+                    sp--;
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode " + ops[pc]);
+            }
+        }
+        return s[0];
+    }
+
+    // Evaluates any word into result[0] (high) and result[1] (low). For a 64-bit
+    // word the high half is the sign or zero extension of the low one; for a
+    // 128-bit word values holds a high and a low long per variable.
+    public void evaluate(LongStack workspace, long[] values, long[] result) {
+        if (!word.wide()) {
+            long low = evaluate(workspace, values);
+            result[0] = word.signed() ? low >> 63 : 0;
+            result[1] = low;
+            return;
+        }
+        if (values.length < 2 * variables.length) {
+            throw new IllegalArgumentException("Missing value for variable '" + variables[values.length / 2] + "'");
+        }
+        long[] s = workspace.array(2 * maxDepth);
+        boolean signed = word.signed();
+        // The value on top of the stack is s[sp]:s[sp + 1], the one below it s[sp - 2]:s[sp - 1]
+        int sp = -2;
+        for (int pc = 0; pc < ops.length; pc++) {
+            int a = sp - 2;
+            switch (ops[pc]) {
+                case CONST:
+                    sp += 2;
+                    s[sp] = highs[args[pc]];
+                    s[sp + 1] = lows[args[pc]];
+                    break;
+                case LOAD:
+                    sp += 2;
+                    s[sp] = values[2 * args[pc]];
+                    s[sp + 1] = values[2 * args[pc] + 1];
+                    break;
+                case ADD: {
+                    long low = s[a + 1] + s[sp + 1];
+                    s[a] += s[sp] + (Long.compareUnsigned(low, s[a + 1]) < 0 ? 1 : 0);
+                    s[a + 1] = low;
+                    sp = a;
+                    break;
+                }
+                case SUB: {
+                    long borrow = Long.compareUnsigned(s[a + 1], s[sp + 1]) < 0 ? 1 : 0;
+                    s[a] -= s[sp] + borrow;
+                    s[a + 1] -= s[sp + 1];
+                    sp = a;
+                    break;
+                }
+                case MUL: {
+                    long x = s[a + 1];
+                    long y = s[sp + 1];
+                    s[a] = Math.unsignedMultiplyHigh(x, y) + s[a] * y + x * s[sp];
+                    s[a + 1] = x * y;
+                    sp = a;
+                    break;
+                }
+                case DIV:
+                case REM:
+                    divideSigned(s, a, sp, ops[pc] == REM);
+                    sp = a;
+                    break;
+                case UDIV:
+                case UREM:
+                    divideUnsigned(s, a, sp, ops[pc] == UREM);
+                    sp = a;
+                    break;
+                case NEG:
+                    negate(s, sp);
+                    break;
+                case NOT:
+                    s[sp] = ~s[sp];
+                    s[sp + 1] = ~s[sp + 1];
+                    break;
+                case AND:
+                    s[a] &= s[sp];
+                    s[a + 1] &= s[sp + 1];
+                    sp = a;
+                    break;
+                case OR:
+                    s[a] |= s[sp];
+                    s[a + 1] |= s[sp + 1];
+                    sp = a;
+                    break;
+                case XOR:
+                    s[a] ^= s[sp];
+                    s[a + 1] ^= s[sp + 1];
+                    sp = a;
+                    break;
+                case SHL:
+                    shiftLeft(s, a, shiftCount(s[sp], s[sp + 1], 128, signed));
+                    sp = a;
+                    break;
+                case SHR:
+                case USHR:
+                    shiftRight(s, a, shiftCount(s[sp], s[sp + 1], 128, signed), ops[pc] == SHR);
+                    sp = a;
+                    break;
+                case ROL:
+                case ROR: {
+                    int n = (int) (s[sp + 1] & 127);
+                    rotateLeft(s, a, ops[pc] == ROL ? n : (128 - n) & 127);
+                    sp = a;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + ops[pc]);
+            }
+        }
+        result[0] = s[0];
+        result[1] = s[1];
+    }
+
+    private static long divisor(long value) {
+        if (value == 0) throw new ArithmeticException("Division by zero");
+        return value;
+    }
+
+    // Shift count from high:low, or bits when it is bits or more
+    private static int shiftCount(long high, long low, int bits, boolean signed) {
+        if (signed && (bits == 64 ? low : high) < 0) throw new ArithmeticException("Negative shift count");
+        if (high != 0 || low < 0 || low >= bits) return bits;
+        return (int) low;
+    }
+
+    private static void negate(long[] s, int i) {
+        s[i] = ~s[i] + (s[i + 1] == 0 ? 1 : 0);
+        s[i + 1] = -s[i + 1];
+    }
+
+    private static void shiftLeft(long[] s, int i, int n) {
+        if (n >= 128) {
+            s[i] = 0;
+            s[i + 1] = 0;
+        } else if (n >= 64) {
+            s[i] = s[i + 1] << (n - 64);
+            s[i + 1] = 0;
+        } else if (n > 0) {
+            s[i] = s[i] << n | s[i + 1] >>> (64 - n);
+            s[i + 1] <<= n;
+        }
+    }
+
+    private static void shiftRight(long[] s, int i, int n, boolean arithmetic) {
+        long fill = arithmetic ? s[i] >> 63 : 0;
+        if (n >= 128) {
+            s[i] = fill;
+            s[i + 1] = fill;
+        } else if (n >= 64) {
+            s[i + 1] = arithmetic ? s[i] >> (n - 64) : s[i] >>> (n - 64);
+            s[i] = fill;
+        } else if (n > 0) {
+            s[i + 1] = s[i + 1] >>> n | s[i] << (64 - n);
+            s[i] = arithmetic ? s[i] >> n : s[i] >>> n;
+        }
+    }
+
+    private static void rotateLeft(long[] s, int i, int n) {
+        if (n >= 64) {
+            long high = s[i];
+            s[i] = s[i + 1];
+            s[i + 1] = high;
+            n -= 64;
+        }
+        if (n > 0) {
+            long high = s[i];
+            s[i] = high << n | s[i + 1] >>> (64 - n);
+            s[i + 1] = s[i + 1] << n | high >>> (64 - n);
+        }
+    }
+
+    // Truncating signed division: the quotient is negative when the signs differ and
+    // the remainder takes the sign of the dividend
+    private static void divideSigned(long[] s, int a, int b, boolean remainder) {
+        boolean negativeDividend = s[a] < 0;
+        boolean negativeDivisor = s[b] < 0;
+        if (negativeDividend) negate(s, a);
+        if (negativeDivisor) negate(s, b);
+        divideUnsigned(s, a, b, remainder);
+        if (remainder ? negativeDividend : negativeDividend != negativeDivisor) negate(s, a);
+    }
+
+    // Unsigned quotient or remainder of s[a]:s[a + 1] by s[b]:s[b + 1], into
+    // s[a]:s[a + 1]. Divisions that fit in 64 bits take a single hardware divide
+    // and divisors below 2^63 a few; the rest shift and subtract, one step per bit
+    // of quotient.
+    private static void divideUnsigned(long[] s, int a, int b, boolean remainder) {
+        long high = s[a];
+        long low = s[a + 1];
+        long divisorHigh = s[b];
+        long divisorLow = s[b + 1];
+        if (divisorHigh == 0 && divisorLow == 0) throw new ArithmeticException("Division by zero");
+        if (high == 0 && divisorHigh == 0) {
+            s[a + 1] = remainder ? Long.remainderUnsigned(low, divisorLow) : Long.divideUnsigned(low, divisorLow);
+            return;
+        }
+        if (divisorHigh == 0 && divisorLow > 0) {
+            // Schoolbook division of the low half in chunks as wide as the divisor's
+            // leading zeros, so the running remainder and a chunk fit in one long
+            int chunk = Long.numberOfLeadingZeros(divisorLow);
+            long quotientHigh = Long.divideUnsigned(high, divisorLow);
+            long r = Long.remainderUnsigned(high, divisorLow);
+            long quotientLow = 0;
+            for (int shift = 64; shift > 0; ) {
+                int bits = Math.min(chunk, shift);
+                shift -= bits;
+                r = r << bits | (low >>> shift & ((1L << bits) - 1));
+                quotientLow |= Long.divideUnsigned(r, divisorLow) << shift;
+                r = Long.remainderUnsigned(r, divisorLow);
+            }
+            s[a] = remainder ? 0 : quotientHigh;
+            s[a + 1] = remainder ? r : quotientLow;
+            return;
+        }
+        int steps = leadingZeros(divisorHigh, divisorLow) - leadingZeros(high, low);
+        if (steps < 0) {
+            if (!remainder) {
+                s[a] = 0;
+                s[a + 1] = 0;
+            }
+            return;
+        }
+        // Line the divisor up under the dividend's top bit
+        s[b] = divisorHigh;
+        s[b + 1] = divisorLow;
+        shiftLeft(s, b, steps);
+        divisorHigh = s[b];
+        divisorLow = s[b + 1];
+        long quotientHigh = 0;
+        long quotientLow = 0;
+        for (int bit = steps; bit >= 0; bit--) {
+            int compare = Long.compareUnsigned(high, divisorHigh);
+            if (compare > 0 || (compare == 0 && Long.compareUnsigned(low, divisorLow) >= 0)) {
+                high -= divisorHigh + (Long.compareUnsigned(low, divisorLow) < 0 ? 1 : 0);
+                low -= divisorLow;
+                if (bit >= 64) {
+                    quotientHigh |= 1L << (bit - 64);
+                } else {
+                    quotientLow |= 1L << bit;
+                }
+            }
+            divisorLow = divisorLow >>> 1 | divisorHigh << 63;
+            divisorHigh >>>= 1;
+        }
+        s[a] = remainder ? high : quotientHigh;
+        s[a + 1] = remainder ? low : quotientLow;
+    }
+
+    private static int leadingZeros(long high, long low) {
+        return high != 0 ? Long.numberOfLeadingZeros(high) : 64 + Long.numberOfLeadingZeros(low);
+    }
+}
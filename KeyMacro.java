@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A recorded stream of keypad keys. The calculator records every key while a
+// macro is being recorded and replays one by queueing its keys like typed ones,
+// which are then handled as fast as the evaluations they start allow.
+//
+// Keys are the labels on the keypad ("7", "+", "√", "xʸ", "⌫", "MS", ...), with
+// "Esc" for the Escape key. As text a macro is those labels separated by spaces,
+// the format KeypadFuzz replays, so a macro can also be written by hand. Not
+// thread-safe.
+public final class KeyMacro {
+    private final List<String> keys = new ArrayList<>();
+
+    public void add(String key) {
+        keys.add(key);
+    }
+
+    public List<String> keys() {
+        return Collections.unmodifiableList(keys);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public static KeyMacro parse(CharSequence text) {
+        KeyMacro macro = new KeyMacro();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean space = i == text.length() || Character.isWhitespace(text.charAt(i));
+            if (space && start >= 0) {
+                macro.add(text.subSequence(start, i).toString());
+                start = -1;
+            } else if (!space && start < 0) {
+                start = i;
+            }
+        }
+        return macro;
+    }
+
+    public static KeyMacro read(Path file) throws IOException {
+        return parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    public void write(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        if (directory != null) Files.createDirectories(directory);
+        Files.write(file, (this + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString() {
+        return String.join(" ", keys);
+    }
+}
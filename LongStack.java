@@ -0,0 +1,50 @@
+import java.util.Arrays;
+
+// Growable stack of primitive longs. Unlike Stack<Long> it neither boxes nor
+// synchronizes; each instance is meant to be owned by a single thread and reused.
+public final class LongStack {
+    private long[] values;
+    private int size;
+
+    public LongStack() {
+        this(16);
+    }
+
+    public LongStack(int capacity) {
+        values = new long[Math.max(1, capacity)];
+    }
+
+    public void push(long value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    public long pop() {
+        if (size == 0) throw new IllegalStateException("Stack is empty");
+        return values[--size];
+    }
+
+    public long peek() {
+        if (size == 0) throw new IllegalStateException("Stack is empty");
+        return values[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Returns the backing array with room for at least capacity values, for callers
+    // that index the stack directly in a tight loop.
+    long[] array(int capacity) {
+        if (values.length < capacity) values = new long[Math.max(capacity, values.length * 2)];
+        return values;
+    }
+}
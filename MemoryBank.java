@@ -0,0 +1,116 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Named memory registers. Each register keeps a compensated running total for
+// M+/M- tallies plus the count, mean and variance of the values added to it
+// (Welford's method), all updated in O(1). The calculator buttons act on the
+// register named DEFAULT; the server reaches the others by name. Not thread-safe.
+public final class MemoryBank {
+    public static final String DEFAULT = "M";
+
+    private final Map<String, Register> registers = new LinkedHashMap<>();
+
+    public static final class Register {
+        private final CompensatedSum total = new CompensatedSum();
+        private long count;
+        private double mean;
+        private double m2;
+
+        // M+ with value, M- with -value
+        public void add(double value) {
+            total.add(value);
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        // MS: the register holds exactly this value, as if it were the only one added
+        public void store(double value) {
+            clear();
+            add(value);
+        }
+
+        // MC
+        public void clear() {
+            total.reset();
+            count = 0;
+            mean = 0;
+            m2 = 0;
+        }
+
+        public double value() {
+            return total.value();
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public double mean() {
+            return count > 0 ? mean : Double.NaN;
+        }
+
+        // Sample variance; NaN until two values have been added
+        public double variance() {
+            return count > 1 ? m2 / (count - 1) : Double.NaN;
+        }
+
+        public double standardDeviation() {
+            return Math.sqrt(variance());
+        }
+
+        // Raw state for SessionSnapshot: restore() with these values gives a register
+        // that behaves exactly like this one
+        CompensatedSum total() {
+            return total;
+        }
+
+        double runningMean() {
+            return mean;
+        }
+
+        double sumOfSquares() {
+            return m2;
+        }
+
+        void restore(double sum, double compensation, long count, double mean, double m2) {
+            total.set(sum, compensation);
+            this.count = count;
+            this.mean = mean;
+            this.m2 = m2;
+        }
+    }
+
+    public Register register(String name) {
+        return registers.computeIfAbsent(name, n -> new Register());
+    }
+
+    public Register defaultRegister() {
+        return register(DEFAULT);
+    }
+
+    public Set<String> names() {
+        return registers.keySet();
+    }
+
+    public void remove(String name) {
+        registers.remove(name);
+    }
+
+    public void clear() {
+        registers.clear();
+    }
+
+    // An independent copy of every register, e.g. to hand to a thread that saves it
+    public MemoryBank copy() {
+        MemoryBank copy = new MemoryBank();
+        for (Map.Entry<String, Register> entry : registers.entrySet()) {
+            Register from = entry.getValue();
+            copy.register(entry.getKey()).restore(from.total.sum(), from.total.compensation(),
+                from.count, from.mean, from.m2);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,151 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Timing of the hot paths: a latency histogram per stage (key handling, evaluation,
+// formatting, history update, theme change, server request) and per calculator
+// key, each recording also emitted as a "calculator.Stage" Flight Recorder event.
+//
+// Off unless the JVM runs with -Dcalculator.metrics=true. ENABLED is a static
+// final, so with it off the JIT folds every
+//
+//   long started = Metrics.start();
+//   ...
+//   Metrics.KEY.stop(started);
+//
+// down to nothing. With it on, a stop costs two clock reads and a few atomic
+// increments. text() and json() export a snapshot; Calculator writes one on exit
+// to the file named by -Dcalculator.metrics.out (standard error if unset) and the
+// server answers GET /metrics.
+public final class Metrics {
+    public static final boolean ENABLED = Boolean.getBoolean("calculator.metrics");
+
+    private static final List<Stage> STAGES = new ArrayList<>();
+    private static final Map<String, Stage> OPERATORS = new ConcurrentHashMap<>();
+
+    public static final Stage KEY = stage("key");
+    public static final Stage EVALUATE = stage("evaluate");
+    public static final Stage FORMAT = stage("format");
+    public static final Stage HISTORY = stage("history");
+    public static final Stage THEME = stage("theme");
+    public static final Stage REQUEST = stage("request");
+
+    private Metrics() {
+    }
+
+    // Start time for Stage.stop, or 0 when metrics are off
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    // The stage of one calculator key ("+", "=", "sin", ...); digits share "digit"
+    public static Stage operator(String key) {
+        return OPERATORS.computeIfAbsent(key, name -> new Stage("key " + name));
+    }
+
+    public static final class Stage {
+        private final String name;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private Stage(String name) {
+            this.name = name;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public LatencyHistogram histogram() {
+            return histogram;
+        }
+
+        public void stop(long started) {
+            if (!ENABLED) return;
+            long nanos = System.nanoTime() - started;
+            histogram.record(nanos);
+            StageEvent event = new StageEvent();
+            if (event.shouldCommit()) {
+                event.stage = name;
+                event.elapsed = nanos;
+                event.commit();
+            }
+        }
+    }
+
+    @Name("calculator.Stage")
+    @Label("Calculator Stage")
+    @Category("Calculator")
+    @Description("One timed pass through a calculator hot path")
+    @StackTrace(false)
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        // JFR reserves "duration" for begin/end events; these are committed after the fact
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    // One line per stage that recorded anything: count, mean and percentiles in
+    // microseconds
+    public static String text() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-16s %10s %10s %10s %10s %10s %10s%n", "stage", "count", "mean us", "p50", "p99", "p99.9", "max"));
+        for (Stage stage : stages()) {
+            LatencyHistogram h = stage.histogram;
+            out.append(String.format("%-16s %10d %10.2f %10.2f %10.2f %10.2f %10.2f%n", stage.name, h.count(),
+                h.mean() / 1e3, h.percentile(0.5) / 1e3, h.percentile(0.99) / 1e3, h.percentile(0.999) / 1e3, h.max() / 1e3));
+        }
+        return out.toString();
+    }
+
+    // {"stage": {"count": n, "mean": ns, "p50": ns, "p90": ns, "p99": ns, "p999": ns, "max": ns}, ...}
+    public static String json() {
+        StringBuilder out = new StringBuilder("{");
+        for (Stage stage : stages()) {
+            LatencyHistogram h = stage.histogram;
+            if (out.length() > 1) out.append(',');
+            out.append('"').append(stage.name).append("\":{\"count\":").append(h.count())
+                .append(",\"mean\":").append(Math.round(h.mean()))
+                .append(",\"p50\":").append(h.percentile(0.5))
+                .append(",\"p90\":").append(h.percentile(0.9))
+                .append(",\"p99\":").append(h.percentile(0.99))
+                .append(",\"p999\":").append(h.percentile(0.999))
+                .append(",\"max\":").append(h.max()).append('}');
+        }
+        return out.append('}').toString();
+    }
+
+    public static void reset() {
+        for (Stage stage : stages()) stage.histogram.reset();
+    }
+
+    // Fixed stages in order, then the keys by name; only those with recordings
+    private static List<Stage> stages() {
+        List<Stage> all = new ArrayList<>();
+        for (Stage stage : STAGES) {
+            if (stage.histogram.count() > 0) all.add(stage);
+        }
+        for (Stage stage : new TreeMap<>(OPERATORS).values()) {
+            if (stage.histogram.count() > 0) all.add(stage);
+        }
+        return all;
+    }
+
+    private static Stage stage(String name) {
+        Stage stage = new Stage(name);
+        STAGES.add(stage);
+        return stage;
+    }
+}
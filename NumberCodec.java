@@ -0,0 +1,298 @@
+import java.math.BigDecimal;
+
+// Fast, lossless conversion between doubles and decimal text.
+//
+// format() writes the shortest digit string that parses back to exactly the same
+// double, so no precision is lost between an evaluation and the next one.
+// formatGrouped() is the same number with thousands separators, for the display
+// only. parse() is the matching reader and also accepts grouping separators.
+//
+// Decimal (BigDecimal) results use the same layout rules, so exact mode renders
+// like double mode.
+//
+// Both directions work on primitives and append into caller supplied builders.
+// The common cases (up to 15-16 significant digits within 1e±22) are computed
+// exactly with a single multiply or divide by a power of ten, which is correctly
+// rounded by IEEE arithmetic. Anything outside that range falls back to the JDK
+// conversions, which are slower and allocate but are always exact.
+public final class NumberCodec {
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long[] LONG_POW10 = new long[19];
+    private static final long MAX_EXACT = 1L << 53;
+    // Decimal exponents outside [MIN_PLAIN, MAX_PLAIN) are written as 1.5E25
+    private static final int MIN_PLAIN = -7;
+    private static final int MAX_PLAIN = 21;
+
+    static {
+        LONG_POW10[0] = 1;
+        for (int i = 1; i < LONG_POW10.length; i++) {
+            LONG_POW10[i] = LONG_POW10[i - 1] * 10;
+        }
+    }
+
+    private NumberCodec() {
+    }
+
+    public static String format(double value) {
+        return format(value, new StringBuilder(24)).toString();
+    }
+
+    public static StringBuilder format(double value, StringBuilder out) {
+        return write(value, out, false);
+    }
+
+    public static String formatGrouped(double value) {
+        return formatGrouped(value, new StringBuilder(32)).toString();
+    }
+
+    public static StringBuilder formatGrouped(double value, StringBuilder out) {
+        return write(value, out, true);
+    }
+
+    public static StringBuilder format(BigDecimal value, StringBuilder out) {
+        return write(value, out, false);
+    }
+
+    public static String formatGrouped(BigDecimal value) {
+        return write(value, new StringBuilder(32), true).toString();
+    }
+
+    public static StringBuilder formatGrouped(BigDecimal value, StringBuilder out) {
+        return write(value, out, true);
+    }
+
+    public static double parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    public static double parse(CharSequence text, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+        long digits = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        boolean sawGrouping = false;
+        boolean dot = false;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sawDigit = true;
+                if (significant < 18) {
+                    if (digits != 0 || c != '0') {
+                        digits = digits * 10 + (c - '0');
+                        significant++;
+                    }
+                    if (dot) exponent--;
+                } else if (!dot) {
+                    // Digits past what a long holds only scale the value
+                    exponent++;
+                    if (c != '0') significant++;
+                } else if (c != '0') {
+                    significant++;
+                }
+            } else if (c == '.' && !dot) {
+                dot = true;
+            } else if (c == ',' && !dot && sawDigit) {
+                sawGrouping = true;
+            } else {
+                break;
+            }
+        }
+        if (!sawDigit) {
+            return slowParse(text, start, end);
+        }
+        if (i < end && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+                negativeExponent = text.charAt(i) == '-';
+                i++;
+            }
+            if (i == end) throw new NumberFormatException("Malformed number: " + text.subSequence(start, end));
+            int e = 0;
+            for (; i < end; i++) {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9') break;
+                e = Math.min(e * 10 + (c - '0'), 100_000);
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (i != end) {
+            throw new NumberFormatException("Malformed number: " + text.subSequence(start, end));
+        }
+        if (digits == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (significant <= 18 && digits <= MAX_EXACT && exponent >= -22 && exponent <= 22) {
+            double value = exponent >= 0 ? digits * POW10[exponent] : digits / POW10[-exponent];
+            return negative ? -value : value;
+        }
+        if (sawGrouping) {
+            CharSequence plain = withoutGrouping(text, start, end);
+            return slowParse(plain, 0, plain.length());
+        }
+        return slowParse(text, start, end);
+    }
+
+    private static StringBuilder write(double value, StringBuilder out, boolean grouped) {
+        if (Double.isNaN(value)) return out.append("NaN");
+        if (value < 0 || (value == 0 && 1 / value < 0)) {
+            out.append('-');
+            value = -value;
+        }
+        if (value == Double.POSITIVE_INFINITY) return out.append("Infinity");
+        if (value == 0) return out.append('0');
+
+        long digits;
+        int exponent;
+        if (value < MAX_EXACT && value == (long) value) {
+            digits = (long) value;
+            exponent = 0;
+        } else {
+            digits = -1;
+            exponent = 0;
+            int top = (int) Math.floor(Math.log10(value));
+            // Try increasing precision until the digits read back as the same double
+            for (int precision = 1; precision <= 17; precision++) {
+                int scale = top - precision + 1;
+                if (scale > 22 || scale < -22) break;
+                double scaled = scale >= 0 ? value / POW10[scale] : value * POW10[-scale];
+                long candidate = Math.round(scaled);
+                if (candidate > MAX_EXACT) break;
+                double back = scale >= 0 ? candidate * POW10[scale] : candidate / POW10[-scale];
+                if (back == value) {
+                    digits = candidate;
+                    exponent = scale;
+                    break;
+                }
+            }
+            if (digits < 0) {
+                return writeSlow(value, out, grouped);
+            }
+        }
+        while (digits % 10 == 0) {
+            digits /= 10;
+            exponent++;
+        }
+        return layout(digits, exponent, out, grouped);
+    }
+
+    private static StringBuilder write(BigDecimal value, StringBuilder out, boolean grouped) {
+        if (value.signum() == 0) return out.append('0');
+        BigDecimal v = value.stripTrailingZeros();
+        if (v.signum() < 0) {
+            out.append('-');
+            v = v.negate();
+        }
+        String digits = v.unscaledValue().toString();
+        int pointExponent = digits.length() - v.scale() - 1;
+        if (pointExponent < MIN_PLAIN || pointExponent >= MAX_PLAIN) {
+            out.append(digits.charAt(0));
+            if (digits.length() > 1) out.append('.').append(digits, 1, digits.length());
+            return out.append('E').append(pointExponent);
+        }
+        if (pointExponent < 0) {
+            out.append("0.");
+            for (int i = -1; i > pointExponent; i--) out.append('0');
+            return out.append(digits);
+        }
+        int integerDigits = pointExponent + 1;
+        for (int i = 0; i < integerDigits; i++) {
+            if (grouped && i > 0 && (integerDigits - i) % 3 == 0) out.append(',');
+            out.append(i < digits.length() ? digits.charAt(i) : '0');
+        }
+        if (digits.length() > integerDigits) {
+            out.append('.').append(digits, integerDigits, digits.length());
+        }
+        return out;
+    }
+
+    // Writes digits * 10^exponent, where digits has no trailing zeros
+    private static StringBuilder layout(long digits, int exponent, StringBuilder out, boolean grouped) {
+        int count = digitCount(digits);
+        int pointExponent = exponent + count - 1;
+        if (pointExponent < MIN_PLAIN || pointExponent >= MAX_PLAIN) {
+            appendDigit(out, digits, count, 0);
+            if (count > 1) {
+                out.append('.');
+                for (int i = 1; i < count; i++) appendDigit(out, digits, count, i);
+            }
+            return out.append('E').append(pointExponent);
+        }
+        if (pointExponent < 0) {
+            out.append("0.");
+            for (int i = -1; i > pointExponent; i--) out.append('0');
+            for (int i = 0; i < count; i++) appendDigit(out, digits, count, i);
+            return out;
+        }
+        int integerDigits = pointExponent + 1;
+        for (int i = 0; i < integerDigits; i++) {
+            if (grouped && i > 0 && (integerDigits - i) % 3 == 0) out.append(',');
+            if (i < count) {
+                appendDigit(out, digits, count, i);
+            } else {
+                out.append('0');
+            }
+        }
+        if (count > integerDigits) {
+            out.append('.');
+            for (int i = integerDigits; i < count; i++) appendDigit(out, digits, count, i);
+        }
+        return out;
+    }
+
+    private static StringBuilder writeSlow(double value, StringBuilder out, boolean grouped) {
+        String s = Double.toString(value);
+        long digits = 0;
+        int exponent = 0;
+        boolean dot = false;
+        int i = 0;
+        for (; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '.') {
+                dot = true;
+            } else if (c == 'E') {
+                exponent += Integer.parseInt(s, i + 1, s.length(), 10);
+                break;
+            } else {
+                digits = digits * 10 + (c - '0');
+                if (dot) exponent--;
+            }
+        }
+        while (digits % 10 == 0) {
+            digits /= 10;
+            exponent++;
+        }
+        return layout(digits, exponent, out, grouped);
+    }
+
+    private static double slowParse(CharSequence text, int start, int end) {
+        return Double.parseDouble(text.subSequence(start, end).toString());
+    }
+
+    private static CharSequence withoutGrouping(CharSequence text, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) != ',') sb.append(text.charAt(i));
+        }
+        return sb;
+    }
+
+    private static void appendDigit(StringBuilder out, long digits, int count, int index) {
+        out.append((char) ('0' + (digits / LONG_POW10[count - 1 - index]) % 10));
+    }
+
+    private static int digitCount(long digits) {
+        int count = 1;
+        while (count < LONG_POW10.length && digits >= LONG_POW10[count]) count++;
+        return count;
+    }
+}
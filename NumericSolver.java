@@ -0,0 +1,684 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// Root finding, definite integration and minimisation of compiled expressions in
+// one variable. Work that divides (integration subintervals, the segments scanned
+// for roots and minima) is split recursively into fork-join tasks: on the common
+// pool when called from an ordinary thread, or on the caller's pool when called
+// from inside a fork-join task, so a batch that solves many problems in parallel
+// nests without oversubscribing.
+//
+// Failures follow evaluation: ArithmeticException when there is no answer (no
+// sign change, no convergence, or the function is undefined somewhere it is
+// needed), IllegalArgumentException for an unusable call (more than one variable,
+// an empty or infinite interval).
+//
+//   java Calculator --solve problems.txt
+//
+// reads one problem per line, "root a b f", "roots a b f", "newton x0 f",
+// "integrate a b f", "simpson a b f" or "minimize a b f" where f is an expression
+// in one variable, solves them all in parallel and prints one answer per line in
+// input order.
+public final class NumericSolver {
+    // Relative accuracy asked of results unless the caller gives a tolerance
+    public static final double DEFAULT_TOLERANCE = 1e-12;
+    private static final double EPSILON = Math.ulp(1.0);
+    private static final double SQRT_EPSILON = Math.sqrt(EPSILON);
+    private static final int MAX_ITERATIONS = 200;
+    // Recursion below this depth forks; deeper subintervals are solved in the task
+    private static final int FORK_DEPTH = 6;
+    private static final int MAX_DEPTH = 50;
+    // Segments scanned for sign changes and local minima
+    private static final int SEGMENTS = 256;
+    private static final int SEGMENTS_PER_TASK = 16;
+
+    // Gauss-Kronrod 7-15 nodes on [-1, 1] (the positive half), with the Kronrod
+    // weights and the Gauss weights of the odd nodes
+    private static final double[] XGK = {
+        0.991455371120812639206854697526329, 0.949107912342758524526189684047851,
+        0.864864423359769072789712788640926, 0.741531185599394439863864773280788,
+        0.586087235467691130294144845693013, 0.405845151377397166906606412076961,
+        0.207784955007898467600689403773245, 0.000000000000000000000000000000000
+    };
+    private static final double[] WGK = {
+        0.022935322010529224963732008058970, 0.063092092629978553290700663189204,
+        0.104790010322250183839876322541518, 0.140653259715525918745189590510238,
+        0.169004726639267902826583426598550, 0.190350578064785409913256402421014,
+        0.204432940075298892414161999234649, 0.209482141084727828012999174891714
+    };
+    private static final double[] WG = {
+        0.129484966168869693270611432679082, 0.279705391489276667901467771423780,
+        0.381830050505118944950369775488975, 0.417959183673469387755102040816327
+    };
+    private static final double GOLDEN = 0.3819660112501051;
+
+    // Below this many problems a batch task solves them on its own thread
+    private static final int PROBLEMS_PER_TASK = 8;
+
+    private NumericSolver() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) throw new IllegalArgumentException("Usage: --solve <file>");
+        String[] answers = solve(Files.readAllLines(Paths.get(args[0])));
+        StringBuilder out = new StringBuilder();
+        for (String answer : answers) out.append(answer).append('\n');
+        System.out.print(out);
+    }
+
+    // Answers to problem lines in the format of --solve, in order, solved in parallel
+    public static String[] solve(List<String> problems) {
+        String[] answers = new String[problems.size()];
+        solveAll(problems, answers, 0, answers.length);
+        return answers;
+    }
+
+    // Solves lines [from, to) into answers, splitting the range across the pool
+    private static void solveAll(List<String> lines, String[] answers, int from, int to) {
+        run(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                if (to - from > PROBLEMS_PER_TASK) {
+                    int middle = (from + to) >>> 1;
+                    invokeAll(
+                        new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                solveAll(lines, answers, from, middle);
+                            }
+                        },
+                        new RecursiveAction() {
+                            @Override
+                            protected void compute() {
+                                solveAll(lines, answers, middle, to);
+                            }
+                        });
+                    return;
+                }
+                for (int i = from; i < to; i++) answers[i] = solve(lines.get(i));
+            }
+        });
+    }
+
+    // The answer to one problem line as text: a number, the roots separated by
+    // spaces, "Not applicable" or "Error"
+    static String solve(String problem) {
+        StringBuilder out = new StringBuilder();
+        try {
+            String[] words = problem.trim().split("\\s+", 2);
+            String method = words[0];
+            int bounds = method.equals("newton") ? 1 : 2;
+            String[] parts = words.length < 2 ? new String[0] : words[1].split("\\s+", bounds + 1);
+            if (parts.length <= bounds) throw new IllegalArgumentException("Expected: " + method + " bounds expression");
+            double a = bound(parts[0]);
+            double b = bounds == 2 ? bound(parts[1]) : a;
+            CompiledExpression f = ExpressionCache.shared().get(parts[bounds]);
+            switch (method) {
+                case "root":
+                    NumberCodec.format(root(f, a, b), out);
+                    break;
+                case "roots":
+                    for (double root : roots(f, a, b)) {
+                        if (out.length() > 0) out.append(' ');
+                        NumberCodec.format(root, out);
+                    }
+                    break;
+                case "newton":
+                    NumberCodec.format(newton(f, a), out);
+                    break;
+                case "integrate":
+                    NumberCodec.format(integrate(f, a, b), out);
+                    break;
+                case "simpson":
+                    NumberCodec.format(simpson(f, a, b), out);
+                    break;
+                case "minimize":
+                    NumberCodec.format(minimize(f, a, b), out);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown method '" + method + "'");
+            }
+        } catch (ArithmeticException e) {
+            return "Not applicable";
+        } catch (IllegalArgumentException e) {
+            return "Error";
+        }
+        return out.toString();
+    }
+
+    // A bound written as a constant expression without spaces: 2, -1, pi, pi/2, ...
+    private static double bound(String text) {
+        CompiledExpression bound = ExpressionCache.shared().get(text);
+        if (bound.variableCount() > 0) throw new IllegalArgumentException("Bounds are constants");
+        return bound.evaluate();
+    }
+
+    // The root of f in [a, b] by Brent's method, to full precision; f(a) and f(b)
+    // must differ in sign
+    public static double root(CompiledExpression f, double a, double b) {
+        return root(f, a, b, 0);
+    }
+
+    public static double root(CompiledExpression f, double a, double b, double tolerance) {
+        checkInterval(f, a, b);
+        Function g = new Function(f);
+        return brent(g, a, g.at(a), b, g.at(b), tolerance);
+    }
+
+    // A root of f by Newton's method from x0, with central-difference derivatives
+    public static double newton(CompiledExpression f, double x0) {
+        return newton(f, x0, DEFAULT_TOLERANCE);
+    }
+
+    public static double newton(CompiledExpression f, double x0, double tolerance) {
+        checkFunction(f);
+        if (!Double.isFinite(x0)) throw new IllegalArgumentException("Start must be finite");
+        Function g = new Function(f);
+        double x = x0;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double y = g.at(x);
+            if (y == 0) return x;
+            double h = Math.cbrt(EPSILON) * Math.max(1, Math.abs(x));
+            double slope = (g.at(x + h) - g.at(x - h)) / (2 * h);
+            if (slope == 0 || !Double.isFinite(slope)) throw new ArithmeticException("Zero derivative");
+            double step = y / slope;
+            x -= step;
+            if (!Double.isFinite(x)) break;
+            if (Math.abs(step) <= tolerance * Math.max(1, Math.abs(x))) return x;
+        }
+        throw new ArithmeticException("Newton's method did not converge");
+    }
+
+    // Every root of f in [a, b], in increasing order: the interval is scanned in
+    // parallel for sign changes, each of which is then refined by Brent's method.
+    // Roots where f touches zero without changing sign are only found when a scan
+    // point hits them.
+    public static double[] roots(CompiledExpression f, double a, double b) {
+        checkInterval(f, a, b);
+        double[] found = new double[SEGMENTS];
+        boolean[] hit = new boolean[SEGMENTS];
+        run(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                scanRoots(f, a, b, 0, SEGMENTS, found, hit);
+            }
+        });
+        int n = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            // A root on a segment boundary shows up in both neighbours
+            if (hit[i] && (n == 0 || found[i] != found[n - 1])) found[n++] = found[i];
+        }
+        return Arrays.copyOf(found, n);
+    }
+
+    // Definite integral by adaptive Gauss-Kronrod (G7, K15)
+    public static double integrate(CompiledExpression f, double a, double b) {
+        return integrate(f, a, b, DEFAULT_TOLERANCE);
+    }
+
+    public static double integrate(CompiledExpression f, double a, double b, double tolerance) {
+        if (a == b) return 0;
+        if (a > b) return -integrate(f, b, a, tolerance);
+        checkInterval(f, a, b);
+        Function g = new Function(f);
+        double[] whole = kronrod(g, a, b);
+        double absolute = Math.max(tolerance * Math.abs(whole[0]), EPSILON * whole[2]);
+        return run(new Kronrod(f, a, b, whole, absolute, 0));
+    }
+
+    // Definite integral by adaptive Simpson's rule
+    public static double simpson(CompiledExpression f, double a, double b) {
+        return simpson(f, a, b, DEFAULT_TOLERANCE);
+    }
+
+    public static double simpson(CompiledExpression f, double a, double b, double tolerance) {
+        if (a == b) return 0;
+        if (a > b) return -simpson(f, b, a, tolerance);
+        checkInterval(f, a, b);
+        Function g = new Function(f);
+        double fa = g.at(a);
+        double fm = g.at((a + b) / 2);
+        double fb = g.at(b);
+        double whole = (b - a) / 6 * (fa + 4 * fm + fb);
+        double absolute = Math.max(tolerance * Math.abs(whole), EPSILON * (b - a) * (Math.abs(fa) + Math.abs(fb)));
+        return run(new Simpson(f, a, b, fa, fm, fb, whole, absolute, 0));
+    }
+
+    // The x in [a, b] where f is smallest: Brent's minimisation in each of a set of
+    // segments, run in parallel, and the best of the local minima
+    public static double minimize(CompiledExpression f, double a, double b) {
+        return minimize(f, a, b, DEFAULT_TOLERANCE);
+    }
+
+    public static double minimize(CompiledExpression f, double a, double b, double tolerance) {
+        checkInterval(f, a, b);
+        double[] best = run(new Minimum(f, a, b, 0, SEGMENTS, tolerance));
+        if (best[1] != best[1]) throw new ArithmeticException("Function is undefined on the interval");
+        return best[0];
+    }
+
+    private static void checkFunction(CompiledExpression f) {
+        if (f.variableCount() > 1) throw new IllegalArgumentException("Solving takes one variable");
+    }
+
+    private static void checkInterval(CompiledExpression f, double a, double b) {
+        checkFunction(f);
+        if (!(a < b) || !Double.isFinite(a) || !Double.isFinite(b)) {
+            throw new IllegalArgumentException("Interval must be finite and not empty");
+        }
+    }
+
+    // Runs a task on the caller's pool if there is one, else on the common pool
+    private static <T> T run(ForkJoinTask<T> task) {
+        return ForkJoinTask.inForkJoinPool() ? task.invoke() : ForkJoinPool.commonPool().invoke(task);
+    }
+
+    // f bound to a workspace of its own, for use by one thread
+    private static final class Function {
+        private final CompiledExpression expression;
+        private final DoubleStack workspace = new DoubleStack();
+        private final double[] x = new double[1];
+
+        Function(CompiledExpression expression) {
+            this.expression = expression;
+        }
+
+        double at(double value) {
+            x[0] = value;
+            return expression.evaluate(workspace, x);
+        }
+    }
+
+    // Brent's method (van Wijngaarden-Dekker-Brent), from a bracket with fa and fb known
+    private static double brent(Function g, double a, double fa, double b, double fb, double tolerance) {
+        if (fa == 0) return a;
+        if (fb == 0) return b;
+        if ((fa > 0) == (fb > 0)) throw new ArithmeticException("No sign change in the interval");
+        double c = a;
+        double fc = fa;
+        double d = b - a;
+        double e = d;
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            if ((fb > 0) == (fc > 0)) {
+                c = a;
+                fc = fa;
+                d = b - a;
+                e = d;
+            }
+            if (Math.abs(fc) < Math.abs(fb)) {
+                a = b;
+                b = c;
+                c = a;
+                fa = fb;
+                fb = fc;
+                fc = fa;
+            }
+            double tol = 2 * EPSILON * Math.abs(b) + 0.5 * tolerance * Math.max(Math.abs(b), Double.MIN_NORMAL);
+            double m = 0.5 * (c - b);
+            if (Math.abs(m) <= tol || fb == 0) return b;
+            if (Math.abs(e) >= tol && Math.abs(fa) > Math.abs(fb)) {
+                // Inverse quadratic interpolation, or the secant step with two points
+                double s = fb / fa;
+                double p;
+                double q;
+                if (a == c) {
+                    p = 2 * m * s;
+                    q = 1 - s;
+                } else {
+                    double r = fb / fc;
+                    q = fa / fc;
+                    p = s * (2 * m * q * (q - r) - (b - a) * (r - 1));
+                    q = (q - 1) * (r - 1) * (s - 1);
+                }
+                if (p > 0) q = -q;
+                p = Math.abs(p);
+                if (2 * p < Math.min(3 * m * q - Math.abs(tol * q), Math.abs(e * q))) {
+                    e = d;
+                    d = p / q;
+                } else {
+                    d = m;
+                    e = d;
+                }
+            } else {
+                d = m;
+                e = d;
+            }
+            a = b;
+            fa = fb;
+            b += Math.abs(d) > tol ? d : (m > 0 ? tol : -tol);
+            fb = g.at(b);
+        }
+        throw new ArithmeticException("Root finding did not converge");
+    }
+
+    // Segments [from, to) of SEGMENTS equal parts of [a, b]; a root found in
+    // segment i goes to found[i]
+    private static void scanRoots(CompiledExpression f, double a, double b, int from, int to, double[] found, boolean[] hit) {
+        if (to - from > SEGMENTS_PER_TASK) {
+            int middle = (from + to) >>> 1;
+            ForkJoinTask.invokeAll(
+                new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        scanRoots(f, a, b, from, middle, found, hit);
+                    }
+                },
+                new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        scanRoots(f, a, b, middle, to, found, hit);
+                    }
+                });
+            return;
+        }
+        Function g = new Function(f);
+        double width = (b - a) / SEGMENTS;
+        double x0 = a + from * width;
+        double y0 = value(g, x0);
+        for (int i = from; i < to; i++) {
+            double x1 = i + 1 == SEGMENTS ? b : a + (i + 1) * width;
+            double y1 = value(g, x1);
+            if (y0 == 0) {
+                found[i] = x0;
+                hit[i] = true;
+            } else if (y0 == y0 && y1 == y1 && (y0 > 0) != (y1 > 0)) {
+                try {
+                    found[i] = brent(g, x0, y0, x1, y1, 0);
+                    hit[i] = true;
+                } catch (ArithmeticException e) {
+                    // A pole rather than a root, or undefined inside the segment
+                }
+            }
+            x0 = x1;
+            y0 = y1;
+        }
+        if (to == SEGMENTS && y0 == 0) {
+            found[to - 1] = b;
+            hit[to - 1] = true;
+        }
+    }
+
+    // f(x), or NaN where it is undefined
+    private static double value(Function g, double x) {
+        try {
+            return g.at(x);
+        } catch (ArithmeticException e) {
+            return Double.NaN;
+        }
+    }
+
+    // {G7K15 estimate, error estimate, integral of |f|} over [a, b]
+    private static double[] kronrod(Function g, double a, double b) {
+        double center = (a + b) / 2;
+        double half = (b - a) / 2;
+        double fc = g.at(center);
+        double kronrod = fc * WGK[7];
+        double gauss = fc * WG[3];
+        double absolute = Math.abs(kronrod);
+        for (int j = 0; j < 7; j++) {
+            double dx = half * XGK[j];
+            double f1 = g.at(center - dx);
+            double f2 = g.at(center + dx);
+            kronrod += WGK[j] * (f1 + f2);
+            absolute += WGK[j] * (Math.abs(f1) + Math.abs(f2));
+            // The Gauss nodes are the odd-numbered Kronrod nodes
+            if (j % 2 == 1) gauss += WG[j / 2] * (f1 + f2);
+        }
+        if (!Double.isFinite(kronrod)) throw new ArithmeticException("Integral does not converge");
+        return new double[] {kronrod * half, Math.abs((kronrod - gauss) * half), absolute * Math.abs(half)};
+    }
+
+    // Whether an error left in a subinterval at the depth limit is small against the
+    // tolerance of the whole integral. A subinterval's tolerance halves with every
+    // split, which is too strict next to an integrable singularity (sqrt x at 0):
+    // there the subintervals shrink faster than their errors.
+    private static boolean negligible(double error, double tolerance, int depth) {
+        return error <= Math.scalb(tolerance, depth - 10);
+    }
+
+    // One subinterval with its estimate; splits in two until the error estimate is
+    // within this subinterval's share of the tolerance
+    @SuppressWarnings("serial")
+    private static final class Kronrod extends RecursiveTask<Double> {
+        private final CompiledExpression f;
+        private final double a;
+        private final double b;
+        private final double[] estimate;
+        private final double tolerance;
+        private final int depth;
+        private Function g;
+
+        Kronrod(CompiledExpression f, double a, double b, double[] estimate, double tolerance, int depth) {
+            this.f = f;
+            this.a = a;
+            this.b = b;
+            this.estimate = estimate;
+            this.tolerance = tolerance;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Double compute() {
+            g = new Function(f);
+            return solve(a, b, estimate, tolerance, depth);
+        }
+
+        private double solve(double a, double b, double[] estimate, double tolerance, int depth) {
+            if (estimate[1] <= tolerance) return estimate[0];
+            double m = (a + b) / 2;
+            if (depth >= MAX_DEPTH || m <= a || m >= b) {
+                if (negligible(estimate[1], tolerance, depth)) return estimate[0];
+                throw new ArithmeticException("Integral does not converge");
+            }
+            double[] left = kronrod(g, a, m);
+            double[] right = kronrod(g, m, b);
+            if (depth < FORK_DEPTH) {
+                Kronrod l = new Kronrod(f, a, m, left, tolerance / 2, depth + 1);
+                Kronrod r = new Kronrod(f, m, b, right, tolerance / 2, depth + 1);
+                r.fork();
+                double sum = l.compute();
+                return sum + r.join();
+            }
+            return solve(a, m, left, tolerance / 2, depth + 1) + solve(m, b, right, tolerance / 2, depth + 1);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Simpson extends RecursiveTask<Double> {
+        private final CompiledExpression f;
+        private final double a;
+        private final double b;
+        private final double fa;
+        private final double fm;
+        private final double fb;
+        private final double whole;
+        private final double tolerance;
+        private final int depth;
+        private Function g;
+
+        Simpson(CompiledExpression f, double a, double b, double fa, double fm, double fb,
+                double whole, double tolerance, int depth) {
+            this.f = f;
+            this.a = a;
+            this.b = b;
+            this.fa = fa;
+            this.fm = fm;
+            this.fb = fb;
+            this.whole = whole;
+            this.tolerance = tolerance;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Double compute() {
+            g = new Function(f);
+            return solve(a, b, fa, fm, fb, whole, tolerance, depth);
+        }
+
+        private double solve(double a, double b, double fa, double fm, double fb, double whole, double tolerance, int depth) {
+            double m = (a + b) / 2;
+            double lm = (a + m) / 2;
+            double rm = (m + b) / 2;
+            if (lm <= a || rm >= b) throw new ArithmeticException("Integral does not converge");
+            double flm = g.at(lm);
+            double frm = g.at(rm);
+            double left = (m - a) / 6 * (fa + 4 * flm + fm);
+            double right = (b - m) / 6 * (fm + 4 * frm + fb);
+            double delta = left + right - whole;
+            // Richardson extrapolation; the 15 comes from the error order of Simpson's rule
+            if (depth > 2 && Math.abs(delta) <= 15 * tolerance) return left + right + delta / 15;
+            if (depth >= MAX_DEPTH && negligible(Math.abs(delta) / 15, tolerance, depth)) return left + right + delta / 15;
+            if (depth >= MAX_DEPTH || !Double.isFinite(delta)) throw new ArithmeticException("Integral does not converge");
+            if (depth < FORK_DEPTH) {
+                Simpson l = new Simpson(f, a, m, fa, flm, fm, left, tolerance / 2, depth + 1);
+                Simpson r = new Simpson(f, m, b, fm, frm, fb, right, tolerance / 2, depth + 1);
+                r.fork();
+                double sum = l.compute();
+                return sum + r.join();
+            }
+            return solve(a, m, fa, flm, fm, left, tolerance / 2, depth + 1)
+                + solve(m, b, fm, frm, fb, right, tolerance / 2, depth + 1);
+        }
+    }
+
+    // Best {x, f(x)} over segments [from, to) of [a, b], grid points that are local
+    // minima refined; f(x) is NaN when f was undefined throughout
+    @SuppressWarnings("serial")
+    private static final class Minimum extends RecursiveTask<double[]> {
+        private final CompiledExpression f;
+        private final double a;
+        private final double b;
+        private final int from;
+        private final int to;
+        private final double tolerance;
+
+        Minimum(CompiledExpression f, double a, double b, int from, int to, double tolerance) {
+            this.f = f;
+            this.a = a;
+            this.b = b;
+            this.from = from;
+            this.to = to;
+            this.tolerance = tolerance;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from > SEGMENTS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                Minimum left = new Minimum(f, a, b, from, middle, tolerance);
+                Minimum right = new Minimum(f, a, b, middle, to, tolerance);
+                right.fork();
+                double[] l = left.compute();
+                double[] r = right.join();
+                return r[1] < l[1] || l[1] != l[1] ? r : l;
+            }
+            Function g = new Function(f);
+            double[] best = {Double.NaN, Double.NaN};
+            // Grid points from..to of SEGMENTS + 1 across [a, b]; Brent's method refines
+            // the neighbourhood of every grid point lower than both its neighbours, and
+            // the grid points themselves count too, so a minimum at the edge of [a, b]
+            // is found
+            double before = from == 0 ? Double.POSITIVE_INFINITY : finite(value(g, point(from - 1)));
+            double here = finite(value(g, point(from)));
+            for (int i = from; i < to; i++) {
+                double after = finite(value(g, point(i + 1)));
+                consider(best, point(i), here);
+                if (here <= before && here <= after && (here < before || here < after) && i > 0) {
+                    double x = brentMinimum(g, point(i - 1), point(i + 1), tolerance);
+                    consider(best, x, value(g, x));
+                }
+                before = here;
+                here = after;
+            }
+            if (to == SEGMENTS) consider(best, b, here);
+            return best;
+        }
+
+        private double point(int i) {
+            return i == SEGMENTS ? b : a + i * ((b - a) / SEGMENTS);
+        }
+
+        private static void consider(double[] best, double x, double y) {
+            if (y == y && y != Double.POSITIVE_INFINITY && (best[1] != best[1] || y < best[1])) {
+                best[0] = x;
+                best[1] = y;
+            }
+        }
+    }
+
+    // Brent's minimisation (golden section with parabolic steps) on [lo, hi]; where
+    // f is undefined it counts as +infinity
+    private static double brentMinimum(Function g, double lo, double hi, double tolerance) {
+        double x = lo + GOLDEN * (hi - lo);
+        double w = x;
+        double v = x;
+        double fx = finite(value(g, x));
+        double fw = fx;
+        double fv = fx;
+        double d = 0;
+        double e = 0;
+        // A minimum is only located to about the square root of the precision of f
+        double relative = Math.max(tolerance, SQRT_EPSILON);
+        double absolute = EPSILON * (hi - lo);
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            double m = (lo + hi) / 2;
+            double tol = relative * Math.abs(x) + absolute;
+            double tol2 = 2 * tol;
+            if (Math.abs(x - m) <= tol2 - (hi - lo) / 2) break;
+            boolean golden = true;
+            if (Math.abs(e) > tol) {
+                double r = (x - w) * (fx - fv);
+                double q = (x - v) * (fx - fw);
+                double p = (x - v) * q - (x - w) * r;
+                q = 2 * (q - r);
+                if (q > 0) p = -p;
+                q = Math.abs(q);
+                if (Math.abs(p) < Math.abs(0.5 * q * e) && p > q * (lo - x) && p < q * (hi - x)) {
+                    e = d;
+                    d = p / q;
+                    double u = x + d;
+                    if (u - lo < tol2 || hi - u < tol2) d = m > x ? tol : -tol;
+                    golden = false;
+                }
+            }
+            if (golden) {
+                e = (x >= m ? lo : hi) - x;
+                d = GOLDEN * e;
+            }
+            double u = Math.abs(d) >= tol ? x + d : x + (d > 0 ? tol : -tol);
+            double fu = finite(value(g, u));
+            if (fu <= fx) {
+                if (u >= x) lo = x; else hi = x;
+                v = w;
+                fv = fw;
+                w = x;
+                fw = fx;
+                x = u;
+                fx = fu;
+            } else {
+                if (u < x) lo = u; else hi = u;
+                if (fu <= fw || w == x) {
+                    v = w;
+                    fv = fw;
+                    w = u;
+                    fw = fu;
+                } else if (fu <= fv || v == x || v == w) {
+                    v = u;
+                    fv = fu;
+                }
+            }
+        }
+        return x;
+    }
+
+    private static double finite(double y) {
+        return y == y ? y : Double.POSITIVE_INFINITY;
+    }
+}
@@ -0,0 +1,327 @@
+import java.util.Arrays;
+
+// Rewrites the double program of a compiled expression before it is cached and
+// evaluated. The postfix program is rebuilt bottom-up into a DAG, one instruction
+// at a time, so that each rewrite sees already-optimized operands:
+//
+//   constant folding        (2*3)+x          6 + x
+//   common subexpressions   sqr x + sqr x    sqr x, STORE 0, FETCH 0, +
+//   strength reduction      x % 15           x * 0.15
+//                           x / 4            x * 0.25
+//                           x * x            sqr x
+//   identities              x - 0, --x
+//
+// Every rewrite gives bit-for-bit the result of the original program, including
+// the compensated summation of + and - chains and signed zeros. That rules out
+// most familiar identities: x * 1, x / 1 and x ^ 1 turn -0 into 0 in evaluation,
+// x + 0 does too, x * 0 is NaN for infinite x and must still report a division by
+// zero inside x, and neither reassociation nor folding an addition of constants
+// that rounds keeps the compensation term. Folding never evaluates anything that would raise an
+// error; 1/0 stays in the program so that evaluation still reports it.
+//
+// Decimal evaluation keeps using the parsed program, whose constants are exact
+// literals rather than folded doubles. Both passes are iterative, so nesting depth
+// is limited only by memory, as in the parser.
+final class Optimizer {
+    private final CompiledExpression program;
+    private byte[] op;
+    private int[] arg;
+    private int[] left;
+    private int[] right;
+    private int count;
+    // Hash table of nodes by (op, arg, left, right), for value numbering
+    private int[] table;
+    private double[] constants = new double[8];
+    private String[] literals = new String[8];
+    private int constantCount;
+    // Hash table of constant indices by bits
+    private int[] constantTable = new int[16];
+
+    private Optimizer(CompiledExpression program) {
+        this.program = program;
+        int capacity = 2 * program.ops.length + 2;
+        op = new byte[capacity];
+        arg = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        table = new int[Integer.highestOneBit(capacity) * 4];
+        Arrays.fill(table, -1);
+        Arrays.fill(constantTable, -1);
+    }
+
+    static CompiledExpression optimize(CompiledExpression program) {
+        if (program.unoptimized != null) return program;
+        Optimizer optimizer = new Optimizer(program);
+        return optimizer.emit(optimizer.build());
+    }
+
+    private int build() {
+        int[] stack = new int[Math.max(1, program.maxDepth)];
+        int sp = -1;
+        byte[] ops = program.ops;
+        int[] args = program.args;
+        for (int pc = 0; pc < ops.length; pc++) {
+            byte code = ops[pc];
+            switch (code) {
+                case CompiledExpression.CONST:
+                    stack[++sp] = constant(program.constants[args[pc]], program.literals[args[pc]]);
+                    break;
+                case CompiledExpression.LOAD:
+                    stack[++sp] = node(code, args[pc], -1, -1);
+                    break;
+                case CompiledExpression.ADD:
+                case CompiledExpression.SUB:
+                case CompiledExpression.MUL:
+                case CompiledExpression.DIV:
+                case CompiledExpression.PERCENT:
+                case CompiledExpression.POW:
+                case CompiledExpression.FAST_POW: {
+                    int r = stack[sp--];
+                    stack[sp] = binary(code, stack[sp], r);
+                    break;
+                }
+                default:
+                    stack[sp] = unary(code, args[pc], stack[sp]);
+            }
+        }
+        return stack[0];
+    }
+
+    private int unary(byte code, int a, int x) {
+        if (op[x] == CompiledExpression.CONST) {
+            // Negation works on the raw value, every other operation on the folded one
+            double v = code == CompiledExpression.NEG ? constants[arg[x]] : folded(x);
+            double r;
+            switch (code) {
+                case CompiledExpression.NEG: r = -v; break;
+                case CompiledExpression.SQRT: r = v < 0 ? Double.NaN : Math.sqrt(v); break;
+                case CompiledExpression.SQR: r = v * v; break;
+                case CompiledExpression.RECIP: r = v == 0 ? Double.NaN : 1 / v; break;
+                case CompiledExpression.CALL: r = ScientificFunctions.strict(a, v); break;
+                case CompiledExpression.FAST_CALL: r = ScientificFunctions.fast(a, v); break;
+                default: throw new IllegalStateException("Bad opcode " + code);
+            }
+            // A NaN from a number is an error that evaluation has to report. -0 is
+            // left alone: evaluation gives it a -0 error term that a constant lacks.
+            if ((r == r || v != v) && (code != CompiledExpression.NEG || v != 0)) return constant(r, null);
+        }
+        if (code == CompiledExpression.NEG && op[x] == CompiledExpression.NEG) return left[x];
+        return node(code, a, x, -1);
+    }
+
+    private int binary(byte code, int l, int r) {
+        boolean constantLeft = op[l] == CompiledExpression.CONST;
+        boolean constantRight = op[r] == CompiledExpression.CONST;
+        double a = constantLeft ? folded(l) : 0;
+        double b = constantRight ? folded(r) : 0;
+        if (constantLeft && constantRight) {
+            double value = Double.NaN;
+            switch (code) {
+                case CompiledExpression.ADD:
+                case CompiledExpression.SUB: {
+                    // Only when exact: a rounded sum would drop the compensation term.
+                    // Sums work on the raw values.
+                    a = constants[arg[l]];
+                    b = constants[arg[r]];
+                    double addend = code == CompiledExpression.ADD ? b : -b;
+                    double sum = a + addend;
+                    double bb = sum - a;
+                    if ((a - (sum - bb)) + (addend - bb) == 0) value = sum;
+                    break;
+                }
+                case CompiledExpression.MUL: value = a * b; break;
+                case CompiledExpression.DIV: if (b != 0) value = a / b; break;
+                case CompiledExpression.PERCENT: value = a * (b / 100); break;
+                case CompiledExpression.POW: value = ScientificFunctions.strictPow(a, b); break;
+                case CompiledExpression.FAST_POW: value = ScientificFunctions.fastPow(a, b); break;
+                default: throw new IllegalStateException("Bad opcode " + code);
+            }
+            if (value == value) return constant(value, null);
+        }
+        switch (code) {
+            case CompiledExpression.SUB:
+                if (constantRight && Double.doubleToRawLongBits(constants[arg[r]]) == 0 && plain(l)) return l;
+                break;
+            case CompiledExpression.MUL:
+                if (l == r) return node(CompiledExpression.SQR, 0, l, -1);
+                break;
+            case CompiledExpression.DIV:
+                // Dividing by a power of two and multiplying by its inverse round alike
+                if (constantRight && isPowerOfTwo(b)) return binary(CompiledExpression.MUL, l, constant(1 / b, null));
+                break;
+            case CompiledExpression.PERCENT:
+                if (constantRight) return binary(CompiledExpression.MUL, l, constant(b / 100, null));
+                break;
+            default:
+                break;
+        }
+        return node(code, 0, l, r);
+    }
+
+    // A constant as an operation that folds its operands sees it: with its +0 error
+    // term added, which turns -0 into 0
+    private double folded(int n) {
+        return constants[arg[n]] + 0.0;
+    }
+
+    // Whether evaluation leaves a node with an error term of exactly +0, rather than
+    // a compensation term or the -0 of a negation
+    private boolean plain(int n) {
+        byte code = op[n];
+        return code != CompiledExpression.ADD && code != CompiledExpression.SUB && code != CompiledExpression.NEG;
+    }
+
+    private static boolean isPowerOfTwo(double b) {
+        long bits = Double.doubleToRawLongBits(b);
+        int exponent = Math.getExponent(b);
+        return (bits & 0x000FFFFFFFFFFFFFL) == 0 && exponent > Double.MIN_EXPONENT && exponent < Double.MAX_EXPONENT;
+    }
+
+    private int constant(double value, String literal) {
+        long bits = Double.doubleToRawLongBits(value);
+        int mask = constantTable.length - 1;
+        int slot = constantSlot(bits, mask);
+        for (; constantTable[slot] >= 0; slot = (slot + 1) & mask) {
+            int index = constantTable[slot];
+            if (Double.doubleToRawLongBits(constants[index]) == bits) return node(CompiledExpression.CONST, index, -1, -1);
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+            literals = Arrays.copyOf(literals, constantCount * 2);
+        }
+        int index = constantCount++;
+        constants[index] = value;
+        // Folded constants have no literal, which only decimal evaluation would read
+        literals[index] = literal;
+        constantTable[slot] = index;
+        if (2 * constantCount > constantTable.length) {
+            constantTable = new int[constantTable.length * 2];
+            Arrays.fill(constantTable, -1);
+            mask = constantTable.length - 1;
+            for (int i = 0; i < constantCount; i++) {
+                slot = constantSlot(Double.doubleToRawLongBits(constants[i]), mask);
+                while (constantTable[slot] >= 0) slot = (slot + 1) & mask;
+                constantTable[slot] = i;
+            }
+        }
+        return node(CompiledExpression.CONST, index, -1, -1);
+    }
+
+    private static int constantSlot(long bits, int mask) {
+        return (int) ((bits ^ bits >>> 32) * 0x9E3779B97F4A7C15L >>> 40) & mask;
+    }
+
+    // Returns the existing node with these fields, or adds one
+    private int node(byte code, int a, int l, int r) {
+        int mask = table.length - 1;
+        int slot = (((code * 31 + a) * 31 + l) * 31 + r) * 0x9E3779B9 >>> 7 & mask;
+        for (; table[slot] >= 0; slot = (slot + 1) & mask) {
+            int n = table[slot];
+            if (op[n] == code && arg[n] == a && left[n] == l && right[n] == r) return n;
+        }
+        if (count == op.length) {
+            op = Arrays.copyOf(op, count * 2);
+            arg = Arrays.copyOf(arg, count * 2);
+            left = Arrays.copyOf(left, count * 2);
+            right = Arrays.copyOf(right, count * 2);
+        }
+        op[count] = code;
+        arg[count] = a;
+        left[count] = l;
+        right[count] = r;
+        table[slot] = count;
+        if (2 * (count + 1) > table.length) rehash();
+        return count++;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        Arrays.fill(table, -1);
+        int mask = table.length - 1;
+        for (int n = 0; n <= count; n++) {
+            int slot = (((op[n] * 31 + arg[n]) * 31 + left[n]) * 31 + right[n]) * 0x9E3779B9 >>> 7 & mask;
+            while (table[slot] >= 0) slot = (slot + 1) & mask;
+            table[slot] = n;
+        }
+    }
+
+    // Writes the DAG under root back out as postfix. A node with more than one parent
+    // is computed once and kept in a temporary; later uses fetch it.
+    private CompiledExpression emit(int root) {
+        int[] uses = new int[count];
+        int[] work = new int[3 * count + 1];
+        int top = 0;
+        work[top++] = root;
+        uses[root] = 1;
+        while (top > 0) {
+            int n = work[--top];
+            if (left[n] >= 0 && uses[left[n]]++ == 0) work[top++] = left[n];
+            if (right[n] >= 0 && uses[right[n]]++ == 0) work[top++] = right[n];
+        }
+
+        int[] temp = new int[count];
+        Arrays.fill(temp, -1);
+        int temps = 0;
+        // Constants of the parsed program that folding made unused are dropped
+        int[] constantIndex = new int[constantCount];
+        Arrays.fill(constantIndex, -1);
+        double[] usedConstants = new double[constantCount];
+        String[] usedLiterals = new String[constantCount];
+        int used = 0;
+        byte[] ops = new byte[program.ops.length + count];
+        int[] args = new int[ops.length];
+        int size = 0;
+        int depth = 0;
+        int maxDepth = 0;
+        top = 0;
+        work[top++] = root;
+        while (top > 0) {
+            int item = work[--top];
+            if (item >= 0) {
+                if (temp[item] >= 0) {
+                    ops[size] = CompiledExpression.FETCH;
+                    args[size++] = temp[item];
+                    maxDepth = Math.max(maxDepth, ++depth);
+                    continue;
+                }
+                // Children first, left before right, then the node itself
+                work[top++] = ~item;
+                if (right[item] >= 0) work[top++] = right[item];
+                if (left[item] >= 0) work[top++] = left[item];
+            } else {
+                int n = ~item;
+                int a = arg[n];
+                if (op[n] == CompiledExpression.CONST) {
+                    if (constantIndex[a] < 0) {
+                        usedConstants[used] = constants[a];
+                        usedLiterals[used] = literals[a];
+                        constantIndex[a] = used++;
+                    }
+                    a = constantIndex[a];
+                }
+                ops[size] = op[n];
+                args[size++] = a;
+                if (left[n] < 0) {
+                    maxDepth = Math.max(maxDepth, ++depth);
+                } else if (right[n] >= 0) {
+                    depth--;
+                }
+                if (uses[n] > 1 && left[n] >= 0) {
+                    temp[n] = temps++;
+                    ops[size] = CompiledExpression.STORE;
+                    args[size++] = temp[n];
+                }
+            }
+        }
+
+        if (temps == 0 && size == program.ops.length && used == program.constants.length
+                && Arrays.equals(program.ops, 0, size, ops, 0, size)
+                && Arrays.equals(program.args, 0, size, args, 0, size)
+                && Arrays.equals(program.constants, 0, used, usedConstants, 0, used)) {
+            return program;
+        }
+        return new CompiledExpression(program.source(), Arrays.copyOf(ops, size), Arrays.copyOf(args, size),
+            Arrays.copyOf(usedConstants, used), Arrays.copyOf(usedLiterals, used),
+            program.variables, maxDepth, temps, program);
+    }
+}
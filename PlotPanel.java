@@ -0,0 +1,224 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.BufferedImage;
+
+// Graph of a function of one variable. The curve is sampled by a PlotSampler and
+// drawn into an image that is only replaced when the panel is resized, so
+// repainting allocates nothing; dragging pans, the mouse wheel zooms around the
+// pointer and a double click goes back to the default view. Scientific functions
+// use the fast tier, which is well below a pixel.
+@SuppressWarnings("serial")
+public final class PlotPanel extends JComponent {
+    private static final double DEFAULT_HALF_WIDTH = 10;
+    private static final double ZOOM_STEP = 1.2;
+
+    private final PlotSampler sampler = new PlotSampler();
+    // The function as compiled, and the variant that is sampled
+    private CompiledExpression source;
+    private CompiledExpression function;
+    private BufferedImage image;
+    private Graphics2D canvas;
+    private boolean stale = true;
+    // Visible range
+    private double x0 = -DEFAULT_HALF_WIDTH;
+    private double x1 = DEFAULT_HALF_WIDTH;
+    private double y0 = -DEFAULT_HALF_WIDTH;
+    private double y1 = DEFAULT_HALF_WIDTH;
+    private Point dragFrom;
+    private final Color curveColor = new Color(0, 90, 200);
+
+    private PlotPanel() {
+        setPreferredSize(new Dimension(360, 360));
+        setOpaque(true);
+        setBackground(Color.WHITE);
+        setForeground(Color.BLACK);
+    }
+
+    // The listeners are added once the panel is built, so none sees it half-made
+    public static PlotPanel create() {
+        PlotPanel plot = new PlotPanel();
+        plot.listen();
+        return plot;
+    }
+
+    private void listen() {
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragFrom = e.getPoint();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (dragFrom == null) return;
+                double dx = (e.getX() - dragFrom.x) * (x1 - x0) / getWidth();
+                double dy = (e.getY() - dragFrom.y) * (y1 - y0) / getHeight();
+                x0 -= dx;
+                x1 -= dx;
+                y0 += dy;
+                y1 += dy;
+                dragFrom = e.getPoint();
+                changed();
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                dragFrom = null;
+            }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) resetView();
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                double factor = Math.pow(ZOOM_STEP, e.getPreciseWheelRotation());
+                double x = x0 + e.getX() * (x1 - x0) / getWidth();
+                double y = y1 - e.getY() * (y1 - y0) / getHeight();
+                x0 = x + (x0 - x) * factor;
+                x1 = x + (x1 - x) * factor;
+                y0 = y + (y0 - y) * factor;
+                y1 = y + (y1 - y) * factor;
+                changed();
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                // Keep the scale of the x axis for the y axis
+                double middle = (y0 + y1) / 2;
+                double half = (x1 - x0) * getHeight() / Math.max(1, getWidth()) / 2;
+                y0 = middle - half;
+                y1 = middle + half;
+                changed();
+            }
+        });
+    }
+
+    // Plots the expression, which may use one variable of any name. Throws
+    // IllegalArgumentException for a syntax error or more than one variable.
+    public void plot(String expression) {
+        CompiledExpression compiled = Evaluator.compile(expression);
+        if (compiled.variableCount() > 1) throw new IllegalArgumentException("A plot takes one variable");
+        source = compiled;
+        function = compiled.fast();
+        changed();
+    }
+
+    // The plotted function with the strict function tier, or null before the first plot
+    public CompiledExpression function() {
+        return source;
+    }
+
+    // Left and right ends of the visible x range
+    public double left() {
+        return x0;
+    }
+
+    public double right() {
+        return x1;
+    }
+
+    public void resetView() {
+        x0 = -DEFAULT_HALF_WIDTH;
+        x1 = DEFAULT_HALF_WIDTH;
+        double half = DEFAULT_HALF_WIDTH * getHeight() / Math.max(1, getWidth());
+        y0 = -half;
+        y1 = half;
+        changed();
+    }
+
+    @Override
+    public void setBackground(Color color) {
+        super.setBackground(color);
+        changed();
+    }
+
+    @Override
+    public void setForeground(Color color) {
+        super.setForeground(color);
+        changed();
+    }
+
+    private void changed() {
+        stale = true;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) return;
+        if (image == null || image.getWidth() != width || image.getHeight() != height) {
+            if (canvas != null) canvas.dispose();
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            canvas = image.createGraphics();
+            canvas.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            stale = true;
+        }
+        if (stale) {
+            render(width, height);
+            stale = false;
+        }
+        g.drawImage(image, 0, 0, null);
+    }
+
+    private void render(int width, int height) {
+        canvas.setColor(getBackground());
+        canvas.fillRect(0, 0, width, height);
+        drawAxes(width, height);
+        if (function == null) return;
+        sampler.sample(function, x0, x1, y0, y1, width, height);
+        canvas.setColor(curveColor);
+        float[] first = sampler.first;
+        float[] last = sampler.last;
+        float[] low = sampler.low;
+        float[] high = sampler.high;
+        boolean[] breakBefore = sampler.breakBefore;
+        boolean[] breakAfter = sampler.breakAfter;
+        // Column of the last point drawn, or -1 after a break
+        int previous = -1;
+        for (int c = 0; c < width; c++) {
+            if (first[c] != first[c]) continue;
+            if (previous >= 0 && !breakBefore[c] && PlotSampler.joins(last[previous], first[c], height)) {
+                canvas.drawLine(previous, (int) last[previous], c, (int) first[c]);
+            }
+            canvas.drawLine(c, (int) low[c], c, (int) high[c]);
+            previous = breakAfter[c] ? -1 : c;
+        }
+    }
+
+    private void drawAxes(int width, int height) {
+        canvas.setColor(Color.LIGHT_GRAY);
+        double step = gridStep(x1 - x0, width);
+        // Zoomed in past what doubles resolve
+        if (!(step > 0) || x0 + step == x0 || y0 + step == y0) return;
+        for (double x = Math.ceil(x0 / step) * step; x < x1; x += step) {
+            int px = (int) ((x - x0) * width / (x1 - x0));
+            canvas.drawLine(px, 0, px, height);
+        }
+        for (double y = Math.ceil(y0 / step) * step; y < y1; y += step) {
+            int py = (int) ((y1 - y) * height / (y1 - y0));
+            canvas.drawLine(0, py, width, py);
+        }
+        canvas.setColor(getForeground());
+        int originX = (int) (-x0 * width / (x1 - x0));
+        int originY = (int) (y1 * height / (y1 - y0));
+        canvas.drawLine(originX, 0, originX, height);
+        canvas.drawLine(0, originY, width, originY);
+    }
+
+    // 1, 2 or 5 times a power of ten, about 50 pixels apart
+    private static double gridStep(double span, int pixels) {
+        double raw = span * 50 / Math.max(1, pixels);
+        double power = Math.pow(10, Math.floor(Math.log10(raw)));
+        double fraction = raw / power;
+        return (fraction < 2 ? 1 : fraction < 5 ? 2 : 5) * power;
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Samples a function of one variable for drawing into a plot of a given size in
+// pixels. The x range is cut into intervals a few pixel columns wide, which are
+// sampled in parallel on the common fork-join pool. Each interval is bisected
+// while its midpoint is more than half a pixel off the straight line between its
+// ends, so flat stretches cost a few evaluations and curves and poles get more.
+// Smooth curves stop at one pixel column; only steep or broken spots go below
+// that, and points that land in an already sampled column are not kept, just
+// folded into that column's range.
+//
+// The result is kept per pixel column as the range of y (in pixels, 0 at the top)
+// of the points that fell into it, plus the first and last of them for joining
+// neighbouring columns. The curve breaks where the function is undefined (an error
+// or NaN) and at poles, where it jumps from far above the plot to far below it or
+// back; a column records whether the curve breaks before its first point or after
+// its last one. The arrays are reused from one call to the next as long as the
+// width stays the same.
+// Not thread-safe; one sampler per plot.
+public final class PlotSampler {
+    // Width of the intervals before bisection, in pixel columns
+    private static final int SPAN = 8;
+    // Midpoints closer than this many pixels to the chord end the bisection
+    private static final double TOLERANCE = 0.5;
+    // Bisections of one interval: 3 reach single columns, 5 more split a column 32 ways
+    private static final int MAX_DEPTH = 8;
+    // Below this many columns a task samples on its own thread
+    private static final int PARALLEL_COLUMNS = 256;
+    // Pixel coordinates are clamped to this far outside the plot
+    private static final float LIMIT = 1e6f;
+
+    float[] first = new float[0];
+    float[] last = new float[0];
+    float[] low = new float[0];
+    float[] high = new float[0];
+    boolean[] breakBefore = new boolean[0];
+    boolean[] breakAfter = new boolean[0];
+    int width;
+    int height;
+
+    private CompiledExpression function;
+    private double x0;
+    private double dx;
+    private double y1;
+    private double scale;
+
+    // Samples f over [x0, x1) for a plot width x height pixels showing [y0, y1];
+    // returns the number of evaluations. f has at most one variable.
+    public int sample(CompiledExpression f, double x0, double x1, double y0, double y1, int width, int height) {
+        if (f.variableCount() > 1) throw new IllegalArgumentException("A plot takes one variable");
+        if (width != this.width) {
+            this.width = width;
+            first = new float[width];
+            last = new float[width];
+            low = new float[width];
+            high = new float[width];
+            breakBefore = new boolean[width];
+            breakAfter = new boolean[width];
+        }
+        this.height = height;
+        Arrays.fill(first, Float.NaN);
+        Arrays.fill(breakBefore, false);
+        Arrays.fill(breakAfter, false);
+        function = f;
+        this.x0 = x0;
+        dx = (x1 - x0) / width;
+        this.y1 = y1;
+        scale = height / (y1 - y0);
+        Task task = new Task(0, width);
+        if (width > PARALLEL_COLUMNS) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+        return task.evaluations;
+    }
+
+    // Consecutive points on opposite sides far off the plot are the two sides of a
+    // pole, not a steep stretch of curve
+    static boolean joins(double from, double to, int height) {
+        return !(from < -height && to > 2 * height || to < -height && from > 2 * height);
+    }
+
+    @SuppressWarnings("serial")
+    private final class Task extends RecursiveAction {
+        private final int from;
+        private final int to;
+        int evaluations;
+        private DoubleStack workspace;
+        private final double[] x = new double[1];
+        // The last point recorded by this task, NaN after an undefined one
+        private double previous;
+        private boolean started;
+        private int lastColumn = -1;
+
+        Task(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_COLUMNS) {
+                // Split on an interval boundary so each task owns whole columns
+                int middle = from + (to - from) / 2 / SPAN * SPAN;
+                Task left = new Task(from, middle);
+                Task right = new Task(middle, to);
+                invokeAll(left, right);
+                evaluations = left.evaluations + right.evaluations;
+                return;
+            }
+            workspace = new DoubleStack();
+            for (int c = from; c < to; c += SPAN) {
+                int end = Math.min(c + SPAN, to);
+                double xa = x0 + c * dx;
+                double xb = x0 + end * dx;
+                double ya = pixel(xa);
+                record(c, ya);
+                bisect(xa, ya, xb, pixel(xb), c, end, 0);
+            }
+        }
+
+        // Columns [ca, cb) hold the interval; the end point xb belongs to the next
+        // interval, which records it itself. Points are recorded in order of x.
+        private void bisect(double xa, double ya, double xb, double yb, int ca, int cb, int depth) {
+            double xm = (xa + xb) / 2;
+            double ym = pixel(xm);
+            boolean definedA = ya == ya;
+            boolean definedB = yb == yb;
+            boolean definedM = ym == ym;
+            boolean refine = depth < MAX_DEPTH && (definedA || definedB || definedM)
+                && (definedA != definedM || definedM != definedB || Math.abs(ym - (ya + yb) / 2) > TOLERANCE);
+            if (refine) bisect(xa, ya, xm, ym, ca, cb, depth + 1);
+            record(Math.max(ca, Math.min(cb - 1, (int) ((xm - x0) / dx))), ym);
+            if (refine) bisect(xm, ym, xb, yb, ca, cb, depth + 1);
+        }
+
+        private void record(int column, double y) {
+            boolean defined = first[column] == first[column];
+            if (y != y) {
+                if (lastColumn >= 0) breakAfter[lastColumn] = true;
+                previous = y;
+                started = true;
+                return;
+            }
+            float p = (float) y;
+            if (started && (previous != previous || !joins(previous, y, height))) {
+                // Only the part after the break stays in this column
+                defined = false;
+                breakBefore[column] = true;
+                breakAfter[column] = false;
+            }
+            started = true;
+            previous = y;
+            lastColumn = column;
+            if (!defined) {
+                first[column] = p;
+                low[column] = p;
+                high[column] = p;
+            } else {
+                low[column] = Math.min(low[column], p);
+                high[column] = Math.max(high[column], p);
+            }
+            last[column] = p;
+        }
+
+        // f(x) in pixels from the top, or NaN where f is undefined
+        private double pixel(double at) {
+            evaluations++;
+            x[0] = at;
+            double y;
+            try {
+                y = function.evaluate(workspace, x);
+            } catch (ArithmeticException e) {
+                return Double.NaN;
+            }
+            if (y != y) return y;
+            double p = (y1 - y) * scale;
+            return Math.max(-LIMIT, Math.min(LIMIT, p));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+// Integer text for programmer mode in hex, decimal, octal or binary, appended
+// straight into a caller supplied builder without the boxing, String.format or
+// DecimalFormat round trip.
+//
+// format() writes a literal that IntegerEvaluator reads back to the same value:
+// 0x, 0o or 0b and the digits for the other radixes, which show the raw two's
+// complement bits of the word (so -1 on i64 is 0xFFFFFFFFFFFFFFFF), and a signed
+// or unsigned decimal number depending on the word. formatGrouped() is the same
+// with digit groups for the display, digits() the bare digits for an entry
+// being typed.
+//
+// Digits are produced least significant first and the run is reversed in place.
+// Power-of-two radixes are shifted out; decimal 128-bit values are split into
+// 17-digit chunks by an exact long division, so every step is a primitive
+// operation and nothing is allocated once the builder has room.
+public final class RadixFormat {
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+    // 10^17 keeps a chunk's remainder shifted by four bits below 2^63
+    private static final long CHUNK = 100_000_000_000_000_000L;
+    private static final int CHUNK_DIGITS = 17;
+
+    private RadixFormat() {
+    }
+
+    public static String format(long value, IntegerExpression.Word word, int radix) {
+        return format(word.signed() ? value >> 63 : 0, value, word, radix, new StringBuilder(24)).toString();
+    }
+
+    public static StringBuilder format(long value, IntegerExpression.Word word, int radix, StringBuilder out) {
+        return write(0, value, word, radix, true, false, out);
+    }
+
+    // 128-bit words: the value is high:low; 64-bit words ignore high
+    public static StringBuilder format(long high, long low, IntegerExpression.Word word, int radix, StringBuilder out) {
+        return write(high, low, word, radix, true, false, out);
+    }
+
+    public static String formatGrouped(long high, long low, IntegerExpression.Word word, int radix) {
+        return write(high, low, word, radix, true, true, new StringBuilder(48)).toString();
+    }
+
+    public static StringBuilder formatGrouped(long high, long low, IntegerExpression.Word word, int radix, StringBuilder out) {
+        return write(high, low, word, radix, true, true, out);
+    }
+
+    public static StringBuilder digits(long high, long low, IntegerExpression.Word word, int radix, StringBuilder out) {
+        return write(high, low, word, radix, false, false, out);
+    }
+
+    public static String prefix(int radix) {
+        switch (radix) {
+            case 16: return "0x";
+            case 8: return "0o";
+            case 2: return "0b";
+            case 10: return "";
+            default: throw new IllegalArgumentException("Unsupported radix " + radix);
+        }
+    }
+
+    private static StringBuilder write(long high, long low, IntegerExpression.Word word, int radix,
+            boolean prefixed, boolean grouped, StringBuilder out) {
+        if (!word.wide()) high = 0;
+        if (radix == 10 && word.signed() && (word.wide() ? high : low) < 0) {
+            out.append('-');
+            // The magnitude, read as unsigned; the most negative value is its own
+            if (word.wide()) {
+                high = ~high + (low == 0 ? 1 : 0);
+            }
+            low = -low;
+        }
+        if (prefixed) out.append(prefix(radix));
+        int start = out.length();
+        int group = !grouped ? 0 : radix == 16 || radix == 2 ? 4 : 3;
+        char separator = radix == 10 ? ',' : ' ';
+        int count = 0;
+        if (radix == 10) {
+            while (high != 0) {
+                // high:low divided by 10^17 four bits at a time; r < 10^17 < 2^57
+                long quotientHigh = Long.divideUnsigned(high, CHUNK);
+                long r = Long.remainderUnsigned(high, CHUNK);
+                long quotientLow = 0;
+                for (int shift = 60; shift >= 0; shift -= 4) {
+                    r = r << 4 | (low >>> shift & 15);
+                    quotientLow |= (r / CHUNK) << shift;
+                    r %= CHUNK;
+                }
+                high = quotientHigh;
+                low = quotientLow;
+                for (int i = 0; i < CHUNK_DIGITS; i++) {
+                    count = digit(out, (int) (r % 10), count, group, separator);
+                    r /= 10;
+                }
+            }
+            if (low < 0) {
+                long quotient = Long.divideUnsigned(low, 10);
+                count = digit(out, (int) (low - quotient * 10), count, group, separator);
+                low = quotient;
+            }
+            while (low != 0 || count == 0) {
+                count = digit(out, (int) (low % 10), count, group, separator);
+                low /= 10;
+            }
+        } else {
+            int bits = Integer.numberOfTrailingZeros(radix);
+            int mask = radix - 1;
+            while (low != 0 || high != 0 || count == 0) {
+                count = digit(out, (int) low & mask, count, group, separator);
+                low = low >>> bits | high << (64 - bits);
+                high >>>= bits;
+            }
+        }
+        // Most significant digit first
+        for (int i = start, j = out.length() - 1; i < j; i++, j--) {
+            char c = out.charAt(i);
+            out.setCharAt(i, out.charAt(j));
+            out.setCharAt(j, c);
+        }
+        return out;
+    }
+
+    private static int digit(StringBuilder out, int digit, int count, int group, char separator) {
+        if (group > 0 && count > 0 && count % group == 0) out.append(separator);
+        out.append(DIGITS[digit]);
+        return count + 1;
+    }
+}
@@ -0,0 +1,338 @@
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+// Everything needed to pick a calculator session up where it was left: the last
+// result, the expression and number being entered, the memory registers with their
+// statistics, the history, and the display settings. The window saves one when it
+// closes and reads it back on the next start; the server hands the same bytes out
+// and takes them in, so a session moves between the two (fields one side has no
+// use for keep their defaults).
+//
+// The format is a small binary file written and read through NIO channels:
+//
+//   header     long magic "CALCSESS" | int version | int body length
+//              | int CRC32C of the body
+//   body       double result | string exact result | int precision
+//              | string expression | string entry | int open parentheses
+//              | int operator mark | byte flags | byte theme | byte word + 1
+//              | byte radix | long integer high | long integer low
+//              | long integer memory high | long integer memory low (version 2)
+//              | varint registers, each: string name | double sum
+//                | double compensation | varint count | double mean | double m2
+//              | varint history entries, oldest first, each: string text
+//   string     varint UTF-8 length + 1, 0 for none | UTF-8 bytes
+//
+// Lengths and counts are varints (7 bits a byte), so a typical history entry costs
+// its text plus one byte. Readers accept their own version and older ones and
+// refuse newer ones and damaged files with an IOException instead of guessing.
+// Reading decodes history text straight into a HistoryBuffer, without a String per
+// entry, and skips the oldest entries a smaller history limit would drop anyway.
+//
+// An instance is a plain holder that is filled on one thread and handed over.
+public final class SessionSnapshot {
+    private static final long MAGIC = 0x43414C4353455353L; // "CALCSESS"
+    public static final int VERSION = 2;
+    private static final int HEADER = 8 + 4 + 4 + 4;
+    private static final int FLAG_EXPECT_OPERAND = 1;
+    private static final int FLAG_FAST_FUNCTIONS = 2;
+
+    public double result;
+    // Exact mode: the last decimal result, if any, and the digits of the MathContext
+    // (0 when exact mode is off)
+    public BigDecimal exactResult;
+    public int precision;
+    // The expression entered so far, and the number being typed (null when none is)
+    public String expression = "";
+    public String entry;
+    public int openParentheses;
+    public int operatorMark = -1;
+    public boolean expectOperand = true;
+    public int theme;
+    public boolean fastFunctions;
+    // Programmer mode word (null when off), radix and last integer result
+    public IntegerExpression.Word word;
+    public int radix = 16;
+    public long integerHigh;
+    public long integerLow;
+    // The memory register programmer mode uses instead of the double ones
+    public long memoryHigh;
+    public long memoryLow;
+    public MemoryBank memory = new MemoryBank();
+    public HistoryBuffer history = new HistoryBuffer(1);
+
+    // Writes to a temporary file beside the target and moves it over, so a crash
+    // mid-write leaves the previous snapshot intact
+    public void write(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                write(channel);
+                channel.force(false);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    public void write(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = encode();
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    // The whole snapshot, header included, ready to be written
+    public ByteBuffer encode() {
+        // Sized for ASCII text, which history mostly is, so it rarely has to grow
+        long estimate = HEADER + 256 + memory.names().size() * 64L + history.size() * 2L;
+        for (int i = 0; i < history.size(); i++) estimate += history.length(i);
+        Output out = new Output((int) Math.min(Integer.MAX_VALUE - 8, estimate));
+        out.buffer.position(HEADER);
+        out.ensure(64);
+        out.buffer.putDouble(result);
+        out.string(exactResult == null ? null : exactResult.toString());
+        out.buffer.putInt(precision);
+        out.string(expression);
+        out.string(entry);
+        out.ensure(48);
+        out.buffer.putInt(openParentheses);
+        out.buffer.putInt(operatorMark);
+        out.buffer.put((byte) ((expectOperand ? FLAG_EXPECT_OPERAND : 0) | (fastFunctions ? FLAG_FAST_FUNCTIONS : 0)));
+        out.buffer.put((byte) theme);
+        out.buffer.put((byte) (word == null ? 0 : word.ordinal() + 1));
+        out.buffer.put((byte) radix);
+        out.buffer.putLong(integerHigh);
+        out.buffer.putLong(integerLow);
+        out.buffer.putLong(memoryHigh);
+        out.buffer.putLong(memoryLow);
+
+        out.varint(memory.names().size());
+        for (String name : memory.names()) {
+            MemoryBank.Register register = memory.register(name);
+            out.string(name);
+            out.ensure(24);
+            out.buffer.putDouble(register.total().sum());
+            out.buffer.putDouble(register.total().compensation());
+            out.varint(register.count());
+            out.ensure(16);
+            out.buffer.putDouble(register.runningMean());
+            out.buffer.putDouble(register.sumOfSquares());
+        }
+
+        StringBuilder text = new StringBuilder();
+        out.varint(history.size());
+        for (int i = 0; i < history.size(); i++) {
+            text.setLength(0);
+            out.string(history.appendTo(i, text));
+        }
+
+        ByteBuffer buffer = out.buffer;
+        int length = buffer.position() - HEADER;
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), HEADER, length);
+        buffer.putLong(0, MAGIC);
+        buffer.putInt(8, VERSION);
+        buffer.putInt(12, length);
+        buffer.putInt(16, (int) crc.getValue());
+        return buffer.flip();
+    }
+
+    public static SessionSnapshot read(Path file, int historyLimit) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Snapshot too large");
+            return read(channel, (int) channel.size(), historyLimit);
+        }
+    }
+
+    // Reads one snapshot of at most maxBytes; the history keeps the newest
+    // historyLimit entries
+    public static SessionSnapshot read(ReadableByteChannel channel, int maxBytes, int historyLimit) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        fill(channel, header);
+        if (header.getLong(0) != MAGIC) throw new IOException("Not a session snapshot");
+        int version = header.getInt(8);
+        if (version < 1 || version > VERSION) throw new IOException("Unsupported snapshot version " + version);
+        int length = header.getInt(12);
+        if (length < 0 || length > maxBytes - HEADER) throw new IOException("Snapshot too large");
+        ByteBuffer body = ByteBuffer.allocate(length);
+        fill(channel, body);
+        CRC32C crc = new CRC32C();
+        crc.update(body.array(), 0, length);
+        if ((int) crc.getValue() != header.getInt(16)) throw new IOException("Snapshot is damaged");
+        body.flip();
+        try {
+            return decode(body, version, historyLimit);
+        } catch (RuntimeException e) {
+            throw new IOException("Snapshot is damaged", e);
+        }
+    }
+
+    private static SessionSnapshot decode(ByteBuffer in, int version, int historyLimit) {
+        SessionSnapshot snapshot = new SessionSnapshot();
+        snapshot.result = in.getDouble();
+        String exact = string(in);
+        snapshot.exactResult = exact == null ? null : new BigDecimal(exact);
+        snapshot.precision = in.getInt();
+        snapshot.expression = string(in);
+        snapshot.entry = string(in);
+        snapshot.openParentheses = in.getInt();
+        snapshot.operatorMark = in.getInt();
+        int flags = in.get();
+        snapshot.expectOperand = (flags & FLAG_EXPECT_OPERAND) != 0;
+        snapshot.fastFunctions = (flags & FLAG_FAST_FUNCTIONS) != 0;
+        snapshot.theme = in.get();
+        int word = in.get();
+        snapshot.word = word == 0 ? null : IntegerExpression.Word.values()[word - 1];
+        snapshot.radix = in.get();
+        snapshot.integerHigh = in.getLong();
+        snapshot.integerLow = in.getLong();
+        if (version >= 2) {
+            snapshot.memoryHigh = in.getLong();
+            snapshot.memoryLow = in.getLong();
+        }
+
+        int registers = (int) varint(in);
+        for (int i = 0; i < registers; i++) {
+            MemoryBank.Register register = snapshot.memory.register(string(in));
+            double sum = in.getDouble();
+            double compensation = in.getDouble();
+            long count = varint(in);
+            register.restore(sum, compensation, count, in.getDouble(), in.getDouble());
+        }
+
+        int entries = (int) varint(in);
+        HistoryBuffer history = new HistoryBuffer(Math.max(1, historyLimit));
+        // The oldest entries would only be dropped again
+        for (int i = entries - historyLimit; i > 0; i--) {
+            int length = (int) varint(in) - 1;
+            in.position(in.position() + length);
+        }
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+        CharBuffer text = CharBuffer.allocate(256);
+        ByteBuffer bytes = in.duplicate();
+        for (int i = Math.min(entries, historyLimit); i > 0; i--) {
+            int length = (int) varint(in) - 1;
+            if (text.capacity() < length) text = CharBuffer.allocate(length);
+            bytes.limit(in.position() + length).position(in.position());
+            text.clear();
+            decoder.reset();
+            if (decoder.decode(bytes, text, true).isError() || decoder.flush(text).isError()) {
+                throw new IllegalArgumentException("Malformed history entry");
+            }
+            history.add(text.flip());
+            in.position(in.position() + length);
+        }
+        snapshot.history = history;
+        return snapshot;
+    }
+
+    private static void fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new IOException("Snapshot is truncated");
+        }
+    }
+
+    private static String string(ByteBuffer in) {
+        int length = (int) varint(in) - 1;
+        if (length < 0) return null;
+        String text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+
+    private static long varint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+            if (shift > 56) throw new IllegalArgumentException("Malformed varint");
+        }
+    }
+
+    // A heap buffer that grows as the snapshot is written
+    private static final class Output {
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        // Text is copied in here first, since the encoder is much faster on an array
+        private CharBuffer chars = CharBuffer.allocate(256);
+        private ByteBuffer buffer;
+
+        Output(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        void ensure(int bytes) {
+            if (buffer.remaining() >= bytes) return;
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            buffer = larger.put(buffer);
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) (value & 0x7F | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        // The length goes first, so the text is encoded after room for the longest
+        // length it could have, and moved down in the rare case that was too much
+        void string(CharSequence text) {
+            if (text == null) {
+                varint(0);
+                return;
+            }
+            int chars = text.length();
+            int reserved = varintSize(chars * 3L + 1);
+            ensure(reserved + chars * 3);
+            int start = buffer.position();
+            buffer.position(start + reserved);
+            if (this.chars.capacity() < chars) this.chars = CharBuffer.allocate(Math.max(chars, this.chars.capacity() * 2));
+            this.chars.clear();
+            if (text instanceof StringBuilder) {
+                ((StringBuilder) text).getChars(0, chars, this.chars.array(), 0);
+            } else {
+                text.toString().getChars(0, chars, this.chars.array(), 0);
+            }
+            this.chars.limit(chars);
+            CoderResult result = encoder.reset().encode(this.chars, buffer, true);
+            if (result.isError()) {
+                // Unpaired surrogates; String.getBytes substitutes them
+                buffer.position(start + reserved);
+                buffer.put(text.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            int length = buffer.position() - start - reserved;
+            buffer.position(start);
+            varint(length + 1);
+            int end = buffer.position();
+            if (end < start + reserved) {
+                byte[] array = buffer.array();
+                System.arraycopy(array, start + reserved, array, end, length);
+            }
+            buffer.position(end + length);
+        }
+
+        private static int varintSize(long value) {
+            int size = 1;
+            while ((value >>>= 7) != 0) size++;
+            return size;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Named cells holding either a number or a formula over other cells, like a
+// spreadsheet. Editing a cell only recomputes the formulas downstream of it, and a
+// formula whose value does not change stops the update there.
+//
+// Every cell has a level: 0 for numbers, one more than its deepest input for
+// formulas, so formulas on the same level never depend on each other. A
+// recalculation walks the levels upwards with a bucket of dirty cells per level;
+// large buckets are evaluated in parallel on the common fork-join pool. Cycles are
+// rejected when a formula is defined.
+//
+// A formula whose evaluation fails (division by zero, ...) or that reads a failed
+// cell is in error until its inputs change. Names that are referenced before they
+// are set start out as the number 0. Not thread-safe.
+//
+//   java Calculator --sheet model.txt
+//
+// reads one "name = number or formula" per line and prints every cell with its value.
+public final class Sheet {
+    // Below this many dirty cells on one level the level is evaluated on the calling thread
+    private static final int PARALLEL_THRESHOLD = 2048;
+    private static final int[] NONE = new int[0];
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    // One program per formula shape: cells whose formulas differ only in the names
+    // they reference (a column of "b1 * rate", "b2 * rate", ...) share it, which keeps
+    // a large sheet's programs in cache
+    private final Map<Shape, CompiledExpression> shapes = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private double[] values = new double[16];
+    private CompiledExpression[] formulas = new CompiledExpression[16];
+    private String[] sources = new String[16];
+    // For a formula, the cell bound to each of its variables
+    private int[][] inputs = new int[16][];
+    private int[][] dependents = new int[16][];
+    private int[] dependentCounts = new int[16];
+    private int[] levels = new int[16];
+    private String[] errors = new String[16];
+    private boolean[] dirty = new boolean[16];
+    private int[][] buckets = new int[1][];
+    private int[] bucketSizes = new int[1];
+    private int lowestDirty = Integer.MAX_VALUE;
+    private int highestDirty = -1;
+    // Whether each cell of the bucket being recomputed got a different value or error
+    private boolean[] changed = new boolean[16];
+    // Scratch space for graph walks: a cell is marked when visited[cell] == visit
+    private int[] visited = new int[16];
+    private int visit;
+    private int[] work = new int[16];
+    private long evaluations;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) throw new IllegalArgumentException("Usage: --sheet <file>");
+        Sheet sheet = new Sheet();
+        StringBuilder out = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get(args[0]))) {
+            if (line.isBlank() || line.startsWith("#")) continue;
+            int equals = line.indexOf('=');
+            String name = equals < 0 ? "" : line.substring(0, equals).trim();
+            String text = equals < 0 ? "" : line.substring(equals + 1).trim();
+            try {
+                if (name.isEmpty()) throw new IllegalArgumentException("Expected name = value");
+                try {
+                    sheet.set(name, NumberCodec.parse(text));
+                } catch (NumberFormatException e) {
+                    sheet.define(name, text);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println(line + ": " + e.getMessage());
+            }
+        }
+        for (String name : sheet.names()) {
+            out.append(name).append(" = ");
+            try {
+                NumberCodec.format(sheet.value(name), out);
+            } catch (ArithmeticException e) {
+                out.append("Not applicable");
+            }
+            out.append('\n');
+        }
+        System.out.print(out);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    public boolean contains(String name) {
+        return ids.containsKey(name);
+    }
+
+    public List<String> names() {
+        return Collections.unmodifiableList(names);
+    }
+
+    // Makes the cell a number, replacing any formula it held
+    public void set(String name, double value) {
+        int cell = cell(name);
+        if (formulas[cell] != null) {
+            if (dirty[cell]) removeFromBucket(cell);
+            unlink(cell);
+            formulas[cell] = null;
+            sources[cell] = null;
+            inputs[cell] = NONE;
+            relevel(cell);
+        } else if (Double.doubleToRawLongBits(values[cell]) == Double.doubleToRawLongBits(value) && errors[cell] == null) {
+            return;
+        }
+        values[cell] = value;
+        errors[cell] = null;
+        markDependents(cell);
+    }
+
+    // Makes the cell a formula; its variables name other cells. Throws
+    // IllegalArgumentException for a syntax error or a circular reference, leaving
+    // the sheet unchanged.
+    public void define(String name, CharSequence formula) {
+        CompiledExpression compiled = ExpressionCache.shared().get(formula.toString());
+        Integer existing = ids.get(name);
+        for (int i = 0; i < compiled.variableCount(); i++) {
+            String variable = compiled.variable(i);
+            if (variable.equals(name) || existing != null && ids.containsKey(variable) && reaches(existing, ids.get(variable))) {
+                throw new IllegalArgumentException("Circular reference: " + name + " depends on " + variable
+                    + (variable.equals(name) ? "" : ", which depends on " + name));
+            }
+        }
+        int cell = cell(name);
+        int[] bound = new int[compiled.variableCount()];
+        for (int i = 0; i < bound.length; i++) bound[i] = cell(compiled.variable(i));
+        unlink(cell);
+        formulas[cell] = shapes.computeIfAbsent(new Shape(compiled), shape -> shape.program);
+        sources[cell] = compiled.source();
+        inputs[cell] = bound;
+        for (int input : bound) addDependent(input, cell);
+        relevel(cell);
+        markDirty(cell);
+    }
+
+    // Value of a cell after bringing the sheet up to date. Throws
+    // IllegalArgumentException for an unknown name and ArithmeticException when the
+    // cell is in error.
+    public double value(String name) {
+        Integer cell = ids.get(name);
+        if (cell == null) throw new IllegalArgumentException("Unknown cell '" + name + "'");
+        recalculate();
+        if (errors[cell] != null) throw new ArithmeticException(errors[cell]);
+        return values[cell];
+    }
+
+    // The formula text of a cell, or null when it holds a number
+    public String formula(String name) {
+        Integer cell = ids.get(name);
+        if (cell == null) throw new IllegalArgumentException("Unknown cell '" + name + "'");
+        return sources[cell];
+    }
+
+    // Total number of formula evaluations so far, to see how much an edit cost
+    public long evaluations() {
+        return evaluations;
+    }
+
+    // Recomputes every formula downstream of an edit since the last call; returns
+    // the number of formulas evaluated
+    public int recalculate() {
+        int evaluated = 0;
+        for (int level = lowestDirty; level <= highestDirty; level++) {
+            int n = bucketSizes[level];
+            if (n == 0) continue;
+            int[] bucket = buckets[level];
+            if (n >= PARALLEL_THRESHOLD) {
+                ForkJoinPool.commonPool().invoke(new Recompute(bucket, 0, n));
+            } else {
+                new Recompute(bucket, 0, n).compute();
+            }
+            // Dirty flags are cleared here rather than by the workers; the dependents of
+            // every cell that changed go into the buckets of later levels
+            for (int i = 0; i < n; i++) {
+                int cell = bucket[i];
+                dirty[cell] = false;
+                if (changed[i]) markDependents(cell);
+            }
+            bucketSizes[level] = 0;
+            evaluated += n;
+        }
+        lowestDirty = Integer.MAX_VALUE;
+        highestDirty = -1;
+        evaluations += evaluated;
+        return evaluated;
+    }
+
+    @SuppressWarnings("serial")
+    private final class Recompute extends RecursiveAction {
+        private final int[] bucket;
+        private final int from;
+        private final int to;
+
+        Recompute(int[] bucket, int from, int to) {
+            this.bucket = bucket;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Recompute(bucket, from, middle), new Recompute(bucket, middle, to));
+                return;
+            }
+            DoubleStack workspace = new DoubleStack();
+            double[] arguments = new double[8];
+            for (int i = from; i < to; i++) {
+                int cell = bucket[i];
+                int[] bound = inputs[cell];
+                if (arguments.length < bound.length) arguments = new double[bound.length];
+                String error = null;
+                double value = Double.NaN;
+                for (int j = 0; j < bound.length && error == null; j++) {
+                    error = errors[bound[j]];
+                    arguments[j] = values[bound[j]];
+                }
+                if (error == null) {
+                    try {
+                        value = formulas[cell].evaluate(workspace, arguments);
+                    } catch (ArithmeticException e) {
+                        error = e.getMessage();
+                    }
+                }
+                changed[i] = Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(values[cell])
+                    || (error == null ? errors[cell] != null : !error.equals(errors[cell]));
+                values[cell] = value;
+                errors[cell] = error;
+            }
+        }
+    }
+
+    private int cell(String name) {
+        Integer id = ids.get(name);
+        if (id != null) return id;
+        int cell = names.size();
+        if (cell == values.length) grow(cell * 2);
+        ids.put(name, cell);
+        names.add(name);
+        inputs[cell] = NONE;
+        dependents[cell] = NONE;
+        return cell;
+    }
+
+    private void grow(int capacity) {
+        values = Arrays.copyOf(values, capacity);
+        formulas = Arrays.copyOf(formulas, capacity);
+        sources = Arrays.copyOf(sources, capacity);
+        inputs = Arrays.copyOf(inputs, capacity);
+        dependents = Arrays.copyOf(dependents, capacity);
+        dependentCounts = Arrays.copyOf(dependentCounts, capacity);
+        levels = Arrays.copyOf(levels, capacity);
+        errors = Arrays.copyOf(errors, capacity);
+        dirty = Arrays.copyOf(dirty, capacity);
+        visited = Arrays.copyOf(visited, capacity);
+    }
+
+    private void addDependent(int cell, int dependent) {
+        int n = dependentCounts[cell];
+        if (n == dependents[cell].length) dependents[cell] = Arrays.copyOf(dependents[cell], Math.max(4, n * 2));
+        dependents[cell][n] = dependent;
+        dependentCounts[cell] = n + 1;
+    }
+
+    // Removes the cell from the dependents of its current inputs
+    private void unlink(int cell) {
+        for (int input : inputs[cell]) {
+            int[] list = dependents[input];
+            int n = dependentCounts[input];
+            for (int i = 0; i < n; i++) {
+                if (list[i] == cell) {
+                    list[i] = list[--n];
+                    break;
+                }
+            }
+            dependentCounts[input] = n;
+        }
+    }
+
+    // Whether target is downstream of cell, by an iterative walk over dependents
+    private boolean reaches(int cell, int target) {
+        if (cell == target) return true;
+        visit++;
+        int top = 0;
+        work = ensure(work, 1);
+        work[top++] = cell;
+        visited[cell] = visit;
+        while (top > 0) {
+            int current = work[--top];
+            for (int i = 0; i < dependentCounts[current]; i++) {
+                int next = dependents[current][i];
+                if (next == target) return true;
+                if (visited[next] != visit) {
+                    visited[next] = visit;
+                    work = ensure(work, top + 1);
+                    work[top++] = next;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Recomputes the level of a cell whose inputs changed, and of everything
+    // downstream whose level moves as a result
+    private void relevel(int cell) {
+        int top = 0;
+        work = ensure(work, 1);
+        work[top++] = cell;
+        while (top > 0) {
+            int current = work[--top];
+            int level = 0;
+            for (int input : inputs[current]) level = Math.max(level, levels[input] + 1);
+            if (level == levels[current] && current != cell) continue;
+            if (dirty[current] && level != levels[current]) moveBucket(current, level);
+            levels[current] = level;
+            work = ensure(work, top + dependentCounts[current]);
+            for (int i = 0; i < dependentCounts[current]; i++) work[top++] = dependents[current][i];
+        }
+    }
+
+    private void markDependents(int cell) {
+        for (int i = 0; i < dependentCounts[cell]; i++) markDirty(dependents[cell][i]);
+    }
+
+    private void markDirty(int cell) {
+        if (dirty[cell]) return;
+        dirty[cell] = true;
+        int level = levels[cell];
+        if (level >= buckets.length) {
+            int capacity = Math.max(level + 1, buckets.length * 2);
+            buckets = Arrays.copyOf(buckets, capacity);
+            bucketSizes = Arrays.copyOf(bucketSizes, capacity);
+        }
+        int n = bucketSizes[level];
+        if (buckets[level] == null) buckets[level] = new int[16];
+        if (n == buckets[level].length) buckets[level] = Arrays.copyOf(buckets[level], n * 2);
+        buckets[level][n] = cell;
+        bucketSizes[level] = n + 1;
+        if (n + 1 > changed.length) changed = Arrays.copyOf(changed, Math.max(n + 1, changed.length * 2));
+        lowestDirty = Math.min(lowestDirty, level);
+        highestDirty = Math.max(highestDirty, level);
+    }
+
+    private void moveBucket(int cell, int to) {
+        removeFromBucket(cell);
+        levels[cell] = to;
+        markDirty(cell);
+    }
+
+    private void removeFromBucket(int cell) {
+        int level = levels[cell];
+        int[] bucket = buckets[level];
+        int n = bucketSizes[level];
+        for (int i = 0; i < n; i++) {
+            if (bucket[i] == cell) {
+                bucket[i] = bucket[--n];
+                break;
+            }
+        }
+        bucketSizes[level] = n;
+        dirty[cell] = false;
+    }
+
+    private static final class Shape {
+        final CompiledExpression program;
+        private final int hash;
+
+        Shape(CompiledExpression program) {
+            this.program = program;
+            hash = (Arrays.hashCode(program.ops) * 31 + Arrays.hashCode(program.args)) * 31 + Arrays.hashCode(program.constants);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Shape)) return false;
+            CompiledExpression that = ((Shape) other).program;
+            // Variables are numbered in order of first use, so equal programs bind alike
+            return Arrays.equals(program.ops, that.ops) && Arrays.equals(program.args, that.args)
+                && Arrays.equals(program.constants, that.constants) && program.temps == that.temps
+                && program.variableCount() == that.variableCount();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static int[] ensure(int[] array, int capacity) {
+        return array.length >= capacity ? array : Arrays.copyOf(array, Math.max(capacity, array.length * 2));
+    }
+}
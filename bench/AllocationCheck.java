@@ -0,0 +1,51 @@
+import java.lang.management.ManagementFactory;
+
+// Verifies that evaluating a compiled expression allocates nothing once warmed up.
+// Exits with status 1 if the per-thread allocation counter moves during the
+// measured loop.
+//
+//   javac -encoding UTF-8 -d out *.java bench/*.java && java -cp out AllocationCheck
+public class AllocationCheck {
+    private static final int ITERATIONS = 1_000_000;
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 200; i++) nested.append("(x+");
+        nested.append('1');
+        for (int i = 0; i < 200; i++) nested.append(")*1.0001");
+
+        String[] expressions = {
+            "1 + 2",
+            "2 + 3 * 4 - 5 / 6 % 7",
+            "sqrt x + sqr y - recip (x + y)",
+            "sqr(x + y) / (x + y) + sqrt(x + y)",
+            nested.toString()
+        };
+        boolean failed = false;
+        DoubleStack workspace = new DoubleStack();
+        double[] values = {3, 4};
+        for (String text : expressions) {
+            CompiledExpression compiled = Evaluator.compile(text);
+            double sink = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                sink += compiled.evaluate(workspace, values);
+                sink += compiled.evaluate(values);
+            }
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < ITERATIONS; i++) {
+                sink += compiled.evaluate(workspace, values);
+                sink += compiled.evaluate(values);
+            }
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+            // The counter itself may allocate a few bytes; anything per-call shows up in MBs
+            boolean ok = allocated < 1024;
+            failed |= !ok;
+            System.out.printf("%-6s %10d bytes over %d evaluations  %s (%s)%n",
+                ok ? "OK" : "FAIL", allocated, 2 * ITERATIONS,
+                text.length() > 40 ? text.substring(0, 40) + "..." : text, sink != 0);
+        }
+        if (failed) System.exit(1);
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+// Minimal dependency-free benchmark runner in the spirit of JMH: fixed-time warmup
+// and measurement iterations per benchmark, results consumed by a sink so the JIT
+// cannot drop them, and a tab-separated report that later runs are compared to.
+//
+// Options:
+//   --warmup N         warmup iterations (default 3)
+//   --iterations N     measured iterations (default 5)
+//   --time MS          length of each iteration in milliseconds (default 500)
+//   --filter REGEX     only run benchmarks whose name matches
+//   --report FILE      write results as name<TAB>ns/op<TAB>error
+//   --baseline FILE    compare with an earlier report and exit with status 2 when a
+//                      benchmark got slower by more than the threshold
+//   --threshold PCT    allowed slowdown before a result counts as a regression (default 10)
+public final class Bench {
+    private static volatile long sink;
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Integer> operations = new ArrayList<>();
+    private final List<LongSupplier> bodies = new ArrayList<>();
+    private int warmup = 3;
+    private int iterations = 5;
+    private long iterationNanos = 500_000_000L;
+    private Pattern filter;
+    private Path report;
+    private Path baseline;
+    private double threshold = 10;
+
+    public Bench(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--warmup": warmup = Integer.parseInt(value); i++; break;
+                case "--iterations": iterations = Integer.parseInt(value); i++; break;
+                case "--time": iterationNanos = Long.parseLong(value) * 1_000_000L; i++; break;
+                case "--filter": filter = Pattern.compile(value); i++; break;
+                case "--report": report = Paths.get(value); i++; break;
+                case "--baseline": baseline = Paths.get(value); i++; break;
+                case "--threshold": threshold = Double.parseDouble(value); i++; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    // Registers a benchmark; each call of body performs operationsPerCall operations
+    // and returns a value derived from their results.
+    public void add(String name, int operationsPerCall, LongSupplier body) {
+        if (filter != null && !filter.matcher(name).find()) return;
+        names.add(name);
+        operations.add(operationsPerCall);
+        bodies.add(body);
+    }
+
+    public void run() throws IOException {
+        Map<String, Double> previous = baseline != null ? read(baseline) : new HashMap<>();
+        List<String> lines = new ArrayList<>();
+        int regressions = 0;
+        System.out.printf(Locale.ROOT, "%-40s %14s %10s %10s%n", "Benchmark", "ns/op", "error", "vs base");
+        for (int b = 0; b < names.size(); b++) {
+            LongSupplier body = bodies.get(b);
+            int perCall = operations.get(b);
+            for (int i = 0; i < warmup; i++) {
+                measure(body, perCall);
+            }
+            double[] samples = new double[iterations];
+            double mean = 0;
+            for (int i = 0; i < iterations; i++) {
+                samples[i] = measure(body, perCall);
+                mean += samples[i];
+            }
+            mean /= iterations;
+            double variance = 0;
+            for (double sample : samples) variance += (sample - mean) * (sample - mean);
+            double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+            String name = names.get(b);
+            String change = "";
+            Double before = previous.get(name);
+            if (before != null) {
+                double percent = (mean - before) / before * 100;
+                change = String.format(Locale.ROOT, "%+.1f%%", percent);
+                if (percent > threshold) {
+                    change += " REGRESSION";
+                    regressions++;
+                }
+            }
+            System.out.printf(Locale.ROOT, "%-40s %14.2f %10.2f %10s%n", name, mean, error, change);
+            lines.add(String.format(Locale.ROOT, "%s\t%.3f\t%.3f", name, mean, error));
+        }
+        if (report != null) {
+            Files.write(report, lines, StandardCharsets.UTF_8);
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) slower than the baseline by more than " + threshold + "%");
+            System.exit(2);
+        }
+    }
+
+    // Runs body repeatedly for one iteration and returns nanoseconds per operation
+    private double measure(LongSupplier body, int perCall) {
+        long calls = 0;
+        long result = 0;
+        long start = System.nanoTime();
+        long deadline = start + iterationNanos;
+        long now;
+        do {
+            for (int i = 0; i < 16; i++) {
+                result += body.getAsLong();
+            }
+            calls += 16;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += result;
+        return (now - start) / ((double) calls * perCall);
+    }
+
+    static Map<String, Double> read(Path file) throws IOException {
+        Map<String, Double> results = new HashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t");
+            if (fields.length >= 2) results.put(fields[0], Double.parseDouble(fields[1]));
+        }
+        return results;
+    }
+}
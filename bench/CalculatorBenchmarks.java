@@ -0,0 +1,385 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.MathContext;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.swing.JTextArea;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+
+// Benchmark suite for the calculator core. Run it before and after a change to the
+// hot path and compare the reports:
+//
+//   javac -encoding UTF-8 -d out *.java bench/*.java
+//   java -cp out CalculatorBenchmarks --report before.tsv
+//   java -cp out CalculatorBenchmarks --baseline before.tsv
+//
+// See Bench for the other options.
+public class CalculatorBenchmarks {
+    public static void main(String[] args) throws Exception {
+        Bench bench = new Bench(args);
+        DoubleStack workspace = new DoubleStack();
+
+        // Single operator, as one press of an operator key followed by "="
+        String[] operators = {"+", "-", "*", "/", "%"};
+        for (String op : operators) {
+            CompiledExpression compiled = Evaluator.compile("x " + op + " y");
+            double[] values = {1234.5, 6.75};
+            bench.add("calculate " + op, 1, () -> (long) compiled.evaluate(workspace, values));
+        }
+        String[] functions = {"sqrt", "sqr", "recip"};
+        for (String function : functions) {
+            CompiledExpression compiled = Evaluator.compile(function + " x");
+            double[] values = {6.75};
+            bench.add("calculate " + function, 1, () -> (long) compiled.evaluate(workspace, values));
+        }
+
+        // Long chained expression with mixed precedence
+        StringBuilder chain = new StringBuilder("1");
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            chain.append(' ').append(operators[i % 4]).append(' ').append(1 + random.nextInt(99));
+        }
+        String chainText = chain.toString();
+        CompiledExpression chained = Evaluator.compile(chainText);
+        double[] none = {};
+        bench.add("chain 1000 evaluate", 1, () -> (long) chained.evaluate(workspace, none));
+        bench.add("chain 1000 compile", 1, () -> Evaluator.compile(chainText).ops.length);
+        ExpressionCache cache = new ExpressionCache(16);
+        bench.add("chain 1000 cached", 1, () -> (long) cache.evaluate(chainText));
+
+        // Deep parenthesis nesting
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 500; i++) nested.append("(1+");
+        nested.append('x');
+        for (int i = 0; i < 500; i++) nested.append(")*0.5");
+        String nestedText = nested.toString();
+        CompiledExpression deep = Evaluator.compile(nestedText);
+        double[] x = {3};
+        bench.add("nesting 500 evaluate", 1, () -> (long) deep.evaluate(workspace, x));
+        bench.add("nesting 500 compile", 1, () -> Evaluator.compile(nestedText).ops.length);
+
+        // Cost of each arithmetic mode: double, decimal where every step is exact in
+        // double (fast path), and decimal that has to fall back to BigDecimal
+        MathContext decimal = MathContext.DECIMAL128;
+        CompiledExpression money = Evaluator.compile("1234.5 + 6.25 * 4 - 0.75");
+        CompiledExpression drifting = Evaluator.compile("0.1 + 0.2 * 3 - 0.07");
+        bench.add("mode double exact-input", 1, () -> (long) money.evaluate());
+        bench.add("mode double inexact-input", 1, () -> (long) drifting.evaluate());
+        bench.add("mode decimal fast path", 1, () -> money.evaluate(decimal).scale());
+        bench.add("mode decimal promoted", 1, () -> drifting.evaluate(decimal).scale());
+        bench.add("mode decimal chain 1000", 1, () -> chained.evaluate(decimal).scale());
+
+        // One formula over a column of inputs: row by row versus block-wise
+        int rows = 1 << 20;
+        CompiledExpression formula = Evaluator.compile("(x * 1.08 + y) / sqrt(x)");
+        double[][] columns = {new double[rows], new double[rows]};
+        for (int i = 0; i < rows; i++) {
+            columns[0][i] = random.nextDouble() * 1000;
+            columns[1][i] = random.nextInt(100);
+        }
+        double[] column = new double[rows];
+        byte[] flags = new byte[rows];
+        double[] pair = new double[2];
+        bench.add("column 1M row-by-row", rows, () -> {
+            for (int i = 0; i < rows; i++) {
+                pair[0] = columns[0][i];
+                pair[1] = columns[1][i];
+                try {
+                    column[i] = formula.evaluate(workspace, pair);
+                } catch (ArithmeticException e) {
+                    column[i] = Double.NaN;
+                }
+            }
+            return (long) column[rows - 1];
+        });
+        bench.add("column 1M block-wise", rows, () -> {
+            ColumnEvaluator.evaluate(formula, columns, column, flags);
+            return (long) column[rows - 1];
+        });
+        bench.add("column 1M parallel", rows, () -> {
+            ColumnEvaluator.evaluateParallel(formula, columns, column, flags);
+            return (long) column[rows - 1];
+        });
+
+        // Scientific functions, strict tier against fast tier, over typical arguments
+        String[] scientific = {"sin", "cos", "tan", "ln", "log", "exp", "sinh", "cosh", "tanh", "gamma"};
+        double[] arguments = new double[1024];
+        for (int i = 0; i < arguments.length; i++) arguments[i] = 0.01 + random.nextDouble() * 20;
+        for (int f = 0; f < scientific.length; f++) {
+            int function = f;
+            bench.add("scientific " + scientific[f] + " strict", arguments.length, () -> {
+                double n = 0;
+                for (double v : arguments) n += ScientificFunctions.strict(function, v);
+                return (long) n;
+            });
+            bench.add("scientific " + scientific[f] + " fast", arguments.length, () -> {
+                double n = 0;
+                for (double v : arguments) n += ScientificFunctions.fast(function, v);
+                return (long) n;
+            });
+        }
+        bench.add("scientific pow strict", arguments.length, () -> {
+            double n = 0;
+            for (double v : arguments) n += ScientificFunctions.strictPow(v, 2.5);
+            return (long) n;
+        });
+        bench.add("scientific pow fast", arguments.length, () -> {
+            double n = 0;
+            for (double v : arguments) n += ScientificFunctions.fastPow(v, 2.5);
+            return (long) n;
+        });
+        CompiledExpression wave = Evaluator.compile("sin x * exp(-x / 10) + ln(1 + x ^ 2)");
+        bench.add("column 1M wave strict", rows, () -> {
+            ColumnEvaluator.evaluate(wave, columns, column, flags);
+            return (long) column[rows - 1];
+        });
+        bench.add("column 1M wave fast", rows, () -> {
+            ColumnEvaluator.evaluate(wave.fast(), columns, column, flags);
+            return (long) column[rows - 1];
+        });
+
+        // The formula corpus with and without the Optimizer pass
+        Path corpus = Path.of("bench/formulas.txt");
+        if (Files.exists(corpus)) {
+            List<String> lines = Files.readAllLines(corpus);
+            lines.removeIf(line -> line.isBlank() || line.startsWith("#"));
+            String[] formulas = lines.toArray(new String[0]);
+            CompiledExpression[] parsed = new CompiledExpression[formulas.length];
+            CompiledExpression[] optimized = new CompiledExpression[formulas.length];
+            for (int i = 0; i < formulas.length; i++) {
+                parsed[i] = Evaluator.compile(formulas[i], false);
+                optimized[i] = Evaluator.compile(formulas[i]);
+            }
+            double[] point = {12.5, 3};
+            bench.add("corpus evaluate parsed", formulas.length, () -> {
+                double n = 0;
+                for (CompiledExpression compiled : parsed) n += compiled.evaluate(workspace, point);
+                return (long) n;
+            });
+            bench.add("corpus evaluate optimized", formulas.length, () -> {
+                double n = 0;
+                for (CompiledExpression compiled : optimized) n += compiled.evaluate(workspace, point);
+                return (long) n;
+            });
+            bench.add("corpus compile parsed", formulas.length, () -> {
+                long n = 0;
+                for (String text : formulas) n += Evaluator.compile(text, false).ops.length;
+                return n;
+            });
+            bench.add("corpus compile optimized", formulas.length, () -> {
+                long n = 0;
+                for (String text : formulas) n += Evaluator.compile(text).ops.length;
+                return n;
+            });
+        }
+
+        // Sampling a plot 800 pixels wide, as on every step of a pan or zoom
+        PlotSampler sampler = new PlotSampler();
+        String[] plots = {"sin x * exp(-x / 10)", "tan x", "sin(1 / x)"};
+        for (String plot : plots) {
+            CompiledExpression f = Evaluator.compile(plot).fast();
+            bench.add("plot sample " + plot, 1, () -> sampler.sample(f, -10, 10, -6, 6, 800, 480));
+        }
+
+        // Numeric solving of one problem each, and a batch of a thousand through the
+        // --solve format
+        CompiledExpression fixedPoint = Evaluator.compile("cos x - x");
+        CompiledExpression damped = Evaluator.compile("exp(-x) * sin(20 * x)");
+        CompiledExpression tilted = Evaluator.compile("sin x + x / 10");
+        CompiledExpression sine = Evaluator.compile("sin x");
+        bench.add("solve root", 1, () -> Double.doubleToRawLongBits(NumericSolver.root(fixedPoint, 0, 1)));
+        bench.add("solve newton", 1, () -> Double.doubleToRawLongBits(NumericSolver.newton(fixedPoint, 1)));
+        bench.add("solve roots sin [-50, 50]", 1, () -> NumericSolver.roots(sine, -50, 50).length);
+        bench.add("solve integrate kronrod", 1, () -> Double.doubleToRawLongBits(NumericSolver.integrate(damped, 0, 10)));
+        bench.add("solve integrate simpson", 1, () -> Double.doubleToRawLongBits(NumericSolver.simpson(damped, 0, 10)));
+        bench.add("solve minimize", 1, () -> Double.doubleToRawLongBits(NumericSolver.minimize(tilted, -10, 10)));
+        List<String> problems = new ArrayList<>();
+        String[] methods = {"root 0 2", "integrate 0 3", "minimize -3 3", "roots -3 3"};
+        for (int i = 0; i < 1000; i++) {
+            problems.add(methods[i % methods.length] + " cos(x * " + (1 + i % 10) / 10.0 + ") - x / " + (1 + i % 7));
+        }
+        bench.add("solve batch 1000", problems.size(), () -> NumericSolver.solve(problems).length);
+
+        // Programmer mode: a bitmask expression on 64 and 128-bit words, the same on
+        // doubles for comparison, and a 1000-line --batch --word chunk
+        LongStack integers = new LongStack();
+        String bitmask = "(x & 0xFFFF_0000) >> 16 | (x rol 8) ^ ~y";
+        IntegerExpression mask64 = IntegerEvaluator.compile(bitmask, IntegerExpression.Word.UINT64);
+        IntegerExpression mask128 = IntegerEvaluator.compile(bitmask, IntegerExpression.Word.UINT128);
+        IntegerExpression wideDivide = IntegerEvaluator.compile("x * y / 0x1_0000_0001 % 97", IntegerExpression.Word.INT128);
+        long[] registers = {0x1234_5678_9ABC_DEF0L, 0x0F0F};
+        long[] wideRegisters = {0x0FED_CBA9L, 0x1234_5678_9ABC_DEF0L, 0, 0x0F0F};
+        long[] wideResult = new long[2];
+        bench.add("programmer bitmask u64", 1, () -> mask64.evaluate(integers, registers));
+        bench.add("programmer bitmask u128", 1, () -> {
+            mask128.evaluate(integers, wideRegisters, wideResult);
+            return wideResult[1];
+        });
+        bench.add("programmer multiply divide i128", 1, () -> {
+            wideDivide.evaluate(integers, wideRegisters, wideResult);
+            return wideResult[1];
+        });
+        StringBuilder masks = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            masks.append("(0x").append(Long.toHexString(random.nextLong())).append(" & ~(1 << ").append(i % 64)
+                .append(")) | 0b").append(Integer.toBinaryString(i)).append(" rol ").append(i % 13).append('\n');
+        }
+        byte[] maskLines = masks.toString().getBytes(StandardCharsets.UTF_8);
+        BatchEvaluator maskBatch = new BatchEvaluator(1, false, IntegerExpression.Word.UINT64, 16);
+        ByteArrayOutputStream maskOut = new ByteArrayOutputStream();
+        bench.add("programmer batch 1000 lines", 1000, () -> {
+            maskOut.reset();
+            try {
+                maskBatch.run(new ByteArrayInputStream(maskLines), maskOut);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return maskOut.size();
+        });
+
+        // Instrumentation: recording one latency, and a timed stage as the hot paths use
+        // it, which is free unless the run has -Dcalculator.metrics=true
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] latency = {0};
+        bench.add("metrics histogram record", 1, () -> {
+            histogram.record(latency[0] = (latency[0] * 31 + 17) & 0xFFFFF);
+            return latency[0];
+        });
+        bench.add("metrics stage stop", 1, () -> {
+            long started = Metrics.start();
+            Metrics.EVALUATE.stop(started);
+            return started;
+        });
+
+        // What-if model of 50,000 cells: 1000 rows of one input and 49 formulas, each
+        // reading the previous column and a shared growth rate
+        Sheet sheet = new Sheet();
+        sheet.set("rate", 1.02);
+        for (int r = 0; r < 1000; r++) {
+            sheet.set("r" + r + "c0", random.nextInt(1000));
+            for (int c = 1; c < 50; c++) {
+                sheet.define("r" + r + "c" + c, "r" + r + "c" + (c - 1) + " * rate + " + (c % 7));
+            }
+        }
+        sheet.recalculate();
+        long[] edits = {0};
+        bench.add("sheet 50k edit one input", 1, () -> {
+            sheet.set("r500c0", edits[0]++);
+            return sheet.recalculate();
+        });
+        bench.add("sheet 50k edit shared rate", 1, () -> {
+            sheet.set("rate", 1 + (edits[0]++ % 100) / 1000.0);
+            return sheet.recalculate();
+        });
+
+        // Formatting a result for the display
+        double[] samples = new double[1024];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = i % 2 == 0 ? random.nextInt(10_000_000) : random.nextDouble() * 1000 / (1 + random.nextInt(97));
+        }
+        DecimalFormat formatter = new DecimalFormat("#,##0.##########");
+        bench.add("format DecimalFormat", samples.length, () -> {
+            long n = 0;
+            for (double v : samples) n += formatter.format(v).length();
+            return n;
+        });
+        StringBuilder out = new StringBuilder(32);
+        bench.add("format NumberCodec", samples.length, () -> {
+            long n = 0;
+            for (double v : samples) {
+                out.setLength(0);
+                n += NumberCodec.formatGrouped(v, out).length();
+            }
+            return n;
+        });
+        long[] words = new long[samples.length];
+        for (int i = 0; i < words.length; i++) words[i] = random.nextLong() >>> random.nextInt(64);
+        int[] radixes = {16, 10, 2};
+        for (int radix : radixes) {
+            bench.add("format RadixFormat " + radix, words.length, () -> {
+                long n = 0;
+                for (long v : words) {
+                    out.setLength(0);
+                    n += RadixFormat.formatGrouped(0, v, IntegerExpression.Word.UINT64, radix, out).length();
+                }
+                return n;
+            });
+        }
+        bench.add("format RadixFormat 10 i128", words.length, () -> {
+            long n = 0;
+            for (long v : words) {
+                out.setLength(0);
+                n += RadixFormat.formatGrouped(v, ~v, IntegerExpression.Word.INT128, 10, out).length();
+            }
+            return n;
+        });
+        bench.add("parse NumberCodec", samples.length, () -> {
+            double n = 0;
+            for (double v : samples) {
+                out.setLength(0);
+                n += NumberCodec.parse(NumberCodec.format(v, out));
+            }
+            return (long) n;
+        });
+
+        // History update after "=", as Calculator.addToHistory does it: ring buffer
+        // append plus an incremental edit of the recent-lines text area
+        HistoryBuffer history = new HistoryBuffer(100_000);
+        JTextArea area = new JTextArea(5, 30);
+        bench.add("history add+render", 1, () -> {
+            String entry = "12 + 34 * 5 = 182";
+            history.add(entry);
+            Document document = area.getDocument();
+            try {
+                document.insertString(document.getLength(), entry + "\n", null);
+                while (document.getDefaultRootElement().getElementCount() > 6) {
+                    document.remove(0, document.getDefaultRootElement().getElement(0).getEndOffset());
+                }
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+            return document.getLength();
+        });
+        StringBuilder row = new StringBuilder();
+        bench.add("history page 1M", 20, () -> {
+            // One screenful of rows somewhere in a full buffer
+            long n = 0;
+            int from = (int) (history.totalAdded() * 7919 % Math.max(1, history.size() - 20));
+            for (int i = from; i < from + 20 && i < history.size(); i++) {
+                row.setLength(0);
+                n += history.appendTo(i, row).length();
+            }
+            return n;
+        });
+
+        // Session save and restore with a full 100k-entry history: the copy taken on
+        // the EDT, the encoding done by the saver thread, and the read at startup
+        SessionSnapshot session = new SessionSnapshot();
+        session.history = new HistoryBuffer(100_000);
+        for (int i = 0; i < 100_000; i++) {
+            session.history.add(i + " * 1.5 + 12 = " + NumberCodec.format(i * 1.5 + 12));
+        }
+        session.memory.defaultRegister().add(42);
+        byte[] saved = session.encode().array();
+        bench.add("session capture 100k", 1, () -> session.history.copy().size());
+        bench.add("session encode 100k", 1, () -> session.encode().remaining());
+        bench.add("session read 100k", 1, () -> {
+            try {
+                return SessionSnapshot.read(Channels.newChannel(new ByteArrayInputStream(saved)), saved.length, 100_000).history.size();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        bench.run();
+    }
+}
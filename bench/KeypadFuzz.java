@@ -0,0 +1,494 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import javax.swing.SwingUtilities;
+
+// Differential fuzzing of the keypad. Random keystroke sequences are pressed
+// through the calculator's own key handling, headless, and the display
+// after every "=" is compared with what a reference evaluator makes of the same
+// keys. The sequences cover what the state machine has to get right: nested
+// parentheses (closed or left for "=" to close), %, xʸ, the function keys √, x²
+// and 1/x before a number or after a number or a group, ± and ⌫ on the number
+// being typed, an operator replacing the one before it, keys that must do nothing
+// (⌫ after an operator, ")" with nothing open, an operator straight after "("),
+// and chains that go on from the previous result, whose text is grouped.
+//
+// The reference reads the keys the way the keypad documents them: every number,
+// result and group is one operand, whatever its sign; + - * / % ^ have the
+// Evaluator's precedence ("a % b" is a * b / 100); a function key before an
+// operand applies to all of it, after one to just that operand. Results agree
+// when the display reads back within 1e-9 of the largest magnitude involved, or
+// both say "Not applicable". The first disagreement is printed as a replay line
+// and the run exits with status 1.
+//
+// Every sequence is then played again as one KeyMacro, which the calculator
+// handles in batches with the display set once per batch, and has to end on the
+// same display; the macro throughput is printed.
+//
+// Each key's handling time on the EDT is recorded by kind, and "=" from the key
+// press to the result on the display. The 99th percentiles are compared with a
+// frame (16 ms) and, like Bench, can be written to a report and compared with a
+// baseline one; a slower run exits with status 2.
+//
+//   javac -encoding UTF-8 -d out *.java bench/*.java
+//   java -cp out KeypadFuzz [--sequences N] [--seed S] [--report FILE]
+//       [--baseline FILE] [--threshold PCT] [--budget MS]
+//   java -cp out KeypadFuzz --replay bench/keypad.txt
+//
+// A replay file has one sequence per line: keys as labeled on the keypad,
+// separated by spaces, and optionally "=>" and the display expected at the end.
+// Lines without an expectation print the display. Blank lines and lines starting
+// with # are skipped. Each line is pressed key by key and then played as a macro.
+public class KeypadFuzz {
+    private static final String[] KINDS = {"digit", "operator", "function", "parenthesis", "edit", "equals"};
+    private static final String[] FUNCTIONS = {"√", "x²", "1/x"};
+    private static final char[] OPERATORS = {'+', '-', '*', '/', '%', '^'};
+
+    private final Random random;
+    private final Calculator calculator;
+    private final Map<String, LatencyHistogram> latency = new LinkedHashMap<>();
+    // Keys of the current sequence, from its "C"
+    private final List<String> keys = new ArrayList<>();
+    // Parentheses the generated keys have left open
+    private int open;
+    // Largest magnitude met while computing the reference result
+    private double scale;
+    private long checked;
+    private long macroKeys;
+    private long macroNanos;
+
+    // A reference value; computing it throws ArithmeticException where the
+    // calculator says "Not applicable"
+    private interface Value {
+        double get();
+    }
+
+    private KeypadFuzz(long seed) throws Exception {
+        random = new Random(seed);
+        for (String kind : KINDS) latency.put(kind, new LatencyHistogram());
+        Calculator[] built = new Calculator[1];
+        SwingUtilities.invokeAndWait(() -> built[0] = new Calculator());
+        calculator = built[0];
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        int sequences = 2000;
+        long seed = 23;
+        double budget = 16;
+        double threshold = 25;
+        Path replay = null;
+        Path report = null;
+        Path baseline = null;
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--sequences": sequences = Integer.parseInt(value); i++; break;
+                case "--seed": seed = Long.parseLong(value); i++; break;
+                case "--budget": budget = Double.parseDouble(value); i++; break;
+                case "--threshold": threshold = Double.parseDouble(value); i++; break;
+                case "--replay": replay = Paths.get(value); i++; break;
+                case "--report": report = Paths.get(value); i++; break;
+                case "--baseline": baseline = Paths.get(value); i++; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        KeypadFuzz fuzz = new KeypadFuzz(seed);
+        if (replay != null) {
+            System.exit(fuzz.replay(replay) ? 0 : 1);
+        }
+        for (int i = 0; i < sequences; i++) {
+            fuzz.sequence();
+        }
+        System.out.printf("OK     %d sequences, %d results match the reference%n", sequences, fuzz.checked);
+        fuzz.printMacroRate();
+        System.exit(fuzz.checkLatency(budget, report, baseline, threshold));
+    }
+
+    // Up to three calculations in a row, each going on from the last result or
+    // starting afresh
+    private void sequence() {
+        keys.clear();
+        open = 0;
+        press("C");
+        Double previous = null;
+        int calculations = 1 + random.nextInt(3);
+        for (int calculation = 0; calculation < calculations; calculation++) {
+            scale = 0;
+            Value value;
+            if (previous != null && random.nextBoolean()) {
+                double last = previous;
+                value = chain(2, true, () -> track(last));
+            } else {
+                value = chain(2, true, null);
+            }
+            open = 0;
+            press("=");
+            String expected;
+            double result = 0;
+            try {
+                result = value.get();
+                expected = NumberCodec.formatGrouped(result);
+            } catch (ArithmeticException e) {
+                expected = "Not applicable";
+            }
+            String actual = display();
+            if (!agrees(expected, result, actual)) fail(expected, actual);
+            checked++;
+            if (expected.equals("Not applicable")) break;
+            previous = result;
+        }
+        String pressed = display();
+        String played = playBack();
+        if (!pressed.equals(played)) {
+            System.out.printf("MISMATCH as a macro: pressed %s, played %s%n", pressed, played);
+            System.out.println("  replay: " + String.join(" ", keys.subList(1, keys.size())) + " => " + pressed);
+            System.exit(1);
+        }
+    }
+
+    // Operands joined by binary operators; first, when given, is the previous
+    // result, which the operator typed first goes on from
+    private Value chain(int depth, boolean tail, Value first) {
+        int count = (first != null ? 2 : 1) + random.nextInt(depth > 0 ? 3 : 2);
+        char[] operators = new char[count - 1];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = OPERATORS[random.nextInt(OPERATORS.length)];
+        }
+        List<Value> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) operator(operators[i - 1]);
+            boolean last = i == count - 1;
+            if (i == 0 && first != null) {
+                values.add(first);
+            } else if (i > 0 && operators[i - 1] == '^') {
+                // Small exponents keep the results finite
+                values.add(number(random.nextInt(4) + (random.nextInt(4) == 0 ? ".5" : ""), false));
+            } else {
+                values.add(operand(depth, tail && last, !last && operators[i] == '^'));
+            }
+            if (open == 0 && random.nextInt(16) == 0) {
+                // Nothing to close: ignored
+                press(")");
+            }
+        }
+        return () -> reduce(values, operators);
+    }
+
+    // Typed as the operator, sometimes after another one it replaces, and
+    // sometimes followed by a ⌫ that must not do anything
+    private void operator(char operator) {
+        if (random.nextInt(8) == 0) press(operatorKey(OPERATORS[random.nextInt(OPERATORS.length)]));
+        press(operatorKey(operator));
+        if (random.nextInt(10) == 0) press("⌫");
+    }
+
+    private static String operatorKey(char operator) {
+        return operator == '^' ? "xʸ" : String.valueOf(operator);
+    }
+
+    // A number or a group, with function keys before or after it. A function key
+    // before an operand would also take in a following power, so it is only used
+    // when none follows.
+    private Value operand(int depth, boolean tail, boolean beforePower) {
+        String prefix = !beforePower && random.nextInt(6) == 0 ? FUNCTIONS[random.nextInt(FUNCTIONS.length)] : null;
+        if (prefix != null) press(prefix);
+        Value value;
+        boolean closed = true;
+        if (depth > 0 && random.nextInt(4) == 0) {
+            press("(");
+            open++;
+            if (random.nextInt(10) == 0) {
+                // An operator with no operand before it: ignored
+                press(operatorKey(OPERATORS[random.nextInt(OPERATORS.length)]));
+            }
+            // The last group before "=" may be left for "=" to close
+            closed = !tail || random.nextInt(3) != 0;
+            value = chain(depth - 1, !closed, null);
+            if (closed) {
+                press(")");
+                open--;
+            }
+        } else {
+            value = literal();
+        }
+        for (int i = 0; closed && i < 2 && random.nextInt(5) == 0; i++) {
+            String postfix = FUNCTIONS[random.nextInt(FUNCTIONS.length)];
+            press(postfix);
+            value = new Function(postfix, value);
+        }
+        return prefix != null ? new Function(prefix, value) : value;
+    }
+
+    // A number typed digit by digit, with the slips ⌫ and ± are for
+    private Value literal() {
+        String text;
+        switch (random.nextInt(6)) {
+            case 0: text = "0"; break;
+            case 1: text = random.nextInt(10) + "." + random.nextInt(1000); break;
+            case 2: text = "." + (1 + random.nextInt(99)); break;
+            case 3: text = Integer.toString(1000 + random.nextInt(9_000_000)); break;
+            default: text = Integer.toString(1 + random.nextInt(999)); break;
+        }
+        if (random.nextInt(20) == 0) {
+            // A digit typed and taken back leaves 0
+            press(String.valueOf((char) ('1' + random.nextInt(9))));
+            press("⌫");
+            if (random.nextBoolean()) return number("0", false);
+        }
+        return number(text, true);
+    }
+
+    private Value number(String text, boolean slips) {
+        for (int i = 0; i < text.length(); i++) {
+            press(String.valueOf(text.charAt(i)));
+            if (slips && random.nextInt(25) == 0) {
+                press(String.valueOf((char) ('0' + random.nextInt(10))));
+                press("⌫");
+            }
+        }
+        double value = Double.parseDouble(text.startsWith(".") ? "0" + text : text);
+        if (slips && value != 0 && random.nextInt(6) == 0) {
+            int toggles = 1 + random.nextInt(2);
+            for (int i = 0; i < toggles; i++) press("±");
+            if (toggles == 1) value = -value;
+        }
+        double operand = value;
+        return () -> track(operand);
+    }
+
+    private final class Function implements Value {
+        final String key;
+        final Value operand;
+
+        Function(String key, Value operand) {
+            this.key = key;
+            this.operand = operand;
+        }
+
+        @Override
+        public double get() {
+            double x = operand.get();
+            switch (key) {
+                case "√":
+                    if (x < 0) throw new ArithmeticException("Invalid square root");
+                    return track(Math.sqrt(x));
+                case "x²":
+                    return track(x * x);
+                default:
+                    if (x == 0) throw new ArithmeticException("Division by zero");
+                    return track(1 / x);
+            }
+        }
+    }
+
+    // Precedence climbing over the operands: + - below * / % below a
+    // right-associative ^
+    private double reduce(List<Value> values, char[] operators) {
+        int[] next = {0};
+        double sum = product(values, operators, next);
+        while (next[0] - 1 < operators.length && (operators[next[0] - 1] == '+' || operators[next[0] - 1] == '-')) {
+            char operator = operators[next[0] - 1];
+            double b = product(values, operators, next);
+            sum = track(operator == '+' ? sum + b : sum - b);
+        }
+        return sum;
+    }
+
+    private double product(List<Value> values, char[] operators, int[] next) {
+        double product = power(values, operators, next);
+        while (next[0] - 1 < operators.length && "*/%".indexOf(operators[next[0] - 1]) >= 0) {
+            char operator = operators[next[0] - 1];
+            double b = power(values, operators, next);
+            if (operator == '*') {
+                product = track(product * b);
+            } else if (operator == '%') {
+                product = track(product * (b / 100));
+            } else {
+                if (b == 0) throw new ArithmeticException("Division by zero");
+                product = track(product / b);
+            }
+        }
+        return product;
+    }
+
+    private double power(List<Value> values, char[] operators, int[] next) {
+        double base = values.get(next[0]++).get();
+        if (next[0] - 1 < operators.length && operators[next[0] - 1] == '^') {
+            double exponent = power(values, operators, next);
+            double r = Math.pow(base, exponent);
+            if (Double.isNaN(r)) throw new ArithmeticException("Invalid power");
+            return track(r);
+        }
+        return base;
+    }
+
+    private double track(double value) {
+        if (Double.isFinite(value)) scale = Math.max(scale, Math.abs(value));
+        return value;
+    }
+
+    private boolean agrees(String expected, double result, String actual) {
+        if (expected.equals(actual)) return true;
+        if (!Double.isFinite(result) || expected.equals("Not applicable")) return false;
+        try {
+            double shown = NumberCodec.parse(actual);
+            return Math.abs(shown - result) <= 1e-9 * Math.max(scale, Math.abs(result));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private void fail(String expected, String actual) {
+        System.out.printf("MISMATCH expected %s, displayed %s%n", expected, actual);
+        System.out.println("  replay: " + String.join(" ", keys) + " => " + expected);
+        System.exit(1);
+    }
+
+    // Presses the key on the EDT, waits until what it started has reached the
+    // display, and records how long it took
+    private void press(String key) {
+        keys.add(key);
+        String kind = kind(key);
+        long[] handled = new long[1];
+        boolean[] settled = new boolean[1];
+        long started = System.nanoTime();
+        onEdt(() -> {
+            long begin = System.nanoTime();
+            calculator.press(key);
+            handled[0] = System.nanoTime() - begin;
+            settled[0] = calculator.settled();
+        });
+        while (!settled[0]) {
+            Thread.onSpinWait();
+            onEdt(() -> settled[0] = calculator.settled());
+        }
+        latency.get(kind).record(kind.equals("equals") ? System.nanoTime() - started : handled[0]);
+    }
+
+    // Plays the keys of the current sequence as one macro, waits until it has been
+    // handled, and returns the display
+    private String playBack() {
+        KeyMacro macro = new KeyMacro();
+        for (String key : keys) macro.add(key);
+        long started = System.nanoTime();
+        onEdt(() -> calculator.play(macro));
+        boolean[] settled = new boolean[1];
+        while (!settled[0]) {
+            Thread.onSpinWait();
+            onEdt(() -> settled[0] = calculator.settled());
+        }
+        macroNanos += System.nanoTime() - started;
+        macroKeys += macro.size();
+        return display();
+    }
+
+    private void printMacroRate() {
+        System.out.printf(Locale.ROOT, "Macros %d keys in %.1f ms, %.0f keys/ms%n",
+            macroKeys, macroNanos / 1e6, macroKeys / Math.max(macroNanos / 1e6, 1e-3));
+    }
+
+    private String display() {
+        String[] text = new String[1];
+        onEdt(() -> text[0] = calculator.displayText());
+        return text[0];
+    }
+
+    private static void onEdt(Runnable task) {
+        try {
+            SwingUtilities.invokeAndWait(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static String kind(String key) {
+        if (key.equals("=")) return "equals";
+        if (key.equals("(") || key.equals(")")) return "parenthesis";
+        if (key.equals("⌫") || key.equals("±") || key.equals("C")) return "edit";
+        if (key.length() == 1 && (Character.isDigit(key.charAt(0)) || key.equals("."))) return "digit";
+        for (String function : FUNCTIONS) {
+            if (function.equals(key)) return "function";
+        }
+        return "operator";
+    }
+
+    private boolean replay(Path file) throws IOException {
+        boolean ok = true;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int arrow = line.indexOf("=>");
+            String sequence = arrow >= 0 ? line.substring(0, arrow).trim() : line;
+            String expected = arrow >= 0 ? line.substring(arrow + 2).trim() : null;
+            keys.clear();
+            press("C");
+            for (String key : sequence.split("\\s+")) press(key);
+            String actual = display();
+            String played = playBack();
+            if (expected == null) {
+                System.out.println(sequence + " => " + actual);
+            } else if (!expected.equals(actual)) {
+                System.out.printf("MISMATCH %s%n  expected %s, displayed %s%n", sequence, expected, actual);
+                ok = false;
+            }
+            if (!played.equals(actual)) {
+                System.out.printf("MISMATCH %s%n  pressed %s, played as a macro %s%n", sequence, actual, played);
+                ok = false;
+            }
+        }
+        if (ok) System.out.println("OK     " + file);
+        printMacroRate();
+        return ok;
+    }
+
+    // 0 when every kind of key stays within the budget and the baseline, 2 otherwise
+    private int checkLatency(double budgetMillis, Path report, Path baseline, double threshold) throws IOException {
+        Map<String, Double> previous = baseline != null ? Bench.read(baseline) : Map.of();
+        List<String> lines = new ArrayList<>();
+        int failures = 0;
+        System.out.printf(Locale.ROOT, "%-28s %8s %12s %12s %12s %10s%n", "Keys", "count", "p50 ns", "p99 ns", "max ns", "vs base");
+        for (Map.Entry<String, LatencyHistogram> entry : latency.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.count() == 0) continue;
+            String name = "keypad " + entry.getKey() + " p99";
+            long p99 = histogram.percentile(0.99);
+            String change = "";
+            Double before = previous.get(name);
+            if (before != null) {
+                double percent = (p99 - before) / before * 100;
+                change = String.format(Locale.ROOT, "%+.1f%%", percent);
+                if (percent > threshold) {
+                    change += " REGRESSION";
+                    failures++;
+                }
+            }
+            if (p99 > budgetMillis * 1_000_000) {
+                change += " OVER BUDGET";
+                failures++;
+            }
+            System.out.printf(Locale.ROOT, "%-28s %8d %12d %12d %12d %10s%n", name, histogram.count(),
+                histogram.percentile(0.5), p99, histogram.max(), change);
+            lines.add(String.format(Locale.ROOT, "%s\t%d\t0", name, p99));
+        }
+        if (report != null) Files.write(report, lines, StandardCharsets.UTF_8);
+        if (failures > 0) {
+            System.out.println(failures + " kind(s) of key slower than " + budgetMillis
+                + " ms at the 99th percentile or than the baseline by more than " + threshold + "%");
+            return 2;
+        }
+        return 0;
+    }
+}
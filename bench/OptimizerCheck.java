@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Verifies that optimized programs give bit-for-bit the results of the parsed ones,
+// and the same errors, over the formula corpus and over random expressions built
+// to hit every rewrite. Also prints how much shorter the corpus programs got.
+// Exits with status 1 on the first mismatch.
+//
+//   javac -encoding UTF-8 -d out *.java bench/*.java && java -cp out OptimizerCheck [corpus] [expressions]
+public class OptimizerCheck {
+    private static final String[] CONSTANTS = {"0", "1", "2", "4", "0.5", "100", "0.1", "3", "1e308", "0.25"};
+    private static final String[] FUNCTIONS = {"sqrt", "sqr", "recip", "sin", "ln", "exp", "tanh"};
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "%", "^"};
+
+    private static final Random random = new Random(17);
+    private static final DoubleStack workspace = new DoubleStack();
+
+    public static void main(String[] args) throws IOException {
+        Path corpus = Path.of(args.length > 0 ? args[0] : "bench/formulas.txt");
+        int expressions = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        double[][] inputs = inputs(2000);
+
+        List<String> formulas = new ArrayList<>();
+        for (String line : Files.readAllLines(corpus)) {
+            if (!line.isBlank() && !line.startsWith("#")) formulas.add(line);
+        }
+        int before = 0;
+        int after = 0;
+        for (String text : formulas) {
+            CompiledExpression parsed = Evaluator.compile(text, false);
+            CompiledExpression optimized = Evaluator.compile(text);
+            before += parsed.ops.length;
+            after += optimized.ops.length;
+            check(text, parsed, optimized, inputs);
+        }
+        System.out.printf("corpus: %d formulas, %d instructions parsed, %d optimized (%.0f%%)%n",
+            formulas.size(), before, after, 100.0 * after / before);
+
+        double[][] few = inputs(50);
+        for (int i = 0; i < expressions; i++) {
+            String text = expression(4, new ArrayList<>());
+            check(text, Evaluator.compile(text, false), Evaluator.compile(text), few);
+        }
+        System.out.printf("random: %d expressions OK%n", expressions);
+    }
+
+    private static void check(String text, CompiledExpression parsed, CompiledExpression optimized, double[][] inputs) {
+        compare(text, parsed, optimized, inputs);
+        compare(text + " (fast)", parsed.fast(), optimized.fast(), inputs);
+        // Column evaluation of the optimized program, against the parsed one row by row
+        double[] out = new double[inputs[0].length];
+        byte[] flags = new byte[out.length];
+        ColumnEvaluator.evaluate(optimized, inputs, out, flags);
+        double[] row = new double[2];
+        for (int i = 0; i < out.length; i++) {
+            row[0] = inputs[0][i];
+            row[1] = inputs[1][i];
+            Object expected = result(parsed, row);
+            Object actual = flags[i] == ColumnEvaluator.OK ? (Object) out[i] : new ArithmeticException();
+            if (!same(expected, actual)) fail(text + " (column)", row, expected, actual);
+        }
+    }
+
+    private static void compare(String text, CompiledExpression parsed, CompiledExpression optimized, double[][] inputs) {
+        double[] row = new double[2];
+        for (int i = 0; i < inputs[0].length; i++) {
+            row[0] = inputs[0][i];
+            row[1] = inputs[1][i];
+            Object expected = result(parsed, row);
+            Object actual = result(optimized, row);
+            if (!same(expected, actual)) fail(text, row, expected, actual);
+        }
+    }
+
+    private static Object result(CompiledExpression compiled, double[] row) {
+        try {
+            return compiled.evaluate(workspace, row);
+        } catch (ArithmeticException e) {
+            return e;
+        }
+    }
+
+    private static boolean same(Object expected, Object actual) {
+        if (expected instanceof Double && actual instanceof Double) {
+            return Double.doubleToLongBits((Double) expected) == Double.doubleToLongBits((Double) actual);
+        }
+        return expected instanceof ArithmeticException && actual instanceof ArithmeticException;
+    }
+
+    private static void fail(String text, double[] row, Object expected, Object actual) {
+        System.out.printf("MISMATCH %s at x=%s y=%s: parsed %s, optimized %s%n", text, row[0], row[1], expected, actual);
+        System.exit(1);
+    }
+
+    // Mostly ordinary values, plus zeros, signed zeros and values near overflow
+    private static double[][] inputs(int n) {
+        double[] special = {0, -0.0, 1, -1, 1e300, -1e300, 1e-300, 100};
+        double[][] columns = new double[2][n];
+        for (double[] column : columns) {
+            for (int i = 0; i < n; i++) {
+                column[i] = i % 8 == 0 ? special[random.nextInt(special.length)] : (random.nextDouble() - 0.3) * 1000;
+            }
+        }
+        return columns;
+    }
+
+    // Random expression text; earlier subexpressions are reused to create common
+    // subexpressions, and the constants include the identity elements
+    private static String expression(int depth, List<String> seen) {
+        String text;
+        int kind = depth == 0 ? random.nextInt(2) : random.nextInt(7);
+        // Repeat a subexpression only once there is one to repeat
+        if (kind == 4 && seen.isEmpty()) kind = 5;
+        switch (kind) {
+            case 0:
+                text = random.nextBoolean() ? "x" : "y";
+                break;
+            case 1:
+                text = CONSTANTS[random.nextInt(CONSTANTS.length)];
+                break;
+            case 2:
+                text = FUNCTIONS[random.nextInt(FUNCTIONS.length)] + "(" + expression(depth - 1, seen) + ")";
+                break;
+            case 3:
+                text = "-(" + expression(depth - 1, seen) + ")";
+                break;
+            case 4:
+                text = seen.get(random.nextInt(seen.size()));
+                break;
+            default:
+                text = "(" + expression(depth - 1, seen) + ") " + OPERATORS[random.nextInt(OPERATORS.length)]
+                    + " (" + expression(depth - 1, seen) + ")";
+        }
+        seen.add(text);
+        return text;
+    }
+}
@@ -0,0 +1,212 @@
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.Random;
+
+// Verifies programmer mode against BigInteger: random integer expressions on every
+// word must give the same value (or the same kind of error) as a reference
+// evaluation that reduces to the word after each step, and every result must
+// format like BigInteger.toString and read back to itself in each radix. Then
+// checks that 64-bit evaluation and formatting allocate nothing once warmed up.
+// Exits with status 1 on the first mismatch.
+//
+//   javac -encoding UTF-8 -d out *.java bench/*.java && java -cp out ProgrammerCheck [expressions]
+public class ProgrammerCheck {
+    private static final String[] OPERATORS = {"+", "-", "*", "/", "%", "&", "|", "^", "<<", ">>", ">>>", "rol", "ror"};
+    private static final int[] RADIXES = {16, 10, 8, 2};
+
+    private static final Random random = new Random(21);
+
+    public static void main(String[] args) {
+        int expressions = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        LongStack workspace = new LongStack();
+        long[] result = new long[2];
+        for (IntegerExpression.Word word : IntegerExpression.Word.values()) {
+            for (int i = 0; i < expressions; i++) {
+                String text = expression(word, 4);
+                String expected;
+                try {
+                    expected = reference(word, text).toString();
+                } catch (ArithmeticException e) {
+                    expected = "Not applicable";
+                }
+                String actual;
+                try {
+                    IntegerEvaluator.compile(text, word).evaluate(workspace, new long[0], result);
+                    actual = RadixFormat.format(result[0], result[1], word, 10, new StringBuilder()).toString();
+                    checkFormats(word, result, new BigInteger(actual));
+                } catch (ArithmeticException e) {
+                    actual = "Not applicable";
+                }
+                if (!expected.equals(actual)) fail(word, text, expected, actual);
+            }
+            System.out.printf("%-5s %d expressions OK%n", word.label(), expressions);
+        }
+        checkAllocation();
+    }
+
+    // Every radix writes what BigInteger does for the word's bits, and reads back
+    private static void checkFormats(IntegerExpression.Word word, long[] result, BigInteger value) {
+        BigInteger bits = value.signum() < 0 ? value.add(BigInteger.ONE.shiftLeft(word.bits())) : value;
+        LongStack workspace = new LongStack();
+        long[] back = new long[2];
+        for (int radix : RADIXES) {
+            String text = RadixFormat.format(result[0], result[1], word, radix, new StringBuilder()).toString();
+            String expected = RadixFormat.prefix(radix) + (radix == 10 ? value : bits).toString(radix).toUpperCase();
+            if (!text.equals(expected)) fail(word, "format " + value + " radix " + radix, expected, text);
+            IntegerEvaluator.compile(text, word).evaluate(workspace, new long[0], back);
+            if (back[1] != result[1] || (word.wide() && back[0] != result[0])) {
+                fail(word, "parse " + text, value.toString(), RadixFormat.format(back[0], back[1], word, 10, new StringBuilder()).toString());
+            }
+        }
+    }
+
+    private static String expression(IntegerExpression.Word word, int depth) {
+        if (depth == 0 || random.nextInt(4) == 0) return literal(word);
+        int pick = random.nextInt(OPERATORS.length + 2);
+        if (pick == OPERATORS.length) return "-(" + expression(word, depth - 1) + ")";
+        if (pick == OPERATORS.length + 1) return "~(" + expression(word, depth - 1) + ")";
+        String operator = OPERATORS[pick];
+        // Shift counts are mostly in range, so the shifted values are interesting
+        String right = pick >= 8 && random.nextInt(8) != 0
+            ? Integer.toString(random.nextInt(word.bits() + 2))
+            : expression(word, depth - 1);
+        return "(" + expression(word, depth - 1) + ") " + operator + " (" + right + ")";
+    }
+
+    private static String literal(IntegerExpression.Word word) {
+        BigInteger value;
+        switch (random.nextInt(4)) {
+            case 0: value = BigInteger.valueOf(random.nextInt(10)); break;
+            case 1: value = BigInteger.ONE.shiftLeft(random.nextInt(word.bits())).subtract(BigInteger.valueOf(random.nextInt(3))); break;
+            default: value = new BigInteger(word.bits(), random); break;
+        }
+        value = value.max(BigInteger.ZERO);
+        int radix = RADIXES[random.nextInt(RADIXES.length)];
+        return RadixFormat.prefix(radix) + value.toString(radix);
+    }
+
+    // Recursive-descent reference over BigInteger, for the fully parenthesized
+    // expressions built above
+    private static BigInteger reference(IntegerExpression.Word word, String text) {
+        int[] pos = {0};
+        return reference(word, text, pos);
+    }
+
+    private static BigInteger reference(IntegerExpression.Word word, String text, int[] pos) {
+        BigInteger left = operand(word, text, pos);
+        skip(text, pos);
+        if (pos[0] >= text.length() || text.charAt(pos[0]) == ')') return left;
+        int end = text.indexOf(' ', pos[0]);
+        String operator = text.substring(pos[0], end);
+        pos[0] = end;
+        BigInteger right = operand(word, text, pos);
+        return apply(word, operator, left, right);
+    }
+
+    private static BigInteger operand(IntegerExpression.Word word, String text, int[] pos) {
+        skip(text, pos);
+        char c = text.charAt(pos[0]);
+        if (c == '-' || c == '~') {
+            pos[0]++;
+            BigInteger value = operand(word, text, pos);
+            return wrap(word, c == '-' ? value.negate() : value.not());
+        }
+        if (c == '(') {
+            pos[0]++;
+            BigInteger value = reference(word, text, pos);
+            pos[0]++;
+            return value;
+        }
+        int start = pos[0];
+        while (pos[0] < text.length() && Character.isLetterOrDigit(text.charAt(pos[0]))) pos[0]++;
+        String literal = text.substring(start, pos[0]);
+        int radix = literal.startsWith("0x") ? 16 : literal.startsWith("0o") ? 8 : literal.startsWith("0b") ? 2 : 10;
+        return wrap(word, new BigInteger(radix == 10 ? literal : literal.substring(2), radix));
+    }
+
+    private static BigInteger apply(IntegerExpression.Word word, String operator, BigInteger a, BigInteger b) {
+        int bits = word.bits();
+        switch (operator) {
+            case "+": return wrap(word, a.add(b));
+            case "-": return wrap(word, a.subtract(b));
+            case "*": return wrap(word, a.multiply(b));
+            case "/": return wrap(word, a.divide(nonZero(b)));
+            case "%": return wrap(word, a.remainder(nonZero(b)));
+            case "&": return wrap(word, a.and(b));
+            case "|": return wrap(word, a.or(b));
+            case "^": return wrap(word, a.xor(b));
+            case "rol":
+            case "ror": {
+                int n = unsigned(word, b).mod(BigInteger.valueOf(bits)).intValue();
+                if (operator.equals("ror")) n = (bits - n) % bits;
+                BigInteger u = unsigned(word, a);
+                return wrap(word, u.shiftLeft(n).or(u.shiftRight(bits - n)));
+            }
+            default: {
+                if (b.signum() < 0) throw new ArithmeticException("Negative shift count");
+                int n = b.min(BigInteger.valueOf(bits)).intValue();
+                if (operator.equals("<<")) return wrap(word, a.shiftLeft(n));
+                if (operator.equals(">>")) return wrap(word, a.shiftRight(n));
+                return wrap(word, unsigned(word, a).shiftRight(n));
+            }
+        }
+    }
+
+    private static BigInteger nonZero(BigInteger value) {
+        if (value.signum() == 0) throw new ArithmeticException("Division by zero");
+        return value;
+    }
+
+    // The bits of the value as an unsigned number
+    private static BigInteger unsigned(IntegerExpression.Word word, BigInteger value) {
+        return value.mod(BigInteger.ONE.shiftLeft(word.bits()));
+    }
+
+    private static BigInteger wrap(IntegerExpression.Word word, BigInteger value) {
+        BigInteger bits = unsigned(word, value);
+        if (word.signed() && bits.testBit(word.bits() - 1)) bits = bits.subtract(BigInteger.ONE.shiftLeft(word.bits()));
+        return bits;
+    }
+
+    private static void skip(String text, int[] pos) {
+        while (pos[0] < text.length() && text.charAt(pos[0]) == ' ') pos[0]++;
+    }
+
+    private static void checkAllocation() {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        IntegerExpression mask = IntegerEvaluator.compile("(x & 0xFFFF_0000) >> 16 | (x rol 8) ^ ~y", IntegerExpression.Word.INT64);
+        IntegerExpression wide = IntegerEvaluator.compile("x * y / 0x1_0000_0001 % 97", IntegerExpression.Word.UINT128);
+        LongStack workspace = new LongStack();
+        StringBuilder out = new StringBuilder(64);
+        long[] values = {0x1234_5678_9ABC_DEF0L, 42};
+        // High and low half of each variable
+        long[] wideValues = {1, 0x1234_5678_9ABC_DEF0L, 0, 42};
+        long[] result = new long[2];
+        long sink = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < 1_000_000; i++) {
+                values[1] = i;
+                wideValues[3] = i;
+                sink += mask.evaluate(workspace, values);
+                wide.evaluate(workspace, wideValues, result);
+                out.setLength(0);
+                RadixFormat.format(result[0], result[1], IntegerExpression.Word.UINT128, 10, out);
+                RadixFormat.format(sink, IntegerExpression.Word.INT64, 16, out);
+                sink += out.length();
+            }
+            long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+            if (pass == 1) {
+                boolean ok = allocated < 1024;
+                System.out.printf("%-6s %10d bytes over 1000000 evaluations and formats (%s)%n", ok ? "OK" : "FAIL", allocated, sink != 0);
+                if (!ok) System.exit(1);
+            }
+        }
+    }
+
+    private static void fail(IntegerExpression.Word word, String text, String expected, String actual) {
+        System.out.printf("MISMATCH %s: %s%n  expected %s%n  actual   %s%n", word.label(), text, expected, actual);
+        System.exit(1);
+    }
+}
@@ -0,0 +1,121 @@
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+// Measures the error of the fast tier of ScientificFunctions against StrictMath,
+// and of both tiers of gamma against exact values, and checks the bounds that are
+// documented in ScientificFunctions. Exits with status 1 if a bound is exceeded.
+// Each run draws new arguments unless a seed is given; the seed is printed so a
+// failing run can be repeated.
+//
+//   javac -encoding UTF-8 -d out *.java bench/*.java && java -cp out ScientificAccuracy [samples] [seed]
+public class ScientificAccuracy {
+    private static final MathContext CONTEXT = new MathContext(60);
+    private static final BigDecimal SQRT_PI = new BigDecimal("1.77245385090551602729816748334114518279754945612238712821380779");
+    private static final BigDecimal GAMMA_QUARTER = new BigDecimal("3.62560990822190831193068515586767200299516768288006");
+    private static final BigDecimal GAMMA_THREE_QUARTERS = new BigDecimal("1.22541670246517764512909830336289052685123924810807");
+
+    private static boolean failed;
+    private static Random random;
+
+    public static void main(String[] args) {
+        int samples = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        random = new Random(seed);
+        System.out.println(samples + " samples per range, seed " + seed);
+        System.out.printf("%-8s %-24s %10s %10s%n", "function", "range", "max ulp", "bound");
+        unary("exp", -700, 700, samples, ScientificFunctions::fastExp, StrictMath::exp, 3);
+        unary("exp", -745, -708, samples, ScientificFunctions::fastExp, StrictMath::exp, 2);
+        unary("ln", 1e-300, 1e300, samples, ScientificFunctions::fastLn, StrictMath::log, 3, true);
+        unary("ln", 0.5, 2, samples, ScientificFunctions::fastLn, StrictMath::log, 3);
+        unary("log", 1e-300, 1e300, samples, x -> ScientificFunctions.fast(ScientificFunctions.LOG, x), StrictMath::log10, 5, true);
+        unary("sin", -10, 10, samples, ScientificFunctions::fastSin, StrictMath::sin, 2);
+        unary("sin", -1e5, 1e5, samples, ScientificFunctions::fastSin, StrictMath::sin, 2);
+        unary("cos", -10, 10, samples, ScientificFunctions::fastCos, StrictMath::cos, 2);
+        unary("cos", -1e5, 1e5, samples, ScientificFunctions::fastCos, StrictMath::cos, 2);
+        unary("tan", -10, 10, samples, ScientificFunctions::fastTan, StrictMath::tan, 4);
+        unary("tan", -1e5, 1e5, samples, ScientificFunctions::fastTan, StrictMath::tan, 4);
+        unary("sinh", -1, 1, samples, ScientificFunctions::fastSinh, StrictMath::sinh, 3);
+        unary("sinh", -700, 700, samples, ScientificFunctions::fastSinh, StrictMath::sinh, 4);
+        unary("cosh", -700, 700, samples, ScientificFunctions::fastCosh, StrictMath::cosh, 3);
+        unary("tanh", -1, 1, samples, ScientificFunctions::fastTanh, StrictMath::tanh, 5);
+        unary("tanh", -30, 30, samples, ScientificFunctions::fastTanh, StrictMath::tanh, 5);
+        binary("pow", 0.1, 100, -64, 64, true, samples, ScientificFunctions::fastPow, StrictMath::pow, 2);
+        binary("pow", 0.5, 2, -20, 20, false, samples, ScientificFunctions::fastPow, StrictMath::pow, 3);
+        binary("pow", 1e-3, 1e3, -100, 100, false, samples, ScientificFunctions::fastPow, StrictMath::pow, 3);
+        gamma(samples);
+        if (failed) System.exit(1);
+    }
+
+    private static void unary(String name, double from, double to, int samples,
+            DoubleUnaryOperator fast, DoubleUnaryOperator strict, double bound) {
+        unary(name, from, to, samples, fast, strict, bound, false);
+    }
+
+    // Arguments are uniform in [from, to), or log-uniform when logarithmic is set
+    private static void unary(String name, double from, double to, int samples,
+            DoubleUnaryOperator fast, DoubleUnaryOperator strict, double bound, boolean logarithmic) {
+        double worst = 0;
+        for (int i = 0; i < samples; i++) {
+            double x = logarithmic
+                ? Math.exp(Math.log(from) + random.nextDouble() * (Math.log(to) - Math.log(from)))
+                : from + random.nextDouble() * (to - from);
+            worst = Math.max(worst, ulps(fast.applyAsDouble(x), strict.applyAsDouble(x)));
+        }
+        report(name, "[" + from + ", " + to + ")", worst, bound);
+    }
+
+    private static void binary(String name, double from, double to, double yFrom, double yTo, boolean integer,
+            int samples, DoubleBinaryOperator fast, DoubleBinaryOperator strict, double bound) {
+        double worst = 0;
+        for (int i = 0; i < samples; i++) {
+            double x = from + random.nextDouble() * (to - from);
+            double y = yFrom + random.nextDouble() * (yTo - yFrom);
+            if (integer) y = Math.rint(y);
+            worst = Math.max(worst, ulps(fast.applyAsDouble(x, y), strict.applyAsDouble(x, y)));
+        }
+        report(name, "x [" + from + ", " + to + ") y [" + yFrom + ", " + yTo + ")" + (integer ? " int" : ""), worst, bound);
+    }
+
+    // Exact references at x = n + k/4, built up from gamma(1/4), gamma(1/2) and
+    // gamma(3/4) by the recurrence gamma(x + 1) = x gamma(x)
+    private static void gamma(int samples) {
+        double worstFast = 0;
+        double worstStrict = 0;
+        BigDecimal[] bases = {null, GAMMA_QUARTER, SQRT_PI, GAMMA_THREE_QUARTERS};
+        for (int k = 1; k < 4; k++) {
+            BigDecimal value = bases[k];
+            BigDecimal x = BigDecimal.valueOf(k).divide(BigDecimal.valueOf(4));
+            while (x.doubleValue() < 171.6) {
+                double exact = value.doubleValue();
+                worstFast = Math.max(worstFast, ulps(ScientificFunctions.fastGamma(x.doubleValue()), exact));
+                worstStrict = Math.max(worstStrict, ulps(ScientificFunctions.strictGamma(x.doubleValue()), exact));
+                value = value.multiply(x, CONTEXT);
+                x = x.add(BigDecimal.ONE);
+            }
+        }
+        report("gamma", "n + k/4 fast", worstFast, 5);
+        report("gamma", "n + k/4 strict", worstStrict, 5);
+        // Random arguments, fast tier against the strict one
+        double worst = 0;
+        for (int i = 0; i < samples; i++) {
+            double x = random.nextDouble() * 171;
+            worst = Math.max(worst, ulps(ScientificFunctions.fastGamma(x), ScientificFunctions.strictGamma(x)));
+        }
+        report("gamma", "[0, 171) fast vs strict", worst, 12);
+    }
+
+    private static double ulps(double value, double reference) {
+        if (Double.doubleToLongBits(value) == Double.doubleToLongBits(reference)) return 0;
+        if (Double.isInfinite(reference) || Double.isNaN(reference) || Double.isNaN(value)) return Double.POSITIVE_INFINITY;
+        return Math.abs(value - reference) / Math.ulp(reference);
+    }
+
+    private static void report(String name, String range, double worst, double bound) {
+        boolean ok = worst <= bound;
+        failed |= !ok;
+        System.out.printf("%-8s %-24s %10.2f %10.0f %s%n", name, range, worst, bound, ok ? "" : "FAIL");
+    }
+}
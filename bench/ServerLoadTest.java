@@ -0,0 +1,172 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Load test for CalculatorServer: logs in many sessions at once, then has every
+// session post batches of expressions for a fixed time, each from its own virtual
+// thread, and reports throughput and latency. Every line of a batch is "ans + 1",
+// so at the end each session's result must equal the number of lines it sent;
+// any other value means sessions leaked into each other. Exits with status 1 then
+// or when a request fails.
+//
+// In-flight requests are capped by --connections (each one holds a socket on both
+// ends, and both ends live in this process unless --url points elsewhere).
+//
+//   java -cp out ServerLoadTest [--sessions 10000] [--connections 512]
+//       [--seconds 10] [--batch 16] [--url http://localhost:8080]
+public class ServerLoadTest {
+    // Latency buckets: bucket i holds requests of 2^i to 2^(i+1) microseconds
+    private static final int BUCKETS = 32;
+
+    public static void main(String[] args) throws Exception {
+        int sessions = 10_000;
+        int connections = 512;
+        int seconds = 10;
+        int batch = 16;
+        String url = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--sessions": sessions = Integer.parseInt(args[i + 1]); break;
+                case "--connections": connections = Integer.parseInt(args[i + 1]); break;
+                case "--seconds": seconds = Integer.parseInt(args[i + 1]); break;
+                case "--batch": batch = Integer.parseInt(args[i + 1]); break;
+                case "--url": url = args[i + 1]; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        CalculatorServer server = null;
+        if (url == null) {
+            server = new CalculatorServer(0, Paths.get("practice2"));
+            server.start();
+            url = "http://localhost:" + server.port();
+        }
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(threads).build();
+        Semaphore inFlight = new Semaphore(connections);
+        AtomicLong failures = new AtomicLong();
+
+        // Log in every session
+        String base = url;
+        String[] cookies = new String[sessions];
+        CountDownLatch loggedIn = new CountDownLatch(sessions);
+        long start = System.nanoTime();
+        for (int s = 0; s < sessions; s++) {
+            int session = s;
+            threads.submit(() -> {
+                HttpRequest login = HttpRequest.newBuilder(URI.create(base + "/login"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString("username=load" + session + "&password=secret" + session))
+                    .build();
+                try {
+                    inFlight.acquire();
+                    try {
+                        HttpResponse<Void> response = client.send(login, HttpResponse.BodyHandlers.discarding());
+                        String cookie = response.headers().firstValue("Set-Cookie").orElse(null);
+                        if (response.statusCode() != 204 || cookie == null) {
+                            failures.incrementAndGet();
+                        } else {
+                            cookies[session] = cookie.substring(0, cookie.indexOf(';'));
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    loggedIn.countDown();
+                }
+            });
+        }
+        loggedIn.await();
+        double loginSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("logins       %,d in %.2f s (%,.0f/s)%n", sessions, loginSeconds, sessions / loginSeconds);
+
+        // Every session evaluates batches until the deadline
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < batch; i++) body.append("ans + 1\n");
+        String text = body.toString();
+        AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+        long[] sent = new long[sessions];
+        ExecutorService load = Executors.newVirtualThreadPerTaskExecutor();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        start = System.nanoTime();
+        int lines = batch;
+        for (int s = 0; s < sessions; s++) {
+            int session = s;
+            if (cookies[session] == null) continue;
+            load.submit(() -> {
+                HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/evaluate"))
+                    .header("Cookie", cookies[session])
+                    .POST(HttpRequest.BodyPublishers.ofString(text))
+                    .build();
+                while (System.nanoTime() < deadline) {
+                    try {
+                        inFlight.acquire();
+                        long begin = System.nanoTime();
+                        HttpResponse<String> response;
+                        try {
+                            response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        } finally {
+                            inFlight.release();
+                        }
+                        long micros = Math.max(1, (System.nanoTime() - begin) / 1000);
+                        latencies.incrementAndGet(Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+                        if (response.statusCode() != 200) {
+                            failures.incrementAndGet();
+                            return;
+                        }
+                        sent[session] += lines;
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                        return;
+                    }
+                }
+            });
+        }
+        load.shutdown();
+        load.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+        double loadSeconds = (System.nanoTime() - start) / 1e9;
+        long requests = 0;
+        for (int i = 0; i < BUCKETS; i++) requests += latencies.get(i);
+        System.out.printf("requests     %,d in %.2f s (%,.0f/s)%n", requests, loadSeconds, requests / loadSeconds);
+        System.out.printf("expressions  %,d (%,.0f/s)%n", requests * batch, requests * batch / loadSeconds);
+        System.out.printf("latency      p50 < %s, p99 < %s, max < %s%n",
+            percentile(latencies, requests, 0.5), percentile(latencies, requests, 0.99), percentile(latencies, requests, 1));
+
+        // Each session's result counts its own lines and nobody else's
+        long mismatched = 0;
+        for (int s = 0; s < sessions; s++) {
+            if (cookies[s] == null) continue;
+            HttpRequest request = HttpRequest.newBuilder(URI.create(base + "/session")).header("Cookie", cookies[s]).build();
+            String json = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+            if (!json.contains("\"result\":\"" + sent[s] + "\"")) mismatched++;
+        }
+        System.out.printf("sessions     %,d checked, %,d mismatched, %,d failed requests%n", sessions, mismatched, failures.get());
+        if (server != null) server.stop();
+        threads.shutdownNow();
+        System.exit(mismatched == 0 && failures.get() == 0 ? 0 : 1);
+    }
+
+    // Upper bound of the bucket holding the given fraction of requests
+    private static String percentile(AtomicLongArray latencies, long requests, double fraction) {
+        long target = (long) Math.ceil(requests * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += latencies.get(i);
+            if (seen >= target && seen > 0) {
+                long micros = 2L << i;
+                return micros >= 1000 ? micros / 1000 + " ms" : micros + " us";
+            }
+        }
+        return "-";
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+// Cold-start benchmark: launches the calculator in fresh JVMs, without and with an
+// AppCDS archive, and reports the median time from launch to the first painted
+// frame (from the -Dcalculator.startup=exit probe) and to process exit. The
+// archive is created by a training run first, as calculator.sh does. Archived
+// classes must come from a jar, so a class directory is packaged into one first.
+//
+// The window needs a display. With --args the calculator runs a headless mode
+// instead ("--batch bench/formulas.txt", ...) and only the time to exit is
+// measured, which still shows what the archive saves in class loading.
+//
+//   java -cp out StartupBenchmark [--runs 10] [--classes out|calculator.jar] [--args "..."]
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        int runs = 10;
+        String classes = "out";
+        List<String> mode = new ArrayList<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--runs": runs = Integer.parseInt(args[i + 1]); break;
+                case "--classes": classes = args[i + 1]; break;
+                case "--args": mode = Arrays.asList(args[i + 1].trim().split("\\s+")); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Path archive = Files.createTempFile("calculator", ".jsa");
+        Files.delete(archive);
+        Path jar = Files.createTempFile("calculator", ".jar");
+        try {
+            classes = jar(Path.of(classes), jar);
+            List<String> training = command(java, classes, mode, "-XX:ArchiveClassesAtExit=" + archive);
+            run(training);
+            if (!Files.exists(archive)) {
+                System.err.println("Training run did not write an archive; is this JDK 13 or later?");
+                System.exit(1);
+            }
+            measure("default", command(java, classes, mode, null), runs);
+            measure("AppCDS", command(java, classes, mode, "-XX:SharedArchiveFile=" + archive), runs);
+        } finally {
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(jar);
+        }
+    }
+
+    // Packages a directory of classes into the jar; returns the class path to use
+    private static String jar(Path classes, Path jar) throws IOException {
+        if (!Files.isDirectory(classes)) return classes.toString();
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar));
+             Stream<Path> files = Files.walk(classes)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator) {
+                out.putNextEntry(new JarEntry(classes.relativize(file).toString().replace('\\', '/')));
+                Files.copy(file, out);
+                out.closeEntry();
+            }
+        }
+        return jar.toString();
+    }
+
+    private static List<String> command(String java, String classes, List<String> mode, String option) {
+        List<String> command = new ArrayList<>(List.of(java, "-Xshare:auto"));
+        if (option != null) command.add(option);
+        command.addAll(List.of("-Dcalculator.startup=exit", "-cp", classes, "Calculator"));
+        command.addAll(mode);
+        return command;
+    }
+
+    private static void measure(String name, List<String> command, int runs) throws IOException, InterruptedException {
+        long[] paint = new long[runs];
+        long[] exit = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            paint[i] = run(command);
+            exit[i] = (System.nanoTime() - start) / 1_000_000;
+        }
+        Arrays.sort(paint);
+        Arrays.sort(exit);
+        System.out.printf("%-8s first paint %s, exit %d ms (median of %d)%n", name,
+            paint[runs / 2] < 0 ? "-" : paint[runs / 2] + " ms", exit[runs / 2], runs);
+    }
+
+    // Runs the command to completion; returns the launch-to-first-paint time it
+    // reported, or -1
+    private static long run(List<String> command) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        long paint = -1;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line; (line = out.readLine()) != null; ) {
+                if (line.startsWith("startup: ")) {
+                    // startup: first paint N ms after main, M ms after launch
+                    String[] words = line.split(" ");
+                    paint = Long.parseLong(words[7]);
+                } else if (line.contains("HeadlessException") || line.contains("Can't connect to X11")) {
+                    System.err.println("No display; use --args to time a headless mode");
+                    System.exit(1);
+                }
+            }
+        }
+        process.waitFor();
+        return paint;
+    }
+}
@@ -0,0 +1,33 @@
+#!/bin/sh
+# Launches the calculator with an application class-data-sharing (AppCDS) archive:
+# the first run records the classes it loads into the archive as it exits, and
+# later runs map them in instead of loading and verifying them again, which cuts
+# the time to the first frame. Archived classes have to come from a jar, so the
+# sources are compiled and packaged into out/calculator.jar when they are newer
+# than it, and a stale archive is dropped then.
+#
+#   ./calculator.sh [--batch file | --sheet file | --solve file | --serve ...]
+#
+# CALCULATOR_CDS overrides where the archive is kept. Needs JDK 21 or later, which
+# the sources require anyway.
+dir=$(cd "$(dirname "$0")" && pwd)
+out="$dir/out"
+jar="$out/calculator.jar"
+archive="${CALCULATOR_CDS:-$out/calculator.jsa}"
+
+version=$(java -version 2>&1 | sed -n 's/.*version "\([0-9]*\).*/\1/p' | head -n 1)
+if [ "${version:-0}" -lt 21 ]; then
+    echo "calculator.sh: needs JDK 21 or later, found ${version:-no java}" >&2
+    exit 1
+fi
+
+if [ ! -f "$jar" ] || [ -n "$(find "$dir" -maxdepth 1 -name '*.java' -newer "$jar")" ]; then
+    rm -rf "$out/classes"
+    mkdir -p "$out/classes"
+    javac -encoding UTF-8 -d "$out/classes" "$dir"/*.java || exit 1
+    jar --create --file "$jar" --main-class Calculator -C "$out/classes" . || exit 1
+    rm -f "$archive"
+fi
+
+exec java -XX:+IgnoreUnrecognizedVMOptions -XX:+AutoCreateSharedArchive -XX:SharedArchiveFile="$archive" \
+    -jar "$jar" "$@"